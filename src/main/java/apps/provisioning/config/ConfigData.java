@@ -18,6 +18,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -33,6 +38,18 @@ public class ConfigData {
   private final String CACHE_EXPIRATION_HOURS = "accounts.UsernameGeneration.cacheExpirationHours";
   private final Integer CACHE_EXPIRATION_HOURS_DEFAULT = 24;
   private final Integer CACHE_EXPIRATION_HOURS_MIN = 1;
+  private final String REFRESH_WINDOWS = "accounts.UsernameGeneration.refreshWindows";
+  private final String REFRESH_WINDOW_PATTERN =
+      "^([01]?[0-9]|2[0-3]):[0-5][0-9]-([01]?[0-9]|2[0-3]):[0-5][0-9]$";
+  private final String REFRESH_JITTER_MINUTES = "accounts.UsernameGeneration.refreshJitterMinutes";
+  private final Integer REFRESH_JITTER_MINUTES_DEFAULT = 0;
+  private final String ADAPTIVE_REFRESH = "accounts.UsernameGeneration.adaptiveRefresh";
+  private final Boolean ADAPTIVE_REFRESH_DEFAULT = false;
+  private final String AUDIT_CHECKS_PER_HOUR = "accounts.UsernameGeneration.auditChecksPerHour";
+  private final Integer AUDIT_CHECKS_PER_HOUR_DEFAULT = 60;
+  private final String AUDIT_REFRESH_THRESHOLD =
+      "accounts.UsernameGeneration.auditRefreshThreshold";
+  private final Integer AUDIT_REFRESH_THRESHOLD_DEFAULT = 0;
   private final String NUMBER_OF_SUGGESTIONS = "accounts.UsernameGeneration.numberOfSuggestions";
   private final Integer NUMBER_OF_SUGGESTIONS_DEFAULT = 3;
   private final Integer NUMBER_OF_SUGGESTIONS_MIN = 1;
@@ -44,6 +61,16 @@ public class ConfigData {
   private final String SUGGESTED_USERNAMES_TIMEOUT =
       "accounts.UsernameGeneration.suggestedUsernamesTimeout";
   private final int SUGGESTED_USERNAMES_TIMEOUT_DEFAULT = 120; // 2 minutes
+  private final String IDEMPOTENT_SUGGESTIONS =
+      "accounts.UsernameGeneration.idempotentSuggestions";
+  private final Boolean IDEMPOTENT_SUGGESTIONS_DEFAULT = false;
+  private final String SUGGEST_TIME_BUDGET = "accounts.UsernameGeneration.suggestTimeBudget";
+  private final int SUGGEST_TIME_BUDGET_DEFAULT = 0; // No limit
+  private final String ADAPTIVE_PATTERNS = "accounts.UsernameGeneration.adaptivePatterns";
+  private final Boolean ADAPTIVE_PATTERNS_DEFAULT = false;
+  private final String RESOLVER_TIERS = "accounts.UsernameGeneration.resolverTiers";
+  private final String[] RESOLVER_TIERS_VALUES = {"locked", "cache", "directory"};
+  private final String[] RESOLVER_TIERS_REQUIRED = {"locked", "directory"};
   private final String AUTH_USER = "apis.GoogleAPIs.authUser";
   private final String KEY_PATH = "apis.GoogleAPIs.keyPath";
   private final String APP_NAME = "apis.GoogleAPIs.appName";
@@ -52,15 +79,71 @@ public class ConfigData {
   private final String SERVICE_ACCOUNT_EMAIL = "apis.GoogleAPIs.serviceAccountEmail";
   private final String EMAIL_PATTERN =
       "^[_A-Za-z0-9-\\+]+(\\.[_A-Za-z0-9-]+)*@[A-Za-z0-9-]+(\\.[A-Za-z0-9]+)*(\\.[A-Za-z]{2,})$";
+  private final String MAX_CONCURRENT_REQUESTS = "apis.GoogleAPIs.maxConcurrentRequests";
+  private final Integer MAX_CONCURRENT_REQUESTS_DEFAULT = 20;
+  private final String MAX_QUEUED_REQUESTS = "apis.GoogleAPIs.maxQueuedRequests";
+  private final Integer MAX_QUEUED_REQUESTS_DEFAULT = 100;
+  private final String REQUEST_TIMEOUT = "apis.GoogleAPIs.requestTimeout";
+  private final Integer REQUEST_TIMEOUT_DEFAULT = 30;
+  private final String BULK_MAX_CONCURRENT_REQUESTS = "apis.GoogleAPIs.bulkMaxConcurrentRequests";
+  private final Integer BULK_MAX_CONCURRENT_REQUESTS_DEFAULT = 5;
+  private final String BULK_MAX_QUEUED_REQUESTS = "apis.GoogleAPIs.bulkMaxQueuedRequests";
+  private final Integer BULK_MAX_QUEUED_REQUESTS_DEFAULT = 1000;
+  private final String BULK_REQUEST_TIMEOUT = "apis.GoogleAPIs.bulkRequestTimeout";
+  private final Integer BULK_REQUEST_TIMEOUT_DEFAULT = 300;
+  private final String HTTP_TRANSPORT = "apis.GoogleAPIs.httpTransport";
+  private final String[] HTTP_TRANSPORT_VALUES = {"apache", "net"};
+  private final String MAX_CONNECTIONS = "apis.GoogleAPIs.maxConnections";
+  private final String CONNECT_TIMEOUT = "apis.GoogleAPIs.connectTimeout";
+  private final Integer CONNECT_TIMEOUT_DEFAULT = 20000;
+  private final String READ_TIMEOUT = "apis.GoogleAPIs.readTimeout";
+  private final Integer READ_TIMEOUT_DEFAULT = 20000;
+  private final String WATCH_ADDRESS = "apis.GoogleAPIs.watchAddress";
+  private final String WATCH_ADDRESS_SCHEME = "https://";
+  private final String WATCH_CHANNEL_HOURS = "apis.GoogleAPIs.watchChannelHours";
+  private final Integer WATCH_CHANNEL_HOURS_DEFAULT = 6;
   private final String DB_PATH = "db.h2.path";
   private final String DB_PATH_DEFAULT = "./";
   private final String DB_NAME = "db.h2.name";
   private final String DB_NAME_DEFAULT = "usernames";
+  private final String DB_ENGINE = "db.h2.engine";
+  private final String[] DB_ENGINE_VALUES = {"sql", "mvstore"};
   private final String USE_SSL = "security.ssl.useSSL";
   private final Boolean USE_SSL_DEFAULT = false;
   private final String KEY_STORE_PATH = "security.ssl.keyStorePath";
   private final String KEY_STORE_PASSWORD = "security.ssl.keyStorePassword";
   private final String KEY_MANAGER_PASSWORD = "security.ssl.keyManagerPassword";
+  private final String ADMIN_TOKEN = "security.admin.token";
+  private final int ADMIN_TOKEN_MIN_LENGTH = 16;
+  private final String MIN_THREADS = "server.jetty.minThreads";
+  private final Integer MIN_THREADS_DEFAULT = 8;
+  private final String MAX_THREADS = "server.jetty.maxThreads";
+  private final Integer MAX_THREADS_DEFAULT = 200;
+  private final String THREAD_QUEUE_SIZE = "server.jetty.threadQueueSize";
+  private final Integer THREAD_QUEUE_SIZE_DEFAULT = 0;
+  private final String ACCEPTORS = "server.jetty.acceptors";
+  private final String SELECTORS = "server.jetty.selectors";
+  // Lets Jetty choose the number of acceptors and selectors from the number of CPUs.
+  private final Integer AUTOMATIC_DEFAULT = -1;
+  private final String IDLE_TIMEOUT = "server.jetty.idleTimeout";
+  private final Integer IDLE_TIMEOUT_DEFAULT = 30000;
+  private final String STREAM_TIMEOUT = "server.jetty.streamTimeout";
+  private final Integer STREAM_TIMEOUT_DEFAULT = 60000;
+  private final String USE_GZIP = "server.jetty.useGzip";
+  private final Boolean USE_GZIP_DEFAULT = false;
+  private final String GZIP_MIN_SIZE = "server.jetty.gzipMinSize";
+  private final Integer GZIP_MIN_SIZE_DEFAULT = 2048;
+  private final String MAX_CONCURRENT_REQUESTS_PER_ENDPOINT =
+      "server.admission.maxConcurrentRequests";
+  private final Integer MAX_CONCURRENT_REQUESTS_PER_ENDPOINT_DEFAULT = 0;
+  private final String ENDPOINT_LIMITS = "server.admission.endpointLimits";
+  private final String ENDPOINT_LIMIT_SEPARATOR = ":";
+  private final String RETRY_AFTER = "server.admission.retryAfter";
+  private final Integer RETRY_AFTER_DEFAULT = 1;
+  private final String RATE_LIMIT = "server.admission.rateLimit";
+  private final Integer RATE_LIMIT_DEFAULT = 0;
+  private final String RATE_LIMIT_BURST = "server.admission.rateLimitBurst";
+  private final String TRUSTED_PROXIES = "server.admission.trustedProxies";
   private final String[] ILLEGAL_CHARACTERS = {"/", "\n", "\r", "\t", "\0", "\f", "`", "?", "*",
       "\\", "<", ">", "|", "\"", ":"};
   private final String ARRAY_SEPARATOR = ",";
@@ -69,6 +152,8 @@ public class ConfigData {
   private Properties properties;
   private Integer numberOfSuggestions;
   private String[] patterns;
+  private String[] resolverTiers;
+  private Boolean adaptivePatterns;
   private String authUser;
   private String keyPath;
   private String serviceAccountEmail;
@@ -76,13 +161,49 @@ public class ConfigData {
   private String domain;
   private Boolean cacheUsernames;
   private Integer cacheExpirationHours;
+  private String[] refreshWindows;
+  private Integer refreshJitterMinutes;
+  private Boolean adaptiveRefresh;
+  private Integer auditChecksPerHour;
+  private Integer auditRefreshThreshold;
   private String dbName;
+  private String dbEngine;
   private String dbPath;
   private Boolean useSSL;
   private String keyStorePath;
   private String keyStorePassword;
   private String keyManagerPassword;
+  private String adminToken;
   private long suggestedUsernamesTimeout;
+  private Boolean idempotentSuggestions;
+  private Integer maxConcurrentRequests;
+  private Integer maxQueuedRequests;
+  private Integer requestTimeout;
+  private Integer bulkMaxConcurrentRequests;
+  private Integer bulkMaxQueuedRequests;
+  private Integer bulkRequestTimeout;
+  private String httpTransport;
+  private Integer maxConnections;
+  private Integer connectTimeout;
+  private Integer readTimeout;
+  private String watchAddress;
+  private Integer watchChannelHours;
+  private long suggestTimeBudget;
+  private Integer minThreads;
+  private Integer maxThreads;
+  private Integer threadQueueSize;
+  private Integer acceptors;
+  private Integer selectors;
+  private Integer idleTimeout;
+  private Integer streamTimeout;
+  private Boolean useGzip;
+  private Integer gzipMinSize;
+  private Integer maxConcurrentRequestsPerEndpoint;
+  private HashMap<String, Integer> endpointLimits;
+  private Integer retryAfter;
+  private Integer rateLimit;
+  private Integer rateLimitBurst;
+  private HashSet<String> trustedProxies;
 
   public ConfigData(String configFilePath) throws FileNotFoundException, IOException, Exception {
     properties = new Properties();
@@ -110,17 +231,85 @@ public class ConfigData {
     log.log(Level.INFO, "App name: " + appName);
     domain = parseDomain();
     log.log(Level.INFO, "Domain: " + domain);
+    maxConcurrentRequests =
+        parseBoundedInteger(MAX_CONCURRENT_REQUESTS, MAX_CONCURRENT_REQUESTS_DEFAULT, 1,
+            Integer.MAX_VALUE);
+    log.log(Level.INFO, "Max concurrent requests: " + maxConcurrentRequests);
+    maxQueuedRequests =
+        parseBoundedInteger(MAX_QUEUED_REQUESTS, MAX_QUEUED_REQUESTS_DEFAULT, 1, Integer.MAX_VALUE);
+    log.log(Level.INFO, "Max queued requests: " + maxQueuedRequests);
+    requestTimeout = parseBoundedInteger(REQUEST_TIMEOUT, REQUEST_TIMEOUT_DEFAULT, 1,
+        Integer.MAX_VALUE);
+    log.log(Level.INFO, "Request timeout: " + requestTimeout);
+    bulkMaxConcurrentRequests =
+        parseBoundedInteger(BULK_MAX_CONCURRENT_REQUESTS, BULK_MAX_CONCURRENT_REQUESTS_DEFAULT, 1,
+            Integer.MAX_VALUE);
+    log.log(Level.INFO, "Bulk max concurrent requests: " + bulkMaxConcurrentRequests);
+    bulkMaxQueuedRequests =
+        parseBoundedInteger(BULK_MAX_QUEUED_REQUESTS, BULK_MAX_QUEUED_REQUESTS_DEFAULT, 1,
+            Integer.MAX_VALUE);
+    log.log(Level.INFO, "Bulk max queued requests: " + bulkMaxQueuedRequests);
+    bulkRequestTimeout =
+        parseBoundedInteger(BULK_REQUEST_TIMEOUT, BULK_REQUEST_TIMEOUT_DEFAULT, 1,
+            Integer.MAX_VALUE);
+    log.log(Level.INFO, "Bulk request timeout: " + bulkRequestTimeout);
+    httpTransport = parseHttpTransport();
+    log.log(Level.INFO, "HTTP transport: " + httpTransport);
+    // One connection for each request thread and one for the cache refresh.
+    maxConnections =
+        parseBoundedInteger(MAX_CONNECTIONS, maxConcurrentRequests + bulkMaxConcurrentRequests + 1,
+            1, Integer.MAX_VALUE);
+    log.log(Level.INFO, "Max connections: " + maxConnections);
+    connectTimeout =
+        parseBoundedInteger(CONNECT_TIMEOUT, CONNECT_TIMEOUT_DEFAULT, 0, Integer.MAX_VALUE);
+    log.log(Level.INFO, "Connect timeout: " + connectTimeout);
+    readTimeout = parseBoundedInteger(READ_TIMEOUT, READ_TIMEOUT_DEFAULT, 0, Integer.MAX_VALUE);
+    log.log(Level.INFO, "Read timeout: " + readTimeout);
     suggestedUsernamesTimeout = parseSuggestedUsernamesTimeout();
     log.log(Level.INFO, "Suggested usernames timeout: " + suggestedUsernamesTimeout);
+    idempotentSuggestions = parseIdempotentSuggestions();
+    log.log(Level.INFO, "Idempotent suggestions: " + idempotentSuggestions);
+    suggestTimeBudget = parseSuggestTimeBudget();
+    log.log(Level.INFO, "Suggest time budget: " + suggestTimeBudget);
+    resolverTiers = parseResolverTiers();
+    log.log(Level.INFO, "Resolver tiers: " + Arrays.toString(resolverTiers));
+    adaptivePatterns = parseAdaptivePatterns();
+    log.log(Level.INFO, "Adaptive patterns: " + adaptivePatterns);
     cacheUsernames = parseCacheUsernames();
     log.log(Level.INFO, "Cached usernames: " + cacheUsernames);
     if (cacheUsernames) {
       cacheExpirationHours = parseCacheExpirationHours();
       log.log(Level.INFO, "Cache expiration in hours: " + cacheExpirationHours);
+      refreshWindows = parseRefreshWindows();
+      log.log(Level.INFO, "Refresh windows: "
+          + (refreshWindows == null ? "any time" : Arrays.toString(refreshWindows)));
+      refreshJitterMinutes =
+          parseBoundedInteger(REFRESH_JITTER_MINUTES, REFRESH_JITTER_MINUTES_DEFAULT, 0,
+              Integer.MAX_VALUE / 60);
+      log.log(Level.INFO, "Refresh jitter in minutes: " + refreshJitterMinutes);
+      adaptiveRefresh = parseAdaptiveRefresh();
+      log.log(Level.INFO, "Adaptive refresh: " + adaptiveRefresh);
+      auditChecksPerHour =
+          parseBoundedInteger(AUDIT_CHECKS_PER_HOUR, AUDIT_CHECKS_PER_HOUR_DEFAULT, 0,
+              Integer.MAX_VALUE);
+      log.log(Level.INFO, "Audit checks per hour: " + auditChecksPerHour);
+      auditRefreshThreshold =
+          parseBoundedInteger(AUDIT_REFRESH_THRESHOLD, AUDIT_REFRESH_THRESHOLD_DEFAULT, 0, 100);
+      log.log(Level.INFO, "Audit refresh threshold: " + auditRefreshThreshold);
       dbPath = parseDbPath();
       log.log(Level.INFO, "Database path: " + dbPath);
       dbName = parseDbName();
       log.log(Level.INFO, "Database name: " + dbName);
+      dbEngine = parseDbEngine();
+      log.log(Level.INFO, "Database engine: " + dbEngine);
+      watchAddress = parseWatchAddress();
+      log.log(Level.INFO, "Watch address: " + watchAddress);
+      if (watchAddress != null) {
+        watchChannelHours =
+            parseBoundedInteger(WATCH_CHANNEL_HOURS, WATCH_CHANNEL_HOURS_DEFAULT, 1,
+                Integer.MAX_VALUE);
+        log.log(Level.INFO, "Watch channel hours: " + watchChannelHours);
+      }
     }
     useSSL = parseUseSSL();
     log.log(Level.INFO, "Uses SSL: " + useSSL);
@@ -132,6 +321,50 @@ public class ConfigData {
       keyManagerPassword = parseKeyManagerPassword();
       log.log(Level.INFO, "Key manager password: " + keyManagerPassword);
     }
+    adminToken = parseAdminToken();
+    log.log(Level.INFO, "Admin methods enabled: " + (adminToken != null));
+    minThreads = parseBoundedInteger(MIN_THREADS, MIN_THREADS_DEFAULT, 1, Integer.MAX_VALUE);
+    log.log(Level.INFO, "Min threads: " + minThreads);
+    maxThreads = parseBoundedInteger(MAX_THREADS, MAX_THREADS_DEFAULT, 1, Integer.MAX_VALUE);
+    if (maxThreads < minThreads) {
+      throw new Exception(MAX_THREADS + " must be larger or equal to " + MIN_THREADS + ".");
+    }
+    log.log(Level.INFO, "Max threads: " + maxThreads);
+    threadQueueSize =
+        parseBoundedInteger(THREAD_QUEUE_SIZE, THREAD_QUEUE_SIZE_DEFAULT, 0, Integer.MAX_VALUE);
+    log.log(Level.INFO, "Thread queue size: " + threadQueueSize);
+    acceptors = parseBoundedInteger(ACCEPTORS, AUTOMATIC_DEFAULT, 1, Integer.MAX_VALUE);
+    log.log(Level.INFO, "Acceptors: " + acceptors);
+    selectors = parseBoundedInteger(SELECTORS, AUTOMATIC_DEFAULT, 1, Integer.MAX_VALUE);
+    log.log(Level.INFO, "Selectors: " + selectors);
+    idleTimeout = parseBoundedInteger(IDLE_TIMEOUT, IDLE_TIMEOUT_DEFAULT, 1, Integer.MAX_VALUE);
+    log.log(Level.INFO, "Idle timeout: " + idleTimeout);
+    streamTimeout =
+        parseBoundedInteger(STREAM_TIMEOUT, STREAM_TIMEOUT_DEFAULT, 1, Integer.MAX_VALUE);
+    log.log(Level.INFO, "Stream timeout: " + streamTimeout);
+    useGzip = parseUseGzip();
+    log.log(Level.INFO, "Uses gzip: " + useGzip);
+    if (useGzip) {
+      gzipMinSize = parseBoundedInteger(GZIP_MIN_SIZE, GZIP_MIN_SIZE_DEFAULT, 0, Integer.MAX_VALUE);
+      log.log(Level.INFO, "Gzip min size: " + gzipMinSize);
+    }
+    maxConcurrentRequestsPerEndpoint =
+        parseBoundedInteger(MAX_CONCURRENT_REQUESTS_PER_ENDPOINT,
+            MAX_CONCURRENT_REQUESTS_PER_ENDPOINT_DEFAULT, 0, Integer.MAX_VALUE);
+    log.log(Level.INFO, "Max concurrent requests per endpoint: "
+        + maxConcurrentRequestsPerEndpoint);
+    endpointLimits = parseEndpointLimits();
+    log.log(Level.INFO, "Endpoint limits: " + endpointLimits);
+    retryAfter = parseBoundedInteger(RETRY_AFTER, RETRY_AFTER_DEFAULT, 1, Integer.MAX_VALUE);
+    log.log(Level.INFO, "Retry after: " + retryAfter);
+    rateLimit = parseBoundedInteger(RATE_LIMIT, RATE_LIMIT_DEFAULT, 0, Integer.MAX_VALUE);
+    log.log(Level.INFO, "Rate limit: " + rateLimit);
+    if (rateLimit > 0) {
+      rateLimitBurst = parseBoundedInteger(RATE_LIMIT_BURST, rateLimit, 1, Integer.MAX_VALUE);
+      log.log(Level.INFO, "Rate limit burst: " + rateLimitBurst);
+    }
+    trustedProxies = parseTrustedProxies();
+    log.log(Level.INFO, "Trusted proxies: " + trustedProxies);
   }
 
   /**
@@ -196,6 +429,32 @@ public class ConfigData {
     return Integer.parseInt(value);
   }
 
+  /**
+   * Parses an integer property value that must be within the given limits.
+   *
+   * @param key Property name to be retrieved.
+   * @param defaultValue Value used when the property is not set.
+   * @param minValue Minimum valid value.
+   * @param maxValue Maximum valid value.
+   * @return The property value or the default value.
+   * @throws Exception
+   */
+  private Integer parseBoundedInteger(String key, Integer defaultValue, Integer minValue,
+      Integer maxValue) throws Exception {
+    try {
+      Integer value = getInteger(key);
+      if (value == null) {
+        return defaultValue;
+      }
+      if (value < minValue || value > maxValue) {
+        throw new Exception("The value must be between " + minValue + " and " + maxValue);
+      }
+      return value;
+    } catch (Exception e) {
+      throw new Exception("Invalid value in " + key + " property.");
+    }
+  }
+
   /**
    * Parses the cachedUsernames property value.
    *
@@ -264,6 +523,64 @@ public class ConfigData {
     }
   }
 
+  /**
+   * Parses the idempotentSuggestions property value.
+   *
+   * @return Whether repeated suggest calls with the same user data return the same suggestions.
+   * @throws Exception
+   */
+  private Boolean parseIdempotentSuggestions() throws Exception {
+    try {
+      Boolean idempotentSuggestions = getBoolean(IDEMPOTENT_SUGGESTIONS);
+      if (idempotentSuggestions == null) {
+        return IDEMPOTENT_SUGGESTIONS_DEFAULT;
+      }
+      return idempotentSuggestions;
+    } catch (Exception e) {
+      throw new Exception("Invalid value in " + IDEMPOTENT_SUGGESTIONS + " property.");
+    }
+  }
+
+  /**
+   * Gets the idempotentSuggestions property value.
+   *
+   * @return Whether repeated suggest calls with the same user data return the same suggestions.
+   */
+  public Boolean getIdempotentSuggestions() {
+    return idempotentSuggestions;
+  }
+
+  /**
+   * Parses the suggestTimeBudget property value.
+   *
+   * @return Milliseconds that a suggest call can spend looking for available usernames.
+   * @throws Exception
+   */
+  private Integer parseSuggestTimeBudget() throws Exception {
+    try {
+      Integer suggestTimeBudget = getInteger(SUGGEST_TIME_BUDGET);
+      if (suggestTimeBudget == null) {
+        return SUGGEST_TIME_BUDGET_DEFAULT;
+      }
+      if (suggestTimeBudget < 0) {
+        throw new Exception("The suggest time budget can't be negative.");
+      }
+      return suggestTimeBudget;
+    } catch (Exception e) {
+      throw new Exception("Invalid value in " + SUGGEST_TIME_BUDGET + " property.");
+    }
+  }
+
+  /**
+   * Gets the suggestTimeBudget property value.
+   *
+   * @return Milliseconds that a suggest call can spend looking for available usernames. 0 means no
+   *         limit.
+   */
+  public long getSuggestTimeBudget() {
+    return suggestTimeBudget;
+  }
+
   /**
    * Gets the cacheExpirationHours property value.
    *
@@ -273,6 +590,88 @@ public class ConfigData {
     return cacheExpirationHours;
   }
 
+  /**
+   * Parses the refreshWindows property value.
+   *
+   * @return The windows, like 01:00-05:00, or null if refreshes can start at any time.
+   * @throws Exception
+   */
+  private String[] parseRefreshWindows() throws Exception {
+    String[] windows = getStringArray(REFRESH_WINDOWS);
+    if (windows == null) {
+      return null;
+    }
+    for (int i = 0; i < windows.length; i++) {
+      windows[i] = windows[i].trim();
+      String[] times = windows[i].split("-");
+      if (!windows[i].matches(REFRESH_WINDOW_PATTERN) || times[0].equals(times[1])) {
+        throw new Exception("Invalid value in " + REFRESH_WINDOWS
+            + " property. It must be a list of HH:mm-HH:mm windows.");
+      }
+    }
+    return windows;
+  }
+
+  /**
+   * Gets the refreshWindows property value.
+   *
+   * @return Daily windows, like 01:00-05:00 in the server time zone, when cache refreshes can
+   *         start, or null if they can start at any time.
+   */
+  public String[] getRefreshWindows() {
+    return refreshWindows;
+  }
+
+  /**
+   * Gets the refreshJitterMinutes property value.
+   *
+   * @return Maximum random delay in minutes added to each cache refresh.
+   */
+  public Integer getRefreshJitterMinutes() {
+    return refreshJitterMinutes;
+  }
+
+  private Boolean parseAdaptiveRefresh() throws Exception {
+    try {
+      Boolean adaptiveRefresh = getBoolean(ADAPTIVE_REFRESH);
+      if (adaptiveRefresh == null) {
+        return ADAPTIVE_REFRESH_DEFAULT;
+      }
+      return adaptiveRefresh;
+    } catch (Exception e) {
+      throw new Exception("Invalid value in " + ADAPTIVE_REFRESH + " property.");
+    }
+  }
+
+  /**
+   * Gets the adaptiveRefresh property value.
+   *
+   * @return Whether the interval between cache refreshes adapts to the changes that each refresh
+   *         finds.
+   */
+  public Boolean getAdaptiveRefresh() {
+    return adaptiveRefresh;
+  }
+
+  /**
+   * Gets the auditChecksPerHour property value.
+   *
+   * @return Google Directory lookups per hour used to audit the cache (0 to disable the audit).
+   */
+  public Integer getAuditChecksPerHour() {
+    return auditChecksPerHour;
+  }
+
+  /**
+   * Gets the auditRefreshThreshold property value.
+   *
+   * @return Percentage of mismatched audit checks that starts an early cache refresh (0 to never
+   *         start one).
+   */
+  public Integer getAuditRefreshThreshold() {
+    return auditRefreshThreshold;
+  }
+
   /**
    * Parses the numberOfSuggestions property value.
    *
@@ -328,6 +727,69 @@ public class ConfigData {
     return patterns;
   }
 
+  /**
+   * Parses the resolverTiers property value.
+   *
+   * @return The tier names in lookup order.
+   * @throws Exception
+   */
+  private String[] parseResolverTiers() throws Exception {
+    String[] tiers = getStringArray(RESOLVER_TIERS);
+    if (tiers == null) {
+      return RESOLVER_TIERS_VALUES.clone();
+    }
+    List<String> validTiers = Arrays.asList(RESOLVER_TIERS_VALUES);
+    List<String> parsedTiers = new ArrayList<String>();
+    for (String tier : tiers) {
+      tier = tier.trim().toLowerCase();
+      if (!validTiers.contains(tier) || parsedTiers.contains(tier)) {
+        throw new Exception("Invalid value in " + RESOLVER_TIERS
+            + " property. It must be a list of " + Arrays.toString(RESOLVER_TIERS_VALUES)
+            + " without repetitions.");
+      }
+      parsedTiers.add(tier);
+    }
+    for (String requiredTier : RESOLVER_TIERS_REQUIRED) {
+      if (!parsedTiers.contains(requiredTier)) {
+        throw new Exception("The " + requiredTier + " tier is required in " + RESOLVER_TIERS
+            + " property.");
+      }
+    }
+    return parsedTiers.toArray(new String[parsedTiers.size()]);
+  }
+
+  /**
+   * Gets the resolverTiers property value.
+   *
+   * @return The tiers (locked, cache and directory) that are asked in order whether a suggestion
+   *         is taken.
+   */
+  public String[] getResolverTiers() {
+    return resolverTiers;
+  }
+
+  private Boolean parseAdaptivePatterns() throws Exception {
+    try {
+      Boolean adaptivePatterns = getBoolean(ADAPTIVE_PATTERNS);
+      if (adaptivePatterns == null) {
+        return ADAPTIVE_PATTERNS_DEFAULT;
+      }
+      return adaptivePatterns;
+    } catch (Exception e) {
+      throw new Exception("Invalid value in " + ADAPTIVE_PATTERNS + " property.");
+    }
+  }
+
+  /**
+   * Gets the adaptivePatterns property value.
+   *
+   * @return Whether patterns whose suggestions are rarely available for names of the same
+   *         frequency are skipped.
+   */
+  public Boolean getAdaptivePatterns() {
+    return adaptivePatterns;
+  }
+
   /**
    * Parses the authUser property value.
    *
@@ -464,6 +926,182 @@ public class ConfigData {
     return domain;
   }
 
+  /**
+   * Gets the maxConcurrentRequests property value.
+   *
+   * @return Number of requests to Google APIs that can run at the same time.
+   */
+  public Integer getMaxConcurrentRequests() {
+    return maxConcurrentRequests;
+  }
+
+  /**
+   * Gets the maxQueuedRequests property value.
+   *
+   * @return Number of requests that can wait for a free slot. More requests are rejected.
+   */
+  public Integer getMaxQueuedRequests() {
+    return maxQueuedRequests;
+  }
+
+  /**
+   * Gets the requestTimeout property value.
+   *
+   * @return Seconds that a request can take, including the time waiting for a free slot.
+   */
+  public Integer getRequestTimeout() {
+    return requestTimeout;
+  }
+
+  /**
+   * Gets the bulkMaxConcurrentRequests property value.
+   *
+   * @return Number of bulk requests to Google APIs that can run at the same time.
+   */
+  public Integer getBulkMaxConcurrentRequests() {
+    return bulkMaxConcurrentRequests;
+  }
+
+  /**
+   * Gets the bulkMaxQueuedRequests property value.
+   *
+   * @return Number of bulk requests that can wait for a free slot.
+   */
+  public Integer getBulkMaxQueuedRequests() {
+    return bulkMaxQueuedRequests;
+  }
+
+  /**
+   * Gets the bulkRequestTimeout property value.
+   *
+   * @return Seconds that a bulk request can take, including the time waiting for a free slot.
+   */
+  public Integer getBulkRequestTimeout() {
+    return bulkRequestTimeout;
+  }
+
+  /**
+   * Parses the httpTransport property value.
+   *
+   * @return apache or net.
+   * @throws Exception
+   */
+  private String parseHttpTransport() throws Exception {
+    String value = getString(HTTP_TRANSPORT);
+    if (value == null || value.isEmpty()) {
+      return HTTP_TRANSPORT_VALUES[0];
+    }
+    value = value.trim().toLowerCase();
+    for (String validValue : HTTP_TRANSPORT_VALUES) {
+      if (validValue.equals(value)) {
+        return value;
+      }
+    }
+    throw new Exception("Invalid value in " + HTTP_TRANSPORT + " property.");
+  }
+
+  /**
+   * Gets the httpTransport property value.
+   *
+   * @return The HTTP client used to call Google APIs: apache (pooled connections) or net
+   *         (HttpURLConnection).
+   */
+  public String getHttpTransport() {
+    return httpTransport;
+  }
+
+  /**
+   * Gets the maxConnections property value.
+   *
+   * @return Number of connections to Google APIs that the apache transport keeps open.
+   */
+  public Integer getMaxConnections() {
+    return maxConnections;
+  }
+
+  /**
+   * Parses the watchAddress property value.
+   *
+   * @return The address or null if the cache is not updated with notifications.
+   * @throws Exception
+   */
+  private String parseWatchAddress() throws Exception {
+    String value = getString(WATCH_ADDRESS);
+    if (value == null || value.trim().isEmpty()) {
+      return null;
+    }
+    value = value.trim();
+    if (!value.toLowerCase().startsWith(WATCH_ADDRESS_SCHEME)) {
+      throw new Exception("The " + WATCH_ADDRESS + " property must be an HTTPS URL.");
+    }
+    return value;
+  }
+
+  /**
+   * Gets the watchAddress property value.
+   *
+   * @return The HTTPS URL of the directory notifications endpoint or null if the cache is not
+   *         updated with notifications.
+   */
+  public String getWatchAddress() {
+    return watchAddress;
+  }
+
+  /**
+   * Parses the admin token property value.
+   *
+   * @return The token or null if the admin methods are disabled.
+   * @throws Exception
+   */
+  private String parseAdminToken() throws Exception {
+    String value = getString(ADMIN_TOKEN);
+    if (value == null || value.trim().isEmpty()) {
+      return null;
+    }
+    value = value.trim();
+    if (value.length() < ADMIN_TOKEN_MIN_LENGTH) {
+      throw new Exception("The " + ADMIN_TOKEN + " property must have " + ADMIN_TOKEN_MIN_LENGTH
+          + " characters or more.");
+    }
+    return value;
+  }
+
+  /**
+   * Gets the admin token property value.
+   *
+   * @return The token that admin requests must send or null if the admin methods are disabled.
+   */
+  public String getAdminToken() {
+    return adminToken;
+  }
+
+  /**
+   * Gets the watchChannelHours property value.
+   *
+   * @return Hours that each notification channel lasts before it is renewed.
+   */
+  public Integer getWatchChannelHours() {
+    return watchChannelHours;
+  }
+
+  /**
+   * Gets the connectTimeout property value.
+   *
+   * @return Milliseconds to wait for a connection to Google APIs (0 for no limit).
+   */
+  public Integer getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * Gets the readTimeout property value.
+   *
+   * @return Milliseconds to wait for data from Google APIs (0 for no limit).
+   */
+  public Integer getReadTimeout() {
+    return readTimeout;
+  }
+
   /**
    * Parses the database path value.
    *
@@ -523,6 +1161,35 @@ public class ConfigData {
     return dbName;
   }
 
+  /**
+   * Parses the database engine value.
+   *
+   * @return sql or mvstore.
+   * @throws Exception
+   */
+  private String parseDbEngine() throws Exception {
+    String value = getString(DB_ENGINE);
+    if (value == null || value.isEmpty()) {
+      return DB_ENGINE_VALUES[0];
+    }
+    value = value.trim().toLowerCase();
+    for (String validValue : DB_ENGINE_VALUES) {
+      if (validValue.equals(value)) {
+        return value;
+      }
+    }
+    throw new Exception("Invalid value in " + DB_ENGINE + " property.");
+  }
+
+  /**
+   * Gets the database engine value.
+   *
+   * @return sql for an H2 SQL database or mvstore for an H2 MVStore key-value store.
+   */
+  public String getDbEngine() {
+    return dbEngine;
+  }
+
   /**
    * Parses the useSSL property value.
    *
@@ -634,4 +1301,196 @@ public class ConfigData {
   public long getSuggestedUsernamesTimeout() {
     return suggestedUsernamesTimeout;
   }
+
+  /**
+   * Parses the useGzip property value.
+   *
+   * @return The useGzip value.
+   * @throws Exception
+   */
+  private Boolean parseUseGzip() throws Exception {
+    try {
+      Boolean useGzip = getBoolean(USE_GZIP);
+      if (useGzip == null) {
+        return USE_GZIP_DEFAULT;
+      }
+      return useGzip;
+    } catch (Exception e) {
+      throw new Exception("Invalid value in " + USE_GZIP + " property.");
+    }
+  }
+
+  /**
+   * Gets the minThreads property value.
+   *
+   * @return Minimum number of threads of the Jetty thread pool.
+   */
+  public Integer getMinThreads() {
+    return minThreads;
+  }
+
+  /**
+   * Gets the maxThreads property value.
+   *
+   * @return Maximum number of threads of the Jetty thread pool.
+   */
+  public Integer getMaxThreads() {
+    return maxThreads;
+  }
+
+  /**
+   * Gets the threadQueueSize property value.
+   *
+   * @return Maximum number of jobs waiting for a Jetty thread. 0 means no limit.
+   */
+  public Integer getThreadQueueSize() {
+    return threadQueueSize;
+  }
+
+  /**
+   * Gets the acceptors property value.
+   *
+   * @return Number of acceptor threads. -1 lets Jetty choose it.
+   */
+  public Integer getAcceptors() {
+    return acceptors;
+  }
+
+  /**
+   * Gets the selectors property value.
+   *
+   * @return Number of selector threads. -1 lets Jetty choose it.
+   */
+  public Integer getSelectors() {
+    return selectors;
+  }
+
+  /**
+   * Gets the idleTimeout property value.
+   *
+   * @return Milliseconds that an idle connection is kept open.
+   */
+  public Integer getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  /**
+   * Gets the streamTimeout property value.
+   *
+   * @return Milliseconds that a stream of suggestions can stay open.
+   */
+  public Integer getStreamTimeout() {
+    return streamTimeout;
+  }
+
+  /**
+   * Gets the useGzip property value.
+   *
+   * @return Whether the JSON responses are compressed.
+   */
+  public Boolean getUseGzip() {
+    return useGzip;
+  }
+
+  /**
+   * Gets the gzipMinSize property value.
+   *
+   * @return Minimum size in bytes of the responses that are compressed.
+   */
+  public Integer getGzipMinSize() {
+    return gzipMinSize;
+  }
+
+  /**
+   * Parses the endpointLimits property value. Each item has the format endpoint:limit.
+   *
+   * @return Map with the concurrency limit of each endpoint listed.
+   * @throws Exception
+   */
+  private HashMap<String, Integer> parseEndpointLimits() throws Exception {
+    HashMap<String, Integer> limits = new HashMap<String, Integer>();
+    String[] items = getStringArray(ENDPOINT_LIMITS);
+    if (items == null) {
+      return limits;
+    }
+    try {
+      for (String item : items) {
+        String[] endpointAndLimit = item.split(ENDPOINT_LIMIT_SEPARATOR);
+        if (endpointAndLimit.length != 2) {
+          throw new Exception("The value must be a list of endpoint:limit items.");
+        }
+        Integer limit = Integer.parseInt(endpointAndLimit[1].trim());
+        if (limit < 0) {
+          throw new Exception("The limits must be larger or equal to 0.");
+        }
+        limits.put(endpointAndLimit[0].trim(), limit);
+      }
+    } catch (Exception e) {
+      throw new Exception("Invalid value in " + ENDPOINT_LIMITS + " property.");
+    }
+    return limits;
+  }
+
+  /**
+   * Gets the concurrency limit of the given REST endpoint.
+   *
+   * @param endpoint The endpoint name, like suggest or create.
+   * @return Number of requests to the endpoint that can run at the same time. 0 means no limit.
+   */
+  public Integer getMaxConcurrentRequests(String endpoint) {
+    Integer limit = endpointLimits.get(endpoint);
+    return limit == null ? maxConcurrentRequestsPerEndpoint : limit;
+  }
+
+  /**
+   * Gets the retryAfter property value.
+   *
+   * @return Seconds sent in the Retry-After header of rejected requests.
+   */
+  public Integer getRetryAfter() {
+    return retryAfter;
+  }
+
+  /**
+   * Gets the rateLimit property value.
+   *
+   * @return Requests per second allowed for each client. 0 means no limit.
+   */
+  public Integer getRateLimit() {
+    return rateLimit;
+  }
+
+  /**
+   * Gets the rateLimitBurst property value.
+   *
+   * @return Requests that a client can send at once before being limited.
+   */
+  public Integer getRateLimitBurst() {
+    return rateLimitBurst;
+  }
+
+  /**
+   * Parses the trustedProxies property value.
+   */
+  private HashSet<String> parseTrustedProxies() {
+    HashSet<String> proxies = new HashSet<String>();
+    String[] items = getStringArray(TRUSTED_PROXIES);
+    if (items != null) {
+      for (String item : items) {
+        if (!item.trim().isEmpty()) {
+          proxies.add(item.trim());
+        }
+      }
+    }
+    return proxies;
+  }
+
+  /**
+   * Gets the trustedProxies property value.
+   *
+   * @return IP addresses whose X-Client-Id header identifies the client for the rate limit.
+   */
+  public HashSet<String> getTrustedProxies() {
+    return trustedProxies;
+  }
 }
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.data;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import apps.provisioning.metrics.Counter;
+import apps.provisioning.metrics.Gauge;
+import apps.provisioning.metrics.MetricsRegistry;
+import apps.provisioning.server.apis.GoogleDirectory;
+
+/**
+ * Estimates how far the username cache has drifted from the Google Directory. At a low rate, it
+ * looks up in the Directory API a random cached username (which should exist) or one of the last
+ * usernames that the cache reported as available (which should not), fixes the cache when they
+ * don't match and publishes the mismatch rates since the last refresh. When the drift reaches a
+ * threshold, it starts an early refresh.
+ */
+public class CacheAuditor {
+
+  private final Logger logger = Logger.getLogger(CacheAuditor.class.getName());
+  private final String THREAD_NAME = "cache-auditor";
+  private final long MILLIS_PER_HOUR = 3600000;
+  // Checks since the last refresh that are needed before the drift can start an early refresh.
+  private final int MIN_CHECKS_FOR_REFRESH = 20;
+
+  private final GoogleDirectory googleDirectory;
+  private final UsernameCache usernameCache;
+  private final int checksPerHour;
+  private final double refreshThreshold;
+  private final Random random = new Random();
+  private final ScheduledExecutorService scheduler;
+
+  // Results since the last refresh of the cache. They are reset when it finishes.
+  private long auditedRefreshTime = 0;
+  private int cachedChecks = 0;
+  private int falsePositives = 0;
+  private int availableChecks = 0;
+  private int falseNegatives = 0;
+  // Age of the cache in seconds when the first mismatch was found, or -1 if none was found.
+  private long firstMismatchAge = -1;
+  private boolean refreshRequested = false;
+  private long checkCount = 0;
+
+  private final Counter cachedMatches = createChecksCounter("cached", "match");
+  private final Counter cachedMismatches = createChecksCounter("cached", "mismatch");
+  private final Counter availableMatches = createChecksCounter("available", "match");
+  private final Counter availableMismatches = createChecksCounter("available", "mismatch");
+  private final Counter failedChecks = MetricsRegistry.getDefault().counter(
+      "provisioning_cache_audit_errors_total",
+      "Cache audit checks that failed because the Google Directory couldn't be reached.");
+  private final Counter earlyRefreshes = MetricsRegistry.getDefault().counter(
+      "provisioning_cache_audit_refreshes_total",
+      "Early username cache refreshes started because of the drift.");
+
+  /**
+   * @param googleDirectory The Google Directory that the cache is checked against.
+   * @param usernameCache The audited cache.
+   * @param checksPerHour Directory API lookups per hour.
+   * @param refreshThreshold Fraction of mismatched checks since the last refresh that starts an
+   *        early refresh, or 0 to never start one.
+   */
+  public CacheAuditor(GoogleDirectory googleDirectory, UsernameCache usernameCache,
+      int checksPerHour, double refreshThreshold) {
+    this.googleDirectory = googleDirectory;
+    this.usernameCache = usernameCache;
+    this.checksPerHour = checksPerHour;
+    this.refreshThreshold = refreshThreshold;
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, THREAD_NAME);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    registerGauges();
+  }
+
+  private Counter createChecksCounter(String sample, String result) {
+    return MetricsRegistry.getDefault().counter("provisioning_cache_audit_checks_total",
+        "Cached and available usernames checked against the Google Directory.", "sample", sample,
+        "result", result);
+  }
+
+  private void registerGauges() {
+    MetricsRegistry registry = MetricsRegistry.getDefault();
+    registry.gauge("provisioning_cache_audit_false_positive_ratio",
+        "Fraction of the sampled cached usernames that don't exist in the Google Directory since"
+            + " the last refresh.", new Gauge() {
+          @Override
+          public double getValue() {
+            return getFalsePositiveRate();
+          }
+        });
+    registry.gauge("provisioning_cache_audit_false_negative_ratio",
+        "Fraction of the sampled available usernames that exist in the Google Directory since the"
+            + " last refresh.", new Gauge() {
+          @Override
+          public double getValue() {
+            return getFalseNegativeRate();
+          }
+        });
+    registry.gauge("provisioning_cache_audit_first_mismatch_age_seconds",
+        "Age of the username cache when the audit found its first mismatch after the last refresh,"
+            + " -1 if none was found.", new Gauge() {
+          @Override
+          public double getValue() {
+            return getFirstMismatchAge();
+          }
+        });
+  }
+
+  /**
+   * Starts checking the cache in the background.
+   */
+  public void start() {
+    long periodInMillis = Math.max(MILLIS_PER_HOUR / checksPerHour, 1);
+    scheduler.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        try {
+          audit();
+        } catch (Exception e) {
+          failedChecks.inc();
+          logger.log(Level.FINE, "Unable to audit the username cache.", e);
+        }
+      }
+    }, periodInMillis, periodInMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Checks one sample, alternating between cached and available usernames. Does nothing if the
+   * cache is not ready or there is nothing to sample.
+   *
+   * @throws IOException When the Google Directory couldn't be reached.
+   * @throws Exception When the cache couldn't be read or updated.
+   */
+  void audit() throws IOException, Exception {
+    if (!usernameCache.isReady()) {
+      return;
+    }
+    boolean checkCached = checkCount++ % 2 == 0;
+    long refreshTime = usernameCache.getLastRefreshTime();
+    String username = checkCached ? usernameCache.sampleCachedUsername(random)
+        : usernameCache.sampleAvailableUsername(random);
+    if (username == null) {
+      return;
+    }
+    boolean exists = googleDirectory.verifyExists(username);
+    // The cache could have been updated during the lookup, so the result is compared with its
+    // current content.
+    boolean cached = usernameCache.exists(username);
+    record(username, checkCached, exists, cached, refreshTime);
+  }
+
+  /**
+   * Records the result of a check and fixes the cache if it didn't match.
+   */
+  private synchronized void record(String username, boolean checkCached, boolean exists,
+      boolean cached, long refreshTime) throws Exception {
+    resetIfRefreshed();
+    if (refreshTime != auditedRefreshTime) {
+      // The cache was refreshed during the check.
+      return;
+    }
+    if (checkCached) {
+      cachedChecks++;
+    } else {
+      availableChecks++;
+    }
+    if (exists == cached) {
+      (checkCached ? cachedMatches : availableMatches).inc();
+      return;
+    }
+    if (checkCached) {
+      cachedMismatches.inc();
+      falsePositives++;
+    } else {
+      availableMismatches.inc();
+      falseNegatives++;
+    }
+    if (cached) {
+      usernameCache.remove(username);
+    } else {
+      usernameCache.add(username);
+    }
+    logger.log(Level.INFO, "The username cache had " + username + " as "
+        + (cached ? "taken" : "available") + ". Fixed it.");
+    if (firstMismatchAge < 0) {
+      firstMismatchAge = usernameCache.getAgeInSeconds();
+    }
+    maybeRefresh();
+  }
+
+  /**
+   * Starts an early refresh if the drift reached the threshold.
+   */
+  private void maybeRefresh() {
+    int checks = cachedChecks + availableChecks;
+    if (refreshThreshold <= 0 || refreshRequested || checks < MIN_CHECKS_FOR_REFRESH) {
+      return;
+    }
+    double driftRate = (double) (falsePositives + falseNegatives) / checks;
+    if (driftRate >= refreshThreshold && usernameCache.refreshNow()) {
+      refreshRequested = true;
+      earlyRefreshes.inc();
+      logger.log(Level.INFO, "Refreshing the username cache early. " + (int) (driftRate * 100)
+          + "% of the audited usernames didn't match the Google Directory.");
+    }
+  }
+
+  /**
+   * Clears the results when the cache was refreshed since they were collected.
+   */
+  private void resetIfRefreshed() {
+    long lastRefreshTime = usernameCache.getLastRefreshTime();
+    if (lastRefreshTime == auditedRefreshTime) {
+      return;
+    }
+    auditedRefreshTime = lastRefreshTime;
+    cachedChecks = 0;
+    falsePositives = 0;
+    availableChecks = 0;
+    falseNegatives = 0;
+    firstMismatchAge = -1;
+    refreshRequested = false;
+  }
+
+  /**
+   * @return Fraction of the sampled cached usernames that didn't exist since the last refresh.
+   */
+  public synchronized double getFalsePositiveRate() {
+    resetIfRefreshed();
+    return cachedChecks == 0 ? 0 : (double) falsePositives / cachedChecks;
+  }
+
+  /**
+   * @return Fraction of the sampled available usernames that existed since the last refresh.
+   */
+  public synchronized double getFalseNegativeRate() {
+    resetIfRefreshed();
+    return availableChecks == 0 ? 0 : (double) falseNegatives / availableChecks;
+  }
+
+  /**
+   * @return Age of the cache in seconds when the first mismatch after the last refresh was found,
+   *         or -1 if none was found.
+   */
+  public synchronized long getFirstMismatchAge() {
+    resetIfRefreshed();
+    return firstMismatchAge;
+  }
+
+  /**
+   * Stops the checks.
+   */
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.data;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Random;
+
+import apps.provisioning.server.account.data.CrawlCheckpoint;
+import apps.provisioning.server.account.data.ResumableDataSource;
+import apps.provisioning.server.account.data.StemCounterIndex;
+
+/**
+ * Local copy of the Google Directory usernames that is served by the UsernameCache. The H2 SQL
+ * database and the MVStore key-value store implement it.
+ */
+public interface CacheDataSource extends ResumableDataSource {
+
+  /**
+   * Removes a username.
+   *
+   * @param username The username to remove.
+   * @return Whether the username existed.
+   * @throws SQLException
+   */
+  public boolean remove(String username) throws SQLException;
+
+  /**
+   * Removes the given usernames. The usernames that don't exist are ignored.
+   *
+   * @param usernames The usernames to remove.
+   * @throws SQLException
+   */
+  public void removeMultiple(Collection<String> usernames) throws SQLException;
+
+  /**
+   * Adds every username to the given index.
+   *
+   * @param index The index of the counters used by the usernames.
+   * @throws SQLException
+   */
+  public void indexUsernames(StemCounterIndex index) throws SQLException;
+
+  /**
+   * Opens a cursor over the usernames in ascending order, as compared by String.compareTo. It must
+   * be closed.
+   *
+   * @return The cursor.
+   * @throws SQLException
+   */
+  public UsernameCursor openUsernameCursor() throws SQLException;
+
+  /**
+   * @return The number of usernames.
+   * @throws SQLException
+   */
+  public long getCount() throws SQLException;
+
+  /**
+   * Picks a random username.
+   *
+   * @param random The random number generator.
+   * @return A random username or null if there are none.
+   * @throws SQLException
+   */
+  public String getRandomUsername(Random random) throws SQLException;
+
+  public CrawlCheckpoint getCheckpoint() throws SQLException;
+
+  /**
+   * Deletes the checkpoint once the copy is finished, so the data source is not taken for an
+   * interrupted copy.
+   *
+   * @throws SQLException
+   */
+  public void clearCheckpoint() throws SQLException;
+
+  /**
+   * @return The name of the database.
+   */
+  public String getDatabaseName();
+
+  /**
+   * Deletes the usernames and the checkpoint.
+   *
+   * @throws Exception
+   */
+  public void reset() throws Exception;
+
+  /**
+   * Closes the data source and deletes its files.
+   *
+   * @throws Exception
+   */
+  public void dispose() throws Exception;
+
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import apps.provisioning.metrics.MetricsRegistry;
+import apps.provisioning.server.apis.GoogleDirectory;
+import apps.provisioning.server.apis.UsersPageParser;
+
+import com.google.api.services.admin.directory.model.Channel;
+
+/**
+ * Keeps the username cache up to date between refreshes with Directory API push notifications.
+ * It watches the users that are added, deleted and undeleted in the domain, applies each
+ * notification to the cache and renews the notification channels before they expire.
+ *
+ * @link https://developers.google.com/admin-sdk/directory/v1/guides/push
+ */
+public class DirectoryWatcher {
+
+  public static final String CHANNEL_ID_HEADER = "X-Goog-Channel-ID";
+  public static final String CHANNEL_TOKEN_HEADER = "X-Goog-Channel-Token";
+  public static final String RESOURCE_STATE_HEADER = "X-Goog-Resource-State";
+
+  private final Logger logger = Logger.getLogger(DirectoryWatcher.class.getName());
+  private final String[] EVENTS = {"add", "delete", "undelete"};
+  private final String DELETE_EVENT = "delete";
+  // Sent when a channel is created.
+  private final String SYNC_STATE = "sync";
+  private final String CHANNEL_TYPE = "web_hook";
+  private final String THREAD_NAME = "directory-watcher";
+  // Channels are renewed this many seconds before they expire, so there is no gap.
+  private final long RENEWAL_MARGIN_SECONDS = 600;
+  private final long RETRY_DELAY_SECONDS = 60;
+
+  private final GoogleDirectory googleDirectory;
+  private final UsernameCache usernameCache;
+  private final String address;
+  private final long channelLifetimeSeconds;
+  private final SecureRandom random = new SecureRandom();
+  private final ScheduledExecutorService scheduler;
+  // Channels that can send notifications, by id. The old channels are kept until they are stopped.
+  private final Map<String, WatchChannel> channels = new ConcurrentHashMap<String, WatchChannel>();
+
+  /**
+   * A channel created by this watcher and the token that its notifications must carry.
+   */
+  private static class WatchChannel {
+    private final Channel channel;
+    private final String token;
+    private final long expirationTime;
+
+    WatchChannel(Channel channel, String token, long expirationTime) {
+      this.channel = channel;
+      this.token = token;
+      this.expirationTime = expirationTime;
+    }
+  }
+
+  /**
+   * @param googleDirectory The Google Directory where the channels are created.
+   * @param usernameCache The cache that is updated.
+   * @param address The HTTPS URL where Google sends the notifications.
+   * @param channelLifetimeSeconds Seconds that each channel lasts before it is renewed.
+   */
+  public DirectoryWatcher(GoogleDirectory googleDirectory, UsernameCache usernameCache,
+      String address, long channelLifetimeSeconds) {
+    this.googleDirectory = googleDirectory;
+    this.usernameCache = usernameCache;
+    this.address = address;
+    this.channelLifetimeSeconds = channelLifetimeSeconds;
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, THREAD_NAME);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Creates the channels in the background and keeps renewing them.
+   */
+  public void start() {
+    scheduleRenewal(0);
+  }
+
+  private void scheduleRenewal(long delayInSeconds) {
+    if (scheduler.isShutdown()) {
+      return;
+    }
+    scheduler.schedule(new Runnable() {
+      public void run() {
+        long nextDelayInSeconds;
+        try {
+          renewChannels();
+          nextDelayInSeconds = Math.max(channelLifetimeSeconds - RENEWAL_MARGIN_SECONDS, 1);
+        } catch (Exception e) {
+          logger.log(Level.WARNING, "Unable to watch the Google Directory users. Retrying in "
+              + RETRY_DELAY_SECONDS + " seconds.", e);
+          nextDelayInSeconds = RETRY_DELAY_SECONDS;
+        }
+        scheduleRenewal(nextDelayInSeconds);
+      }
+    }, delayInSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Creates a channel for each event and then stops the channels that they replace.
+   *
+   * @throws Exception When a channel can't be created.
+   */
+  void renewChannels() throws Exception {
+    ArrayList<String> oldChannelIds = new ArrayList<String>(channels.keySet());
+    for (String event : EVENTS) {
+      createChannel(event);
+    }
+    for (String channelId : oldChannelIds) {
+      WatchChannel oldChannel = channels.remove(channelId);
+      try {
+        googleDirectory.stopChannel(oldChannel.channel);
+      } catch (Exception e) {
+        // The channel expires anyway.
+        logger.log(Level.FINE, "Unable to stop the channel " + channelId + ".", e);
+      }
+    }
+    MetricsRegistry.getDefault().counter("provisioning_directory_watch_renewals_total",
+        "Renewals of the Google Directory notification channels.").inc();
+  }
+
+  private void createChannel(String event) throws Exception {
+    String channelId = UUID.randomUUID().toString();
+    String token = new BigInteger(130, random).toString(32);
+    long expirationTime = System.currentTimeMillis() + channelLifetimeSeconds * 1000;
+    Channel channel =
+        new Channel().setId(channelId).setType(CHANNEL_TYPE).setAddress(address).setToken(token)
+            .setExpiration(expirationTime);
+    // Registered before the request, since the sync notification can arrive before the response.
+    channels.put(channelId, new WatchChannel(channel, token, expirationTime));
+    try {
+      Channel createdChannel = googleDirectory.watchUsers(event, channel);
+      channels.put(channelId, new WatchChannel(createdChannel, token, expirationTime));
+    } catch (Exception e) {
+      channels.remove(channelId);
+      throw e;
+    }
+    logger.log(Level.INFO, "Watching " + event + " events of the Google Directory users.");
+  }
+
+  /**
+   * @param channelId The X-Goog-Channel-ID header of a notification.
+   * @param token The X-Goog-Channel-Token header of a notification.
+   * @return Whether the notification comes from a live channel of this watcher.
+   */
+  public boolean isValidChannel(String channelId, String token) {
+    if (channelId == null || token == null) {
+      return false;
+    }
+    WatchChannel channel = channels.get(channelId);
+    // Compares in constant time, so the token can't be guessed from the response times.
+    return channel != null
+        && MessageDigest.isEqual(channel.token.getBytes(StandardCharsets.UTF_8),
+            token.getBytes(StandardCharsets.UTF_8))
+        && channel.expirationTime > System.currentTimeMillis();
+  }
+
+  /**
+   * Applies a notification to the username cache.
+   *
+   * @param channelId The X-Goog-Channel-ID header.
+   * @param token The X-Goog-Channel-Token header.
+   * @param resourceState The X-Goog-Resource-State header: sync or the event.
+   * @param body The user resource.
+   * @throws IllegalArgumentException When the body is not a user with a primary email. Sending
+   *         the same notification again won't help.
+   * @throws Exception When the channel is unknown or the cache can't be updated.
+   */
+  public void handleNotification(String channelId, String token, String resourceState,
+      String body) throws Exception {
+    if (!isValidChannel(channelId, token)) {
+      throw new Exception("Unknown notification channel.");
+    }
+    if (SYNC_STATE.equals(resourceState)) {
+      return;
+    }
+    if (body == null || body.isEmpty()) {
+      throw new IllegalArgumentException("The notification doesn't contain a user.");
+    }
+    String username;
+    try {
+      username =
+          UsersPageParser.parseUsername(new ByteArrayInputStream(body
+              .getBytes(StandardCharsets.UTF_8)));
+    } catch (IOException e) {
+      // The body is already in memory, so it can only fail because it is not a valid user.
+      throw new IllegalArgumentException("The notification user is not valid JSON.", e);
+    }
+    if (username == null) {
+      throw new IllegalArgumentException("The notification user doesn't have a primaryEmail.");
+    }
+    if (DELETE_EVENT.equals(resourceState)) {
+      usernameCache.remove(username);
+    } else {
+      usernameCache.add(username);
+    }
+    MetricsRegistry.getDefault().counter("provisioning_directory_notifications_total",
+        "Google Directory notifications applied to the username cache.", "event", resourceState)
+        .inc();
+  }
+
+  /**
+   * Stops renewing the channels.
+   */
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+}
@@ -15,33 +15,47 @@
 package apps.provisioning.data;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Random;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.h2.jdbcx.JdbcConnectionPool;
 import org.h2.tools.DeleteDbFiles;
 
-import apps.provisioning.server.account.data.UsernameDataSource;
+import apps.provisioning.metrics.Counter;
+import apps.provisioning.metrics.Histogram;
+import apps.provisioning.metrics.MetricsRegistry;
+import apps.provisioning.server.account.data.CrawlCheckpoint;
+import apps.provisioning.server.account.data.ResumableDataSource;
+import apps.provisioning.server.account.data.StemCounterIndex;
 
 /**
- * Adds support for caching usernames from the Google Directory using a H2 database.
+ * Adds support for caching usernames from the Google Directory using a H2 database. The progress
+ * of the copy is stored in the same database, so a copy interrupted by a restart can be resumed.
  *
  */
-public class H2DataSource implements UsernameDataSource {
+public class H2DataSource implements CacheDataSource {
 
   private final String USERNAME_TABLE = "usernames";
 
   private final String USERNAME_COLUMN_NAME = "user";
 
+  // The usernames of single lookups and updates can come from request bodies, like the cache
+  // invalidation and the notifications, so they are always bound as parameters.
   private final String USER_EXISTS_QUERY = "select 1 from " + USERNAME_TABLE + " where "
-      + USERNAME_COLUMN_NAME + " = '%s'";
+      + USERNAME_COLUMN_NAME + " = ?";
 
   private final String INSERT_SINGLE_USER_QUERY = "insert into " + USERNAME_TABLE + "("
-      + USERNAME_COLUMN_NAME + ") VALUES ('%s')";
+      + USERNAME_COLUMN_NAME + ") VALUES (?)";
+
+  private final String DELETE_USER_QUERY = "delete from " + USERNAME_TABLE + " where "
+      + USERNAME_COLUMN_NAME + " = ?";
 
   private final String INSERT_MULTIPLE_USERS_QUERY = "insert into " + USERNAME_TABLE + " ("
       + USERNAME_COLUMN_NAME + ") VALUES ";
@@ -51,8 +65,43 @@ public class H2DataSource implements UsernameDataSource {
   private final String MAYBE_CREATE_TABLE_QUERY = "create table if not exists " + USERNAME_TABLE
       + "(" + USERNAME_COLUMN_NAME + " varchar(64) primary key)";
 
+  private final String CHECKPOINT_TABLE = "crawl_checkpoint";
+
+  // The table has a single row, with id 1.
+  private final String MAYBE_CREATE_CHECKPOINT_TABLE_QUERY = "create table if not exists "
+      + CHECKPOINT_TABLE + "(id int primary key, page_token varchar(1024), row_count bigint,"
+      + " updated bigint)";
+
+  private final String SELECT_CHECKPOINT_QUERY = "select page_token, row_count, updated from "
+      + CHECKPOINT_TABLE + " where id = 1";
+
+  private final String MERGE_CHECKPOINT_QUERY = "merge into " + CHECKPOINT_TABLE
+      + "(id, page_token, row_count, updated) key(id) values (1, ?, ?, ?)";
+
+  private final String DELETE_CHECKPOINT_QUERY = "delete from " + CHECKPOINT_TABLE;
+
+  private final String COUNT_USERS_QUERY = "select count(*) from " + USERNAME_TABLE;
+
+  private final String SELECT_USERS_QUERY = "select " + USERNAME_COLUMN_NAME + " from "
+      + USERNAME_TABLE;
+
+  private final String SELECT_SORTED_USERS_QUERY = SELECT_USERS_QUERY + " order by "
+      + USERNAME_COLUMN_NAME;
+
+  private final String SELECT_USER_AT_QUERY = "select " + USERNAME_COLUMN_NAME + " from "
+      + USERNAME_TABLE + " limit 1 offset ?";
+
   private final Logger logger = Logger.getLogger(JdbcConnectionPool.class.getName());
 
+  private final Counter lookups = MetricsRegistry.getDefault().counter(
+      "provisioning_username_lookups_total", "Username availability checks per data source.",
+      "source", "h2");
+  private final Histogram lookupDuration = MetricsRegistry.getDefault().latencyHistogram(
+      "provisioning_username_lookup_duration_seconds",
+      "Duration of the username availability checks per data source.", "source", "h2");
+  private final Histogram insertDuration = MetricsRegistry.getDefault().latencyHistogram(
+      "provisioning_h2_insert_duration_seconds", "Duration of the inserts in the H2 cache.");
+
   // private JdbcConnectionPool connectionPool;
   private String databasePath;
   private String databaseName;
@@ -85,10 +134,14 @@ public class H2DataSource implements UsernameDataSource {
    */
   private void maybeCreateUsernamesTable() throws SQLException {
     executeQuery(MAYBE_CREATE_TABLE_QUERY);
+    executeQuery(MAYBE_CREATE_CHECKPOINT_TABLE_QUERY);
   }
 
   public boolean exists(String username) throws SQLException, Exception {
-    int resultCount = executeQuery(String.format(USER_EXISTS_QUERY, username));
+    long start = System.nanoTime();
+    int resultCount = executeUsernameQuery(USER_EXISTS_QUERY, username);
+    lookups.inc();
+    lookupDuration.observeSince(start);
     switch (resultCount) {
       case 0:
         return false;
@@ -102,12 +155,56 @@ public class H2DataSource implements UsernameDataSource {
   }
 
   public void insert(String username) throws SQLException, Exception {
-    int updateCount = executeQuery(String.format(INSERT_SINGLE_USER_QUERY, username));
+    long start = System.nanoTime();
+    int updateCount = executeUsernameQuery(INSERT_SINGLE_USER_QUERY, username);
+    insertDuration.observeSince(start);
     if (updateCount != 1) {
       throw new Exception("User " + username + " could not be inserted.");
     }
   }
 
+  /**
+   * Removes a username.
+   *
+   * @param username The username to remove.
+   * @return Whether the username existed.
+   * @throws SQLException
+   */
+  public boolean remove(String username) throws SQLException {
+    return executeUsernameQuery(DELETE_USER_QUERY, username) > 0;
+  }
+
+  /**
+   * Removes all the given usernames in a single batch and transaction. The usernames that don't
+   * exist are ignored.
+   *
+   * @param usernames The usernames to remove.
+   * @throws SQLException
+   */
+  public void removeMultiple(Collection<String> usernames) throws SQLException {
+    if (usernames.isEmpty()) {
+      return;
+    }
+    Connection connection = connectionPool.getConnection();
+    try {
+      connection.setAutoCommit(false);
+      PreparedStatement statement = connection.prepareStatement(DELETE_USER_QUERY);
+      for (String username : usernames) {
+        statement.setString(1, username);
+        statement.addBatch();
+      }
+      statement.executeBatch();
+      statement.close();
+      connection.commit();
+    } catch (SQLException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(true);
+      connection.close();
+    }
+  }
+
   /**
    * Inserts all the given usernames.
    *
@@ -119,17 +216,174 @@ public class H2DataSource implements UsernameDataSource {
     if (usernames.size() == 0) {
       return;
     }
-    String query = INSERT_MULTIPLE_USERS_QUERY;
+    long start = System.nanoTime();
+    int updateCount = executeQuery(createInsertMultipleQuery(usernames));
+    insertDuration.observeSince(start);
+    checkInsertedCount(usernames, updateCount);
+  }
+
+  private String createInsertMultipleQuery(ArrayList<String> usernames) {
+    StringBuilder query = new StringBuilder(INSERT_MULTIPLE_USERS_QUERY);
     for (String username : usernames) {
-      query += String.format(INSERT_MULTIPLE_USERS_QUERY_PARAM, username);
+      query.append(String.format(INSERT_MULTIPLE_USERS_QUERY_PARAM, username));
     }
-    int updateCount = executeQuery(query);
+    return query.toString();
+  }
+
+  private void checkInsertedCount(ArrayList<String> usernames, int updateCount) throws Exception {
     if (updateCount != usernames.size()) {
       throw new Exception("Issue when inserting " + usernames.size() + " users. Only "
           + updateCount + " were inserted.");
     }
   }
 
+  /**
+   * Adds every username to the given index.
+   *
+   * @param index The index of the counters used by the usernames.
+   * @throws SQLException
+   */
+  public void indexUsernames(StemCounterIndex index) throws SQLException {
+    Connection connection = connectionPool.getConnection();
+    try {
+      Statement statement = connection.createStatement();
+      ResultSet resultSet = statement.executeQuery(SELECT_USERS_QUERY);
+      while (resultSet.next()) {
+        index.add(resultSet.getString(1));
+      }
+      statement.close();
+    } finally {
+      connection.close();
+    }
+  }
+
+  public UsernameCursor openUsernameCursor() throws SQLException {
+    final Connection connection = connectionPool.getConnection();
+    try {
+      final Statement statement = connection.createStatement();
+      final ResultSet resultSet = statement.executeQuery(SELECT_SORTED_USERS_QUERY);
+      return new UsernameCursor() {
+        public String next() throws SQLException {
+          return resultSet.next() ? resultSet.getString(1) : null;
+        }
+
+        public void close() throws SQLException {
+          try {
+            statement.close();
+          } finally {
+            connection.close();
+          }
+        }
+      };
+    } catch (SQLException e) {
+      connection.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return The number of usernames.
+   * @throws SQLException
+   */
+  public long getCount() throws SQLException {
+    Connection connection = connectionPool.getConnection();
+    try {
+      ResultSet resultSet = connection.createStatement().executeQuery(COUNT_USERS_QUERY);
+      resultSet.next();
+      return resultSet.getLong(1);
+    } finally {
+      connection.close();
+    }
+  }
+
+  /**
+   * Picks a random username. The table is scanned up to the picked row, so this is meant for
+   * occasional samples, not for the request path.
+   *
+   * @param random The random number generator.
+   * @return A random username or null if there are none.
+   * @throws SQLException
+   */
+  public String getRandomUsername(Random random) throws SQLException {
+    long count = getCount();
+    if (count == 0) {
+      return null;
+    }
+    Connection connection = connectionPool.getConnection();
+    try {
+      PreparedStatement statement = connection.prepareStatement(SELECT_USER_AT_QUERY);
+      statement.setLong(1, (long) (random.nextDouble() * count));
+      ResultSet resultSet = statement.executeQuery();
+      String username = resultSet.next() ? resultSet.getString(1) : null;
+      statement.close();
+      return username;
+    } finally {
+      connection.close();
+    }
+  }
+
+  public CrawlCheckpoint getCheckpoint() throws SQLException {
+    Connection connection = connectionPool.getConnection();
+    try {
+      ResultSet resultSet = connection.createStatement().executeQuery(SELECT_CHECKPOINT_QUERY);
+      if (!resultSet.next()) {
+        return null;
+      }
+      return new CrawlCheckpoint(resultSet.getString(1), resultSet.getLong(2),
+          resultSet.getLong(3));
+    } finally {
+      connection.close();
+    }
+  }
+
+  public void insertPage(ArrayList<String> usernames, String nextPageToken) throws SQLException,
+      Exception {
+    CrawlCheckpoint checkpoint = getCheckpoint();
+    long rowCount = (checkpoint == null ? 0 : checkpoint.getRowCount()) + usernames.size();
+    long start = System.nanoTime();
+    Connection connection = connectionPool.getConnection();
+    try {
+      connection.setAutoCommit(false);
+      if (usernames.size() > 0) {
+        Statement statement = connection.createStatement();
+        checkInsertedCount(usernames,
+            statement.executeUpdate(createInsertMultipleQuery(usernames)));
+        statement.close();
+      }
+      PreparedStatement statement = connection.prepareStatement(MERGE_CHECKPOINT_QUERY);
+      statement.setString(1, nextPageToken);
+      statement.setLong(2, rowCount);
+      statement.setLong(3, System.currentTimeMillis());
+      statement.executeUpdate();
+      statement.close();
+      connection.commit();
+    } catch (Exception e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(true);
+      connection.close();
+    }
+    insertDuration.observeSince(start);
+  }
+
+  /**
+   * Deletes the checkpoint once the copy is finished, so the database is not taken for an
+   * interrupted copy.
+   *
+   * @throws SQLException
+   */
+  public void clearCheckpoint() throws SQLException {
+    executeQuery(DELETE_CHECKPOINT_QUERY);
+  }
+
+  /**
+   * @return The name of the database.
+   */
+  public String getDatabaseName() {
+    return databaseName;
+  }
+
   /**
    * Executes the given query.
    *
@@ -165,6 +419,35 @@ public class H2DataSource implements UsernameDataSource {
     return resultCount;
   }
 
+  /**
+   * Executes the given query with the username bound to its only parameter.
+   *
+   * @param query The query to execute.
+   * @param username The username.
+   * @return Returns the number of rows returned or the number of rows affected by the query.
+   * @throws SQLException
+   */
+  private int executeUsernameQuery(String query, String username) throws SQLException {
+    Connection connection = connectionPool.getConnection();
+    try {
+      PreparedStatement statement = connection.prepareStatement(query);
+      statement.setString(1, username);
+      int resultCount = 0;
+      if (statement.execute()) {
+        ResultSet resultSet = statement.getResultSet();
+        while (resultSet.next()) {
+          resultCount++;
+        }
+      } else {
+        resultCount = statement.getUpdateCount();
+      }
+      statement.close();
+      return resultCount;
+    } finally {
+      connection.close();
+    }
+  }
+
   /**
    * Deletes the current databse and creates a new one from scratch. Should be called with no active
    * connections.
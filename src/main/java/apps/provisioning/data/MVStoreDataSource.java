@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.data;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+
+import apps.provisioning.metrics.Counter;
+import apps.provisioning.metrics.Histogram;
+import apps.provisioning.metrics.MetricsRegistry;
+import apps.provisioning.server.account.data.CrawlCheckpoint;
+import apps.provisioning.server.account.data.StemCounterIndex;
+
+/**
+ * Caches the usernames in an H2 MVStore key-value store, without the SQL layer of H2DataSource.
+ * Each username is a key of a map with empty values. Reads don't take locks, so lookups don't wait
+ * for the pages that a refresh appends, and the file is compressed.
+ *
+ * Changes are committed explicitly, so the usernames of a page and the checkpoint that follows
+ * them are written together.
+ */
+public class MVStoreDataSource implements CacheDataSource {
+
+  public static final String FILE_EXTENSION = ".mvstore";
+
+  private final String USERNAMES_MAP = "usernames";
+  private final String CHECKPOINT_MAP = "crawl_checkpoint";
+  private final String PAGE_TOKEN_KEY = "page_token";
+  private final String ROW_COUNT_KEY = "row_count";
+  private final String UPDATED_KEY = "updated";
+  private final String EMPTY_VALUE = "";
+  private final Logger logger = Logger.getLogger(MVStoreDataSource.class.getName());
+  private final Counter lookups = MetricsRegistry.getDefault().counter(
+      "provisioning_username_lookups_total", "Username availability checks per data source.",
+      "source", "mvstore");
+  private final Histogram lookupDuration = MetricsRegistry.getDefault().latencyHistogram(
+      "provisioning_username_lookup_duration_seconds",
+      "Duration of the username availability checks per data source.", "source", "mvstore");
+
+  private String databaseName;
+  private String fileName;
+  private MVStore store;
+  private MVMap<String, String> usernames;
+  private MVMap<String, Object> checkpoint;
+
+  public MVStoreDataSource(String databasePath, String databaseName) {
+    this.databaseName = databaseName;
+    this.fileName = databasePath + databaseName + FILE_EXTENSION;
+    logger.log(Level.INFO, "MVStore file: " + fileName);
+    open();
+  }
+
+  private void open() {
+    store = new MVStore.Builder().fileName(fileName).compress().autoCommitDisabled().open();
+    usernames = store.openMap(USERNAMES_MAP);
+    checkpoint = store.openMap(CHECKPOINT_MAP);
+  }
+
+  public boolean exists(String username) {
+    long start = System.nanoTime();
+    boolean exists = usernames.containsKey(username);
+    lookups.inc();
+    lookupDuration.observeSince(start);
+    return exists;
+  }
+
+  public synchronized void insert(String username) throws Exception {
+    if (usernames.putIfAbsent(username, EMPTY_VALUE) != null) {
+      throw new Exception("User " + username + " could not be inserted.");
+    }
+    store.commit();
+  }
+
+  public synchronized boolean remove(String username) {
+    boolean removed = usernames.remove(username) != null;
+    store.commit();
+    return removed;
+  }
+
+  public synchronized void removeMultiple(Collection<String> usernames) {
+    for (String username : usernames) {
+      this.usernames.remove(username);
+    }
+    store.commit();
+  }
+
+  /**
+   * Inserts all the given usernames.
+   *
+   * @param usernames The usernames to be inserted.
+   * @throws Exception when some of the usernames already exist. None is inserted then.
+   */
+  public synchronized void insertMultiple(ArrayList<String> usernames) throws Exception {
+    checkNewUsernames(usernames);
+    append(usernames);
+    store.commit();
+  }
+
+  private void append(ArrayList<String> usernames) {
+    for (String username : usernames) {
+      this.usernames.put(username, EMPTY_VALUE);
+    }
+  }
+
+  /**
+   * Checks the usernames before any of them is written. The store can't roll back the changes of
+   * a failed insert: its rollback closes the maps that weren't committed yet.
+   *
+   * @throws Exception when a username is repeated or already in the map.
+   */
+  private void checkNewUsernames(ArrayList<String> usernames) throws Exception {
+    HashSet<String> newUsernames = new HashSet<String>();
+    for (String username : usernames) {
+      if (!newUsernames.add(username) || this.usernames.containsKey(username)) {
+        throw new Exception("Issue when inserting " + usernames.size() + " users. User "
+            + username + " already exists.");
+      }
+    }
+  }
+
+  public void indexUsernames(StemCounterIndex index) {
+    Iterator<String> iterator = usernames.keyIterator(null);
+    while (iterator.hasNext()) {
+      index.add(iterator.next());
+    }
+  }
+
+  public UsernameCursor openUsernameCursor() {
+    final Iterator<String> iterator = usernames.keyIterator(null);
+    return new UsernameCursor() {
+      public String next() {
+        return iterator.hasNext() ? iterator.next() : null;
+      }
+
+      public void close() {
+      }
+    };
+  }
+
+  public long getCount() {
+    return usernames.sizeAsLong();
+  }
+
+  /**
+   * Picks a random username. The map counts its keys, so this doesn't scan it.
+   */
+  public String getRandomUsername(Random random) {
+    long count = usernames.sizeAsLong();
+    if (count == 0) {
+      return null;
+    }
+    return usernames.getKey((long) (random.nextDouble() * count));
+  }
+
+  public CrawlCheckpoint getCheckpoint() {
+    Long rowCount = (Long) checkpoint.get(ROW_COUNT_KEY);
+    if (rowCount == null) {
+      return null;
+    }
+    return new CrawlCheckpoint((String) checkpoint.get(PAGE_TOKEN_KEY), rowCount,
+        (Long) checkpoint.get(UPDATED_KEY));
+  }
+
+  public synchronized void insertPage(ArrayList<String> usernames, String nextPageToken)
+      throws Exception {
+    CrawlCheckpoint previousCheckpoint = getCheckpoint();
+    long rowCount =
+        (previousCheckpoint == null ? 0 : previousCheckpoint.getRowCount()) + usernames.size();
+    checkNewUsernames(usernames);
+    append(usernames);
+    if (nextPageToken == null) {
+      checkpoint.remove(PAGE_TOKEN_KEY);
+    } else {
+      checkpoint.put(PAGE_TOKEN_KEY, nextPageToken);
+    }
+    checkpoint.put(ROW_COUNT_KEY, rowCount);
+    checkpoint.put(UPDATED_KEY, System.currentTimeMillis());
+    store.commit();
+  }
+
+  public synchronized void clearCheckpoint() {
+    checkpoint.clear();
+    store.commit();
+    // The copy is finished, so the file is compacted before it is served.
+    store.compactMoveChunks();
+  }
+
+  public String getDatabaseName() {
+    return databaseName;
+  }
+
+  /**
+   * Deletes the current file and creates a new one from scratch.
+   */
+  public synchronized void reset() throws Exception {
+    dispose();
+    open();
+  }
+
+  /**
+   * Closes the store and keeps its file, which can be opened again.
+   */
+  public synchronized void close() {
+    store.close();
+  }
+
+  /**
+   * Closes the store and deletes its file.
+   *
+   * @throws Exception if the file can't be deleted.
+   */
+  public synchronized void dispose() throws Exception {
+    store.close();
+    logger.log(Level.INFO, "Deleting MVStore file: " + fileName);
+    File file = new File(fileName);
+    if (file.exists() && !file.delete()) {
+      throw new Exception("Unable to delete the MVStore file " + fileName + ".");
+    }
+  }
+}
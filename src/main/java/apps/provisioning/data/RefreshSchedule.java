@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.data;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Decides when the username cache is refreshed. Refreshes can be limited to daily off-peak
+ * windows and spread with random jitter, and the interval between refreshes can adapt to the
+ * drift that each refresh finds.
+ */
+public class RefreshSchedule {
+
+  // Fraction of the usernames that can be out of date when the adaptive interval ends.
+  private final double TARGET_DRIFT = 0.001;
+  // The adaptive interval stays between the configured interval divided and multiplied by this.
+  private final int ADAPTIVE_RANGE = 4;
+  // Each refresh multiplies or divides the adaptive interval by this much at most.
+  private final int ADAPTIVE_STEP = 2;
+  private final String WINDOW_SEPARATOR = "-";
+  private final String TIME_SEPARATOR = ":";
+
+  private final int updateRateInSeconds;
+  private final ArrayList<int[]> windows = new ArrayList<int[]>();
+  private final long jitterInMillis;
+  private final boolean adaptive;
+  private final Random random;
+  private final TimeZone timeZone;
+  private volatile long intervalInSeconds;
+
+  /**
+   * Creates a schedule that refreshes at a fixed interval.
+   *
+   * @param updateRateInSeconds Seconds between refreshes.
+   */
+  public RefreshSchedule(int updateRateInSeconds) {
+    this(updateRateInSeconds, null, 0, false, new Random(), TimeZone.getDefault());
+  }
+
+  /**
+   * @param updateRateInSeconds Seconds between refreshes. With adaptive set, the interval starts
+   *        here and changes after each refresh.
+   * @param windows Daily windows like 01:00-05:00 (in the given time zone) when refreshes can
+   *        start, or null to start them at any time. A window can cross midnight, like
+   *        22:00-04:00.
+   * @param jitterInSeconds Maximum random delay added to each refresh.
+   * @param adaptive Whether the interval adapts to the drift found by each refresh.
+   * @param random The random number generator for the jitter.
+   * @param timeZone The time zone of the windows.
+   */
+  public RefreshSchedule(int updateRateInSeconds, String[] windows, int jitterInSeconds,
+      boolean adaptive, Random random, TimeZone timeZone) {
+    this.updateRateInSeconds = updateRateInSeconds;
+    this.intervalInSeconds = updateRateInSeconds;
+    this.jitterInMillis = jitterInSeconds * 1000L;
+    this.adaptive = adaptive;
+    this.random = random;
+    this.timeZone = timeZone;
+    if (windows != null) {
+      for (String window : windows) {
+        String[] times = window.trim().split(WINDOW_SEPARATOR);
+        this.windows.add(new int[] {parseMinuteOfDay(times[0]), parseMinuteOfDay(times[1])});
+      }
+    }
+  }
+
+  private int parseMinuteOfDay(String time) {
+    String[] hourAndMinute = time.trim().split(TIME_SEPARATOR);
+    return Integer.parseInt(hourAndMinute[0]) * 60 + Integer.parseInt(hourAndMinute[1]);
+  }
+
+  /**
+   * @return Seconds from now until the next regular refresh.
+   */
+  public long getNextRefreshDelay() {
+    return getDelay(intervalInSeconds, System.currentTimeMillis());
+  }
+
+  /**
+   * Moves a refresh that would start after the given delay to the next window, if it is outside
+   * all of them, and adds the jitter.
+   *
+   * @param delayInSeconds Seconds to wait at least.
+   * @param now Current time in milliseconds.
+   * @return Seconds to wait.
+   */
+  public long getDelay(long delayInSeconds, long now) {
+    long start = moveIntoWindow(now + delayInSeconds * 1000);
+    if (jitterInMillis > 0) {
+      long jitteredStart = start + (long) (random.nextDouble() * jitterInMillis);
+      // The jitter must not push the refresh out of its window.
+      if (isInWindow(jitteredStart)) {
+        start = jitteredStart;
+      }
+    }
+    // Rounds up, so the refresh doesn't start before the window.
+    return (start - now + 999) / 1000;
+  }
+
+  /**
+   * @return Whether a refresh can start at the given time.
+   */
+  boolean isInWindow(long time) {
+    if (windows.isEmpty()) {
+      return true;
+    }
+    int minute = getMinuteOfDay(time);
+    for (int[] window : windows) {
+      if (contains(window, minute)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean contains(int[] window, int minute) {
+    if (window[0] < window[1]) {
+      return minute >= window[0] && minute < window[1];
+    }
+    // Crosses midnight.
+    return minute >= window[0] || minute < window[1];
+  }
+
+  private int getMinuteOfDay(long time) {
+    Calendar calendar = Calendar.getInstance(timeZone);
+    calendar.setTimeInMillis(time);
+    return calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+  }
+
+  /**
+   * @return The given time if it is in a window, or the start of the next window.
+   */
+  private long moveIntoWindow(long time) {
+    if (isInWindow(time)) {
+      return time;
+    }
+    long nextStart = Long.MAX_VALUE;
+    for (int[] window : windows) {
+      Calendar start = Calendar.getInstance(timeZone);
+      start.setTimeInMillis(time);
+      start.set(Calendar.HOUR_OF_DAY, window[0] / 60);
+      start.set(Calendar.MINUTE, window[0] % 60);
+      start.set(Calendar.SECOND, 0);
+      start.set(Calendar.MILLISECOND, 0);
+      if (start.getTimeInMillis() <= time) {
+        start.add(Calendar.DAY_OF_MONTH, 1);
+      }
+      nextStart = Math.min(nextStart, start.getTimeInMillis());
+    }
+    return nextStart;
+  }
+
+  /**
+   * Adapts the interval to the usernames that changed without the cache noticing since the
+   * previous refresh. The next refresh is planned for when the estimated drift reaches 0.1% of
+   * the usernames, moving towards that interval by at most a factor of two each time so that one
+   * quiet or busy refresh doesn't swing it to a bound.
+   *
+   * @param missedChanges Usernames that are only in the copy that was served or only in the new
+   *        one, leaving out the ones that the cache was told about during the refresh.
+   * @param usernames Number of usernames in the new copy.
+   * @param secondsSincePreviousRefresh Seconds since the previous refresh finished.
+   */
+  public void recordRefresh(long missedChanges, long usernames, long secondsSincePreviousRefresh) {
+    if (!adaptive || secondsSincePreviousRefresh <= 0) {
+      return;
+    }
+    long minInterval = Math.max(updateRateInSeconds / ADAPTIVE_RANGE, 1);
+    long maxInterval = (long) updateRateInSeconds * ADAPTIVE_RANGE;
+    long targetInterval = maxInterval;
+    if (missedChanges > 0) {
+      double missedChangesPerSecond = (double) missedChanges / secondsSincePreviousRefresh;
+      targetInterval =
+          (long) (TARGET_DRIFT * Math.max(usernames, 1) / missedChangesPerSecond);
+    }
+    long interval = Math.min(Math.max(targetInterval, intervalInSeconds / ADAPTIVE_STEP),
+        intervalInSeconds * ADAPTIVE_STEP);
+    intervalInSeconds = Math.min(Math.max(interval, minInterval), maxInterval);
+  }
+
+  /**
+   * @return Seconds between regular refreshes, before windows and jitter.
+   */
+  public long getIntervalInSeconds() {
+    return intervalInSeconds;
+  }
+}
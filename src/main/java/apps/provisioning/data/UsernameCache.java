@@ -14,21 +14,37 @@
 
 package apps.provisioning.data;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import apps.provisioning.metrics.Counter;
+import apps.provisioning.metrics.Gauge;
+import apps.provisioning.metrics.Histogram;
+import apps.provisioning.metrics.MetricsRegistry;
+import apps.provisioning.server.account.data.CrawlCheckpoint;
+import apps.provisioning.server.account.data.StemCounterIndex;
 import apps.provisioning.server.account.data.UsernameDataSource;
 import apps.provisioning.server.apis.GoogleDirectory;
 
 /**
- * Contains an H2 DB and refreshes it periodically with all the user names from the Google
- * Directory.
+ * Contains an H2 DB, or an H2 MVStore, and refreshes it periodically with all the user names from
+ * the Google Directory.
  */
 public class UsernameCache implements UsernameDataSource {
 
@@ -40,18 +56,67 @@ public class UsernameCache implements UsernameDataSource {
   public static String STATUS_EMPTY = "empty";
   public static String STATUS_DISPOSED = "disposed";
 
+  public static final String SQL_ENGINE = "sql";
+  public static final String MVSTORE_ENGINE = "mvstore";
+
+  // Seconds to wait before retrying a failed refresh. It doubles with each consecutive failure,
+  // up to the update rate.
+  private final int FAILURE_RETRY_DELAY_IN_SECONDS = 60;
+  private final int MAX_RETRY_DELAY_DOUBLINGS = 10;
+  // Extensions of the H2 database files (MVStore and PageStore).
+  private final String[] SQL_FILE_EXTENSIONS = {".mv.db", ".h2.db"};
+  private final String[] MVSTORE_FILE_EXTENSIONS = {MVStoreDataSource.FILE_EXTENSION};
+  // Number of recent usernames that were reported as available, which the auditor samples.
+  private final int RECENT_AVAILABLE_USERNAMES = 256;
+
   private final ScheduledExecutorService updateScheduler = Executors
       .newSingleThreadScheduledExecutor();
+  // Guards the pending refresh, so an early refresh replaces it instead of adding a second
+  // schedule.
+  private final Object scheduleLock = new Object();
+  private ScheduledFuture<?> nextRefresh;
+  private long refreshGeneration = 0;
+  private final AtomicReferenceArray<String> recentAvailableUsernames =
+      new AtomicReferenceArray<String>(RECENT_AVAILABLE_USERNAMES);
+  private final AtomicInteger recentAvailableIndex = new AtomicInteger();
   private int initialUpdateDelayInSeconds;
   private int updateRateInSeconds;
-  private H2DataSource dataSource;
+  private RefreshSchedule refreshSchedule;
+  // Usernames that the last refresh found added or removed without notice.
+  private volatile long lastMissedChanges = 0;
+  // Counters used by the cached usernames, rebuilt with each refresh.
+  private volatile StemCounterIndex stemCounterIndex;
+  private volatile CacheDataSource dataSource;
+  // Data source of a copy that was interrupted, which the next refresh continues.
+  private CacheDataSource interruptedDataSource;
+  private String databaseEngine;
   private GoogleDirectory googleDirectory;
   private String databasePath;
   private String databaseName;
-  private String status;
-  // List that is used to store usernames that were created before the cache is
-  // ready.
-  private ArrayList<String> tempUsernames;
+  private volatile String status;
+  // Reads of the data source take the read lock. Updates, status changes, the pending changes and
+  // the replacement or disposal of the data source take the write lock, so an update never reaches
+  // a disposed data source nor gets lost between the copy and the new data source.
+  private final ReentrantReadWriteLock sourceLock = new ReentrantReadWriteLock();
+  // Last change of each username created (true) or deleted (false) while the cache is being
+  // populated, in the order they happened. They are replayed on the new copy when it is ready.
+  private final LinkedHashMap<String, Boolean> pendingChanges =
+      new LinkedHashMap<String, Boolean>();
+  // Time in milliseconds when the last refresh finished, or 0 if none has finished yet.
+  private volatile long lastRefreshTime = 0;
+  // Time in milliseconds when the last refresh failed, or 0 if none has failed yet.
+  private volatile long lastFailureTime = 0;
+  private volatile int consecutiveFailures = 0;
+  private final Histogram refreshDuration = MetricsRegistry.getDefault().latencyHistogram(
+      "provisioning_cache_refresh_duration_seconds",
+      "Duration of the username cache refreshes.");
+  private final Histogram stemIndexBuildDuration = MetricsRegistry.getDefault().latencyHistogram(
+      "provisioning_cache_stem_index_build_duration_seconds",
+      "Duration of indexing the counters of the cached usernames after each refresh.");
+  private final Counter successfulRefreshes = MetricsRegistry.getDefault().counter(
+      "provisioning_cache_refreshes_total", "Username cache refreshes.", "outcome", "success");
+  private final Counter failedRefreshes = MetricsRegistry.getDefault().counter(
+      "provisioning_cache_refreshes_total", "Username cache refreshes.", "outcome", "failure");
 
   /**
    * Initializes the cache. Populates it after initialUpdateDelayInSeconds and refreshes it every
@@ -69,16 +134,203 @@ public class UsernameCache implements UsernameDataSource {
   public UsernameCache(int initialUpdateDelayInSeconds, int updateRateInSeconds,
       String databasePath, String databaseName, GoogleDirectory googleDirectory)
       throws SQLException, Exception {
+    this(initialUpdateDelayInSeconds, new RefreshSchedule(updateRateInSeconds), databasePath,
+        databaseName, googleDirectory);
+  }
+
+  /**
+   * Initializes the cache. Populates it after initialUpdateDelayInSeconds and then refreshes it
+   * when the given schedule says.
+   *
+   * @param initialUpdateDelayInSeconds The seconds to wait for the first time the cache will be
+   *        populated.
+   * @param refreshSchedule The schedule of the refreshes.
+   * @param databasePath The path where the H2 DB will be created.
+   * @param databaseName The name of the H2 DB that will be created.
+   * @param googleDirectory The Google Directory. Used to get the user names from Google.
+   * @throws SQLException
+   * @throws Exception
+   */
+  public UsernameCache(int initialUpdateDelayInSeconds, RefreshSchedule refreshSchedule,
+      String databasePath, String databaseName, GoogleDirectory googleDirectory)
+      throws SQLException, Exception {
+    this(initialUpdateDelayInSeconds, refreshSchedule, SQL_ENGINE, databasePath, databaseName,
+        googleDirectory);
+  }
+
+  /**
+   * Initializes the cache in the given storage engine. Populates it after
+   * initialUpdateDelayInSeconds and then refreshes it when the given schedule says.
+   *
+   * @param initialUpdateDelayInSeconds The seconds to wait for the first time the cache will be
+   *        populated.
+   * @param refreshSchedule The schedule of the refreshes.
+   * @param databaseEngine SQL_ENGINE for an H2 database or MVSTORE_ENGINE for an H2 MVStore.
+   * @param databasePath The path where the database will be created.
+   * @param databaseName The name of the database that will be created.
+   * @param googleDirectory The Google Directory. Used to get the user names from Google.
+   * @throws SQLException
+   * @throws Exception
+   */
+  public UsernameCache(int initialUpdateDelayInSeconds, RefreshSchedule refreshSchedule,
+      String databaseEngine, String databasePath, String databaseName,
+      GoogleDirectory googleDirectory) throws SQLException, Exception {
     this.initialUpdateDelayInSeconds = initialUpdateDelayInSeconds;
-    this.updateRateInSeconds = updateRateInSeconds;
+    this.refreshSchedule = refreshSchedule;
+    this.updateRateInSeconds = (int) refreshSchedule.getIntervalInSeconds();
     this.googleDirectory = googleDirectory;
+    this.databaseEngine = databaseEngine;
     this.databasePath = databasePath;
     this.databaseName = databaseName;
-    this.tempUsernames = new ArrayList<String>();
     this.status = STATUS_EMPTY;
+    registerGauges();
+    interruptedDataSource = findInterruptedCopy();
     initDataSource();
   }
 
+  /**
+   * Looks for a copy of the Google Directory that was interrupted by a restart. Databases of
+   * finished copies and of stale copies are deleted.
+   *
+   * @return The data source of the most recent interrupted copy or null if there is none.
+   */
+  private CacheDataSource findInterruptedCopy() {
+    File[] files = new File(databasePath).listFiles();
+    if (files == null) {
+      return null;
+    }
+    CacheDataSource interrupted = null;
+    long interruptedTime = 0;
+    for (File file : files) {
+      String copyName = getCopyName(file.getName());
+      if (copyName == null) {
+        continue;
+      }
+      try {
+        CacheDataSource copy = createDataSource(copyName);
+        CrawlCheckpoint checkpoint = getResumableCheckpoint(copy);
+        if (checkpoint != null && checkpoint.getUpdateTime() > interruptedTime) {
+          if (interrupted != null) {
+            interrupted.dispose();
+          }
+          interrupted = copy;
+          interruptedTime = checkpoint.getUpdateTime();
+        } else {
+          copy.dispose();
+        }
+      } catch (Exception e) {
+        logger.log(Level.WARNING, "Unable to open the cache database " + copyName + ".", e);
+      }
+    }
+    if (interrupted != null) {
+      logger.log(Level.INFO, "Found an interrupted cache refresh: "
+          + interrupted.getDatabaseName());
+    }
+    return interrupted;
+  }
+
+  /**
+   * Opens or creates a database in the configured engine.
+   *
+   * @param name The name of the database.
+   * @return The data source of the database.
+   * @throws Exception
+   */
+  private CacheDataSource createDataSource(String name) throws Exception {
+    if (databaseEngine.equals(MVSTORE_ENGINE)) {
+      return new MVStoreDataSource(databasePath, name);
+    }
+    return new H2DataSource(databasePath, name);
+  }
+
+  /**
+   * @param fileName The name of a file in the database path.
+   * @return The database name of a copy made by this cache or null if the file is not one.
+   */
+  private String getCopyName(String fileName) {
+    if (!fileName.startsWith(databaseName + "(")) {
+      return null;
+    }
+    String[] extensions =
+        databaseEngine.equals(MVSTORE_ENGINE) ? MVSTORE_FILE_EXTENSIONS : SQL_FILE_EXTENSIONS;
+    for (String extension : extensions) {
+      if (fileName.endsWith(extension)) {
+        return fileName.substring(0, fileName.length() - extension.length());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Gets the checkpoint of a copy if it can be continued: it has started, it isn't older than the
+   * update rate and its page token is likely to be still valid.
+   *
+   * @param copy The data source of the copy.
+   * @return The checkpoint or null if the copy must start over.
+   * @throws SQLException
+   */
+  private CrawlCheckpoint getResumableCheckpoint(CacheDataSource copy) throws SQLException {
+    CrawlCheckpoint checkpoint = copy.getCheckpoint();
+    if (checkpoint == null
+        || System.currentTimeMillis() - checkpoint.getUpdateTime() > updateRateInSeconds * 1000L) {
+      return null;
+    }
+    return checkpoint;
+  }
+
+  /**
+   * Exposes the cache state in the metrics registry.
+   */
+  private void registerGauges() {
+    MetricsRegistry registry = MetricsRegistry.getDefault();
+    registry.gauge("provisioning_cache_ready", "Whether the username cache can be read (1) or not"
+        + " (0).", new Gauge() {
+      @Override
+      public double getValue() {
+        return isReady() ? 1 : 0;
+      }
+    });
+    registry.gauge("provisioning_cache_age_seconds",
+        "Seconds since the last username cache refresh finished, -1 if none has finished.",
+        new Gauge() {
+          @Override
+          public double getValue() {
+            return getAgeInSeconds();
+          }
+        });
+    registry.gauge("provisioning_cache_refresh_interval_seconds",
+        "Seconds between username cache refreshes, before refresh windows and jitter.",
+        new Gauge() {
+          @Override
+          public double getValue() {
+            return refreshSchedule.getIntervalInSeconds();
+          }
+        });
+    registry.gauge("provisioning_cache_refresh_missed_changes",
+        "Usernames that the last refresh found added or removed without notice.",
+        new Gauge() {
+          @Override
+          public double getValue() {
+            return lastMissedChanges;
+          }
+        });
+    registry.gauge("provisioning_cache_consecutive_refresh_failures",
+        "Username cache refreshes that failed since the last successful one.", new Gauge() {
+          @Override
+          public double getValue() {
+            return consecutiveFailures;
+          }
+        });
+    registry.gauge("provisioning_cache_last_failure_timestamp_seconds",
+        "Unix time when the last username cache refresh failed, 0 if none has failed.",
+        new Gauge() {
+          @Override
+          public double getValue() {
+            return lastFailureTime / 1000;
+          }
+        });
+  }
+
   /**
    * Initializes the cache. Populates it after initialUpdateDelayInSeconds and refreshes it every
    * updateRateInSeconds after that.
@@ -86,15 +338,82 @@ public class UsernameCache implements UsernameDataSource {
    * @throws Exception
    */
   private void initDataSource() throws Exception {
-    updateScheduler.scheduleWithFixedDelay(new Runnable() {
-      public void run() {
-        try {
-          refreshCache();
-        } catch (Exception e) {
-          throw new RuntimeException(e);
+    scheduleRefresh(initialUpdateDelayInSeconds);
+  }
+
+  /**
+   * Schedules the next refresh. A failed refresh doesn't stop the schedule: it is retried with
+   * exponential backoff and the cache keeps serving the last copy meanwhile.
+   *
+   * @param delayInSeconds Seconds to wait before the refresh.
+   */
+  private void scheduleRefresh(long delayInSeconds) {
+    synchronized (scheduleLock) {
+      if (updateScheduler.isShutdown()) {
+        return;
+      }
+      final long generation = ++refreshGeneration;
+      nextRefresh = updateScheduler.schedule(new Runnable() {
+        public void run() {
+          synchronized (scheduleLock) {
+            if (generation != refreshGeneration) {
+              // Replaced by an early refresh.
+              return;
+            }
+            nextRefresh = null;
+          }
+          runScheduledRefresh();
         }
+      }, delayInSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Refreshes the cache and schedules the next refresh.
+   */
+  private void runScheduledRefresh() {
+    long nextDelayInSeconds;
+    try {
+      refreshCache();
+      consecutiveFailures = 0;
+      nextDelayInSeconds = refreshSchedule.getNextRefreshDelay();
+    } catch (Exception e) {
+      lastFailureTime = System.currentTimeMillis();
+      consecutiveFailures++;
+      nextDelayInSeconds = getRetryDelayInSeconds(consecutiveFailures);
+      if (dataSource != null) {
+        // The old copy can be served meanwhile, so the retry waits for the refresh window.
+        nextDelayInSeconds = refreshSchedule.getDelay(nextDelayInSeconds, lastFailureTime);
       }
-    }, initialUpdateDelayInSeconds, updateRateInSeconds, TimeUnit.SECONDS);
+      logger.log(Level.SEVERE, "Unable to refresh the username cache (" + consecutiveFailures
+          + " consecutive failures). Retrying in " + nextDelayInSeconds + " seconds.", e);
+    }
+    scheduleRefresh(nextDelayInSeconds);
+  }
+
+  /**
+   * Starts a refresh now instead of waiting for the scheduled one. The regular schedule continues
+   * after it.
+   *
+   * @return Whether the refresh was started. False if a refresh is already running.
+   */
+  public boolean refreshNow() {
+    synchronized (scheduleLock) {
+      if (nextRefresh == null || !nextRefresh.cancel(false)) {
+        return false;
+      }
+      scheduleRefresh(0);
+      return true;
+    }
+  }
+
+  /**
+   * @param failures Number of consecutive failed refreshes.
+   * @return Seconds to wait before retrying.
+   */
+  long getRetryDelayInSeconds(int failures) {
+    int doublings = Math.min(failures - 1, MAX_RETRY_DELAY_DOUBLINGS);
+    return Math.min((long) FAILURE_RETRY_DELAY_IN_SECONDS << doublings, updateRateInSeconds);
   }
 
   /**
@@ -103,32 +422,298 @@ public class UsernameCache implements UsernameDataSource {
    * @throws Exception
    */
   private synchronized void refreshCache() throws Exception {
-    if (dataSource == null) {
-      this.status = STATUS_CACHING;
-    } else {
-      this.status = STATUS_REFRESHING;
+    long start = System.nanoTime();
+    try {
+      copyDirectory();
+      successfulRefreshes.inc();
+    } catch (Exception e) {
+      failedRefreshes.inc();
+      throw e;
+    } finally {
+      refreshDuration.observeSince(start);
+    }
+  }
+
+  /**
+   * Copies the Google Directory into a new data source and replaces the current one with it.
+   *
+   * @throws Exception
+   */
+  private void copyDirectory() throws Exception {
+    setStatus(dataSource == null ? STATUS_CACHING : STATUS_REFRESHING);
+    CacheDataSource newDataSource = null;
+    // Rows copied before this attempt, or -1 if it starts from scratch.
+    long resumedRowCount = -1;
+    if (interruptedDataSource != null) {
+      CrawlCheckpoint checkpoint = getResumableCheckpoint(interruptedDataSource);
+      if (checkpoint != null) {
+        newDataSource = interruptedDataSource;
+        resumedRowCount = checkpoint.getRowCount();
+      } else {
+        interruptedDataSource.dispose();
+      }
+      interruptedDataSource = null;
+    }
+    if (newDataSource == null) {
+      Date date = new Date();
+      newDataSource = createDataSource(databaseName + "(" + date.toString() + ")");
     }
-    Date date = new Date();
-    H2DataSource newDataSource =
-        new H2DataSource(databasePath, databaseName + "(" + date.toString() + ")");
     // Fill out the temporary data source while the old data source serves
     // calls.
-    googleDirectory.copyToDataSource(newDataSource);
-    // Point the old data source to the new one and dispose the old one.
-    H2DataSource oldDataSource = dataSource;
-    dataSource = newDataSource;
+    try {
+      googleDirectory.copyToDataSource(newDataSource);
+    } catch (Exception e) {
+      // Keep the copy for the next attempt if it made progress. Otherwise, for example when the
+      // page token of a resumed copy is no longer valid, the next attempt starts over.
+      CrawlCheckpoint checkpoint = newDataSource.getCheckpoint();
+      if (checkpoint != null && checkpoint.getRowCount() > resumedRowCount) {
+        interruptedDataSource = newDataSource;
+      } else {
+        newDataSource.dispose();
+      }
+      keepServingDataSource();
+      throw e;
+    }
+    newDataSource.clearCheckpoint();
+    // The read lock keeps the served copy and the pending changes still while they are compared.
+    sourceLock.readLock().lock();
+    try {
+      if (dataSource != null) {
+        recordMissedChanges(countMissedChanges(dataSource, newDataSource),
+            newDataSource.getCount());
+      }
+    } catch (SQLException e) {
+      logger.log(Level.WARNING, "Unable to compare the new copy with the served one.", e);
+    } finally {
+      sourceLock.readLock().unlock();
+    }
+    CacheDataSource oldDataSource;
+    sourceLock.writeLock().lock();
+    try {
+      if (status == STATUS_DISPOSED) {
+        newDataSource.dispose();
+        return;
+      }
+      // Apply the usernames that were created or deleted while the cache was being updated.
+      applyPendingChanges(newDataSource, false);
+      // Point the old data source to the new one. No reader is using the old one after this.
+      oldDataSource = dataSource;
+      dataSource = newDataSource;
+      this.status = STATUS_READY;
+    } finally {
+      sourceLock.writeLock().unlock();
+    }
     if (oldDataSource != null) {
       oldDataSource.dispose();
     }
-    // Insert any username that was created while the cache was being updated
-    // and is not in the cache yet.
-    for (String username : tempUsernames) {
-      if (!dataSource.exists(username)) {
-        dataSource.insert(username);
+    lastRefreshTime = System.currentTimeMillis();
+    sourceLock.readLock().lock();
+    try {
+      stemCounterIndex = dataSource == null ? null : buildStemCounterIndex(dataSource);
+    } catch (SQLException e) {
+      // The suggestions can be generated without it.
+      stemCounterIndex = null;
+      logger.log(Level.WARNING, "Unable to index the counters of the cached usernames.", e);
+    } finally {
+      sourceLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Goes back to serving the current data source, if any, after a failed refresh. The changes
+   * made during the refresh are applied to it, since the next refresh makes a new copy.
+   */
+  private void keepServingDataSource() {
+    sourceLock.writeLock().lock();
+    try {
+      if (status == STATUS_DISPOSED) {
+        return;
       }
+      if (dataSource == null) {
+        status = STATUS_EMPTY;
+        return;
+      }
+      try {
+        applyPendingChanges(dataSource, true);
+      } catch (Exception e) {
+        pendingChanges.clear();
+        logger.log(Level.WARNING, "Unable to apply the changes made during the refresh.", e);
+      }
+      status = STATUS_READY;
+    } finally {
+      sourceLock.writeLock().unlock();
     }
-    tempUsernames.clear();
-    this.status = STATUS_READY;
+  }
+
+  /**
+   * Replays the pending changes on the given data source and forgets them. Must be called with
+   * the write lock held.
+   *
+   * @param source The data source.
+   * @param served Whether the source is being served, so the stem counters are updated too.
+   * @throws Exception
+   */
+  private void applyPendingChanges(CacheDataSource source, boolean served) throws Exception {
+    for (Map.Entry<String, Boolean> change : pendingChanges.entrySet()) {
+      String username = change.getKey();
+      if (change.getValue()) {
+        if (!source.exists(username)) {
+          source.insert(username);
+        }
+      } else {
+        source.remove(username);
+      }
+      if (served) {
+        updateStemCounterIndex(username, change.getValue());
+      }
+    }
+    pendingChanges.clear();
+  }
+
+  /**
+   * Records the last change of a username while the cache is being populated. Must be called
+   * with the write lock held.
+   *
+   * @param username The username.
+   * @param created Whether it was created or deleted.
+   */
+  private void addPendingChange(String username, boolean created) {
+    // Removed first, so the map keeps the order of the last changes.
+    pendingChanges.remove(username);
+    pendingChanges.put(username, created);
+  }
+
+  /**
+   * Changes the status unless the data source was disposed.
+   */
+  private void setStatus(String newStatus) {
+    sourceLock.writeLock().lock();
+    try {
+      if (status != STATUS_DISPOSED) {
+        status = newStatus;
+      }
+    } finally {
+      sourceLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Indexes the counters used by the usernames of the given copy. The usernames added or removed
+   * while it is built may be missing from it, which only costs extra lookups.
+   */
+  private StemCounterIndex buildStemCounterIndex(CacheDataSource source) throws SQLException {
+    long start = System.nanoTime();
+    StemCounterIndex index = new StemCounterIndex();
+    source.indexUsernames(index);
+    stemIndexBuildDuration.observeSince(start);
+    logger.log(Level.INFO, "Indexed the counters of " + index.getStemCount() + " stems.");
+    return index;
+  }
+
+  /**
+   * @return The counters used by the cached usernames, or null if the cache is not ready.
+   */
+  public StemCounterIndex getStemCounterIndex() {
+    return isReady() ? stemCounterIndex : null;
+  }
+
+  /**
+   * Counts the usernames that are only in the served copy, which has all the changes that the
+   * cache was told about, or only in the new copy. Both are read in order, like in a merge. The
+   * usernames changed during the refresh are left out, because the new copy may or may not have
+   * them. Must be called with the read lock held.
+   *
+   * @return The number of usernames added or removed without notice.
+   * @throws SQLException
+   */
+  private long countMissedChanges(CacheDataSource served, CacheDataSource copy)
+      throws SQLException {
+    long missedChanges = 0;
+    UsernameCursor servedCursor = served.openUsernameCursor();
+    try {
+      UsernameCursor copiedCursor = copy.openUsernameCursor();
+      try {
+        String servedUsername = servedCursor.next();
+        String copiedUsername = copiedCursor.next();
+        while (servedUsername != null || copiedUsername != null) {
+          int comparison;
+          if (servedUsername == null) {
+            comparison = 1;
+          } else if (copiedUsername == null) {
+            comparison = -1;
+          } else {
+            comparison = servedUsername.compareTo(copiedUsername);
+          }
+          if (comparison <= 0) {
+            if (comparison < 0 && !pendingChanges.containsKey(servedUsername)) {
+              missedChanges++;
+            }
+            servedUsername = servedCursor.next();
+          }
+          if (comparison >= 0) {
+            if (comparison > 0 && !pendingChanges.containsKey(copiedUsername)) {
+              missedChanges++;
+            }
+            copiedUsername = copiedCursor.next();
+          }
+        }
+      } finally {
+        copiedCursor.close();
+      }
+    } finally {
+      servedCursor.close();
+    }
+    return missedChanges;
+  }
+
+  /**
+   * Adapts the refresh schedule to the usernames that changed without notice.
+   */
+  private void recordMissedChanges(long missedChanges, long copiedUsernames) {
+    lastMissedChanges = missedChanges;
+    long secondsSinceRefresh = (System.currentTimeMillis() - lastRefreshTime) / 1000;
+    refreshSchedule.recordRefresh(lastMissedChanges, copiedUsernames, secondsSinceRefresh);
+    logger.log(Level.INFO, "The refresh found " + lastMissedChanges
+        + " usernames changed without notice. Next refresh in about "
+        + refreshSchedule.getIntervalInSeconds() + " seconds.");
+  }
+
+  /**
+   * Checks the given usernames against the Google Directory and fixes the cache for the ones that
+   * don't match, without copying the whole directory.
+   *
+   * @param usernames The usernames to check.
+   * @return The number of usernames that were fixed.
+   * @throws IOException When the Google Directory couldn't be reached.
+   * @throws Exception When the cache couldn't be read or updated.
+   */
+  public int refreshUsernames(Collection<String> usernames) throws IOException, Exception {
+    if (!isReady()) {
+      throw new Exception("The cache can't be refreshed partially until it is populated.");
+    }
+    int fixedUsernames = 0;
+    for (String username : usernames) {
+      boolean exists = googleDirectory.verifyExists(username);
+      boolean cached;
+      sourceLock.readLock().lock();
+      try {
+        if (dataSource == null) {
+          throw new Exception("The cache was disposed.");
+        }
+        cached = dataSource.exists(username);
+      } finally {
+        sourceLock.readLock().unlock();
+      }
+      if (exists != cached) {
+        if (exists) {
+          add(username);
+        } else {
+          remove(username);
+        }
+        fixedUsernames++;
+      }
+    }
+    return fixedUsernames;
   }
 
   /**
@@ -139,6 +724,44 @@ public class UsernameCache implements UsernameDataSource {
   }
 
 
+  /**
+   * @return Seconds since the last refresh finished, or -1 if none has finished yet.
+   */
+  public long getAgeInSeconds() {
+    if (lastRefreshTime == 0) {
+      return -1;
+    }
+    return (System.currentTimeMillis() - lastRefreshTime) / 1000;
+  }
+
+  /**
+   * @return Time in milliseconds when the last refresh finished, or 0 if none has finished yet.
+   */
+  public long getLastRefreshTime() {
+    return lastRefreshTime;
+  }
+
+  /**
+   * @return Time in milliseconds when the last refresh failed, or 0 if none has failed yet.
+   */
+  public long getLastFailureTime() {
+    return lastFailureTime;
+  }
+
+  /**
+   * @return Number of refreshes that failed since the last successful one.
+   */
+  public int getConsecutiveFailures() {
+    return consecutiveFailures;
+  }
+
+  /**
+   * @return Usernames that the last refresh found added or removed without notice.
+   */
+  public long getLastMissedChanges() {
+    return lastMissedChanges;
+  }
+
   /**
    * @return The current cache status.
    */
@@ -147,27 +770,81 @@ public class UsernameCache implements UsernameDataSource {
   }
 
   public boolean exists(String username) throws SQLException, Exception {
-    if (dataSource == null) {
-      throw new Exception("Should not call exists if the data source hasn't been created");
+    boolean exists;
+    sourceLock.readLock().lock();
+    try {
+      if (dataSource == null) {
+        throw new Exception("Should not call exists if the data source hasn't been created");
+      }
+      if (this.status != STATUS_READY) {
+        if (this.status == STATUS_REFRESHING) {
+          logger.log(Level.WARNING, "Checking an out-of-date cache.");
+        } else {
+          throw new Exception("Trying to read the cache when it's not ready. Current status: "
+              + status);
+        }
+      }
+      exists = dataSource.exists(username);
+    } finally {
+      sourceLock.readLock().unlock();
     }
-    if (this.status != STATUS_READY) {
-      if (this.status == STATUS_REFRESHING) {
-        logger.log(Level.WARNING, "Checking an out-of-date cache.");
-      } else {
-        throw new Exception("Trying to read the cache when it's not ready. Current status: "
-            + status);
+    if (!exists) {
+      recentAvailableUsernames.set(
+          (recentAvailableIndex.getAndIncrement() & Integer.MAX_VALUE)
+              % RECENT_AVAILABLE_USERNAMES, username);
+    }
+    return exists;
+  }
+
+  /**
+   * Picks a random cached username.
+   *
+   * @param random The random number generator.
+   * @return A cached username or null if the cache is not ready or empty.
+   * @throws SQLException
+   */
+  public String sampleCachedUsername(Random random) throws SQLException {
+    sourceLock.readLock().lock();
+    try {
+      if (!isReady() || dataSource == null) {
+        return null;
       }
+      return dataSource.getRandomUsername(random);
+    } finally {
+      sourceLock.readLock().unlock();
     }
-    return dataSource.exists(username);
+  }
+
+  /**
+   * Picks one of the last usernames that the cache reported as available.
+   *
+   * @param random The random number generator.
+   * @return A username or null if none has been reported as available yet.
+   */
+  public String sampleAvailableUsername(Random random) {
+    int count = Math.min(recentAvailableIndex.get() & Integer.MAX_VALUE,
+        RECENT_AVAILABLE_USERNAMES);
+    if (count == 0) {
+      return null;
+    }
+    return recentAvailableUsernames.get(random.nextInt(count));
   }
 
   public void insert(String username) throws SQLException, Exception {
-    if (status != STATUS_READY) {
-      // Cache isn't ready. Insert the username in a temporary list, which will
-      // be inserted in the cache when ready.
-      tempUsernames.add(username);
-    } else {
-      dataSource.insert(username);
+    sourceLock.writeLock().lock();
+    try {
+      if (status == STATUS_DISPOSED) {
+        return;
+      }
+      if (status != STATUS_READY) {
+        // Cache isn't ready. The username will be inserted in the cache when ready.
+        addPendingChange(username, true);
+      } else {
+        dataSource.insert(username);
+        updateStemCounterIndex(username, true);
+      }
+    } finally {
+      sourceLock.writeLock().unlock();
     }
   }
 
@@ -176,17 +853,113 @@ public class UsernameCache implements UsernameDataSource {
   }
 
   /**
-   * Disposes the H2 data source.
+   * Adds a username that was created outside this service, like in the Admin Console. Unlike
+   * insert, it does nothing if the username is already cached, and while the cache is refreshed
+   * it is also added to the copy that is being served.
    *
+   * @param username The created username.
+   * @throws SQLException
    * @throws Exception
    */
-  public synchronized void disposeDataSource() throws Exception {
-    if (dataSource == null) {
+  public void add(String username) throws SQLException, Exception {
+    sourceLock.writeLock().lock();
+    try {
+      if (status == STATUS_DISPOSED) {
+        return;
+      }
+      if (status == STATUS_READY || status == STATUS_REFRESHING) {
+        if (!dataSource.exists(username)) {
+          dataSource.insert(username);
+        }
+        updateStemCounterIndex(username, true);
+      }
+      if (status != STATUS_READY) {
+        addPendingChange(username, true);
+      }
+    } finally {
+      sourceLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes a username that was deleted from the Google Directory. While the cache is populated,
+   * it is also removed when the cache is ready.
+   *
+   * @param username The deleted username.
+   * @return Whether the username was in the data source that is being served.
+   * @throws SQLException
+   */
+  public boolean remove(String username) throws SQLException {
+    sourceLock.writeLock().lock();
+    try {
+      if (status == STATUS_DISPOSED) {
+        return false;
+      }
+      boolean removed = false;
+      if (status == STATUS_READY || status == STATUS_REFRESHING) {
+        removed = dataSource.remove(username);
+        updateStemCounterIndex(username, false);
+      }
+      if (status != STATUS_READY) {
+        addPendingChange(username, false);
+      }
+      return removed;
+    } finally {
+      sourceLock.writeLock().unlock();
+    }
+  }
+
+  private void updateStemCounterIndex(String username, boolean taken) {
+    StemCounterIndex index = stemCounterIndex;
+    if (index == null) {
       return;
     }
-    dataSource.dispose();
-    this.dataSource = null;
-    this.status = STATUS_DISPOSED;
+    if (taken) {
+      index.add(username);
+    } else {
+      index.remove(username);
+    }
+  }
+
+  /**
+   * Removes usernames that were deleted from the Google Directory or that must be looked up again
+   * in it.
+   *
+   * @param usernames The usernames to remove.
+   * @throws SQLException
+   */
+  public void removeMultiple(Collection<String> usernames) throws SQLException {
+    for (String username : usernames) {
+      remove(username);
+    }
+  }
+
+  /**
+   * Stops the refreshes and disposes the data source. A refresh that is already running is not
+   * interrupted, but its copy is discarded and no other refresh is scheduled after it.
+   *
+   * @throws Exception
+   */
+  public synchronized void disposeDataSource() throws Exception {
+    synchronized (scheduleLock) {
+      updateScheduler.shutdown();
+      if (nextRefresh != null) {
+        nextRefresh.cancel(false);
+        nextRefresh = null;
+      }
+    }
+    sourceLock.writeLock().lock();
+    try {
+      if (dataSource == null) {
+        return;
+      }
+      dataSource.dispose();
+      this.dataSource = null;
+      this.status = STATUS_DISPOSED;
+      pendingChanges.clear();
+    } finally {
+      sourceLock.writeLock().unlock();
+    }
   }
 
   /**
@@ -195,6 +968,11 @@ public class UsernameCache implements UsernameDataSource {
    * @throws Exception
    */
   public synchronized void reset() throws Exception {
-    dataSource.reset();
+    sourceLock.writeLock().lock();
+    try {
+      dataSource.reset();
+    } finally {
+      sourceLock.writeLock().unlock();
+    }
   }
 }
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.data;
+
+import java.sql.SQLException;
+
+/**
+ * Reads the usernames of a CacheDataSource in ascending order, one at a time.
+ */
+public interface UsernameCursor {
+
+  /**
+   * @return The next username, or null after the last one.
+   * @throws SQLException
+   */
+  public String next() throws SQLException;
+
+  /**
+   * Releases the resources of the cursor.
+   *
+   * @throws SQLException
+   */
+  public void close() throws SQLException;
+
+}
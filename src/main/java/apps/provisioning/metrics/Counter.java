@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A value that only increases, like the number of requests.
+ */
+public class Counter implements Metric {
+
+  private final AtomicLong value = new AtomicLong();
+
+  public void inc() {
+    value.incrementAndGet();
+  }
+
+  public void inc(long amount) {
+    value.addAndGet(amount);
+  }
+
+  public long get() {
+    return value.get();
+  }
+
+  public void writeSamples(String name, String labels, Writer writer) throws IOException {
+    writer.write(name + labels + " " + value.get() + "\n");
+  }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A value that can go up and down, like the size of a table. It is read when the metrics are
+ * exported, so it doesn't cost anything in the hot paths.
+ */
+public abstract class Gauge implements Metric {
+
+  /**
+   * @return The current value.
+   */
+  public abstract double getValue();
+
+  public void writeSamples(String name, String labels, Writer writer) throws IOException {
+    writer.write(name + labels + " " + MetricsRegistry.formatValue(getValue()) + "\n");
+  }
+}
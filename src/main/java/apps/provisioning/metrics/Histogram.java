@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of values, like latencies or sizes. As in HDR histograms, the buckets are log-linear:
+ * each power of two is split into a fixed number of linear sub-buckets, so the relative error is
+ * the same for small and large values. Recording a value is lock free.
+ */
+public class Histogram implements Metric {
+
+  private final int SUB_BUCKETS = 4;
+
+  private final long[] upperBounds;
+  private final AtomicLongArray bucketCounts;
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final double unit;
+
+  /**
+   * Creates the buckets. When the powers of two are smaller than the number of sub-buckets, like
+   * for a lowestValue of 1, they get fewer sub-buckets, so the bounds are always increasing.
+   *
+   * @param lowestValue Upper bound of the first bucket.
+   * @param highestValue Values above it are counted in the +Inf bucket.
+   * @param unit Multiplier applied to the values when exported, like 1e-9 to export nanoseconds
+   *        as seconds.
+   */
+  public Histogram(long lowestValue, long highestValue, double unit) {
+    this.unit = unit;
+    long[] bounds = new long[128];
+    int size = 0;
+    long base = Math.max(1, lowestValue);
+    bounds[size++] = base;
+    while (base < highestValue && size < bounds.length - SUB_BUCKETS) {
+      for (int i = 0; i < SUB_BUCKETS; i++) {
+        long bound = base + base * (i + 1) / SUB_BUCKETS;
+        if (bound > bounds[size - 1]) {
+          bounds[size++] = bound;
+        }
+      }
+      base *= 2;
+    }
+    upperBounds = Arrays.copyOf(bounds, size);
+    bucketCounts = new AtomicLongArray(size + 1);
+  }
+
+  /**
+   * @return A histogram for durations recorded in nanoseconds, from 50 microseconds to 2 minutes,
+   *         exported in seconds.
+   */
+  public static Histogram latency() {
+    return new Histogram(50000L, 120000000000L, 1e-9);
+  }
+
+  /**
+   * @return A histogram for sizes recorded in bytes, from 64 bytes to 64 MB.
+   */
+  public static Histogram bytes() {
+    return new Histogram(64, 64L * 1024 * 1024, 1);
+  }
+
+  /**
+   * Records a value.
+   *
+   * @param value The value, in the unit of the histogram (like nanoseconds).
+   */
+  public void observe(long value) {
+    int index = Arrays.binarySearch(upperBounds, value);
+    if (index < 0) {
+      index = -index - 1;
+    }
+    bucketCounts.incrementAndGet(index);
+    count.incrementAndGet();
+    sum.addAndGet(value);
+  }
+
+  /**
+   * Records the time elapsed since the given System.nanoTime() value.
+   *
+   * @param startNanos The start time.
+   */
+  public void observeSince(long startNanos) {
+    observe(System.nanoTime() - startNanos);
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getSum() {
+    return sum.get();
+  }
+
+  public void writeSamples(String name, String labels, Writer writer) throws IOException {
+    String labelPrefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+    long cumulative = 0;
+    for (int i = 0; i < upperBounds.length; i++) {
+      cumulative += bucketCounts.get(i);
+      writer.write(name + "_bucket" + labelPrefix + "le=\""
+          + MetricsRegistry.formatValue(upperBounds[i] * unit) + "\"} " + cumulative + "\n");
+    }
+    cumulative += bucketCounts.get(upperBounds.length);
+    writer.write(name + "_bucket" + labelPrefix + "le=\"+Inf\"} " + cumulative + "\n");
+    writer.write(name + "_sum" + labels + " " + MetricsRegistry.formatValue(sum.get() * unit)
+        + "\n");
+    writer.write(name + "_count" + labels + " " + count.get() + "\n");
+  }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A metric that can be exported in the Prometheus text format.
+ */
+public interface Metric {
+
+  /**
+   * Writes the samples of the metric, without the HELP and TYPE lines.
+   *
+   * @param name The metric name.
+   * @param labels The labels already formatted, like {endpoint="suggest"}, or an empty string.
+   * @param writer Where the samples are written.
+   * @throws IOException
+   */
+  void writeSamples(String name, String labels, Writer writer) throws IOException;
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.metrics;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps the metrics of the service and exports them in the Prometheus text format. Metrics are
+ * identified by their name and labels; registering the same metric twice returns the existing
+ * one. Callers in hot paths should keep the returned metric instead of looking it up every time.
+ */
+public class MetricsRegistry {
+
+  private static final MetricsRegistry DEFAULT_REGISTRY = new MetricsRegistry();
+  private static final MathContext SAMPLE_PRECISION = new MathContext(9);
+
+  private final String COUNTER = "counter";
+  private final String GAUGE = "gauge";
+  private final String HISTOGRAM = "histogram";
+
+  /**
+   * All the metrics with the same name.
+   */
+  private class Family {
+    String type;
+    String help;
+    TreeMap<String, Metric> metrics = new TreeMap<String, Metric>();
+
+    Family(String type, String help) {
+      this.type = type;
+      this.help = help;
+    }
+  }
+
+  private TreeMap<String, Family> families = new TreeMap<String, Family>();
+
+  /**
+   * @return The registry shared by the whole service.
+   */
+  public static MetricsRegistry getDefault() {
+    return DEFAULT_REGISTRY;
+  }
+
+  /**
+   * Gets or creates a counter.
+   *
+   * @param name Metric name, like provisioning_requests_total.
+   * @param help Description of the metric.
+   * @param labels Label names and values, alternated.
+   * @return The counter.
+   */
+  public Counter counter(String name, String help, String... labels) {
+    return (Counter) register(name, help, COUNTER, labels, new Counter());
+  }
+
+  /**
+   * Gets or creates a histogram for durations in nanoseconds.
+   *
+   * @param name Metric name, like provisioning_request_duration_seconds.
+   * @param help Description of the metric.
+   * @param labels Label names and values, alternated.
+   * @return The histogram.
+   */
+  public Histogram latencyHistogram(String name, String help, String... labels) {
+    return (Histogram) register(name, help, HISTOGRAM, labels, Histogram.latency());
+  }
+
+  /**
+   * Gets or creates a histogram for sizes in bytes.
+   *
+   * @param name Metric name, like provisioning_response_bytes.
+   * @param help Description of the metric.
+   * @param labels Label names and values, alternated.
+   * @return The histogram.
+   */
+  public Histogram bytesHistogram(String name, String help, String... labels) {
+    return (Histogram) register(name, help, HISTOGRAM, labels, Histogram.bytes());
+  }
+
+  /**
+   * Registers a gauge, replacing any gauge with the same name and labels. Gauges read the state of
+   * objects that can be replaced, like the cache data source.
+   *
+   * @param name Metric name, like provisioning_locked_usernames.
+   * @param help Description of the metric.
+   * @param gauge Reads the current value.
+   * @param labels Label names and values, alternated.
+   */
+  public synchronized void gauge(String name, String help, Gauge gauge, String... labels) {
+    getFamily(name, help, GAUGE).metrics.put(formatLabels(labels), gauge);
+  }
+
+  private synchronized Metric register(String name, String help, String type, String[] labels,
+      Metric newMetric) {
+    Family family = getFamily(name, help, type);
+    String formattedLabels = formatLabels(labels);
+    Metric metric = family.metrics.get(formattedLabels);
+    if (metric == null) {
+      metric = newMetric;
+      family.metrics.put(formattedLabels, metric);
+    }
+    return metric;
+  }
+
+  private Family getFamily(String name, String help, String type) {
+    Family family = families.get(name);
+    if (family == null) {
+      family = new Family(type, help);
+      families.put(name, family);
+    } else if (!family.type.equals(type)) {
+      throw new IllegalArgumentException("Metric " + name + " is already a " + family.type + ".");
+    }
+    return family;
+  }
+
+  /**
+   * Writes all the metrics in the Prometheus text format.
+   *
+   * @param writer Where the metrics are written.
+   * @throws IOException
+   */
+  public synchronized void write(Writer writer) throws IOException {
+    for (Map.Entry<String, Family> familyEntry : families.entrySet()) {
+      String name = familyEntry.getKey();
+      Family family = familyEntry.getValue();
+      writer.write("# HELP " + name + " " + family.help + "\n");
+      writer.write("# TYPE " + name + " " + family.type + "\n");
+      for (Map.Entry<String, Metric> metricEntry : family.metrics.entrySet()) {
+        metricEntry.getValue().writeSamples(name, metricEntry.getKey(), writer);
+      }
+    }
+  }
+
+  /**
+   * @return All the metrics in the Prometheus text format.
+   */
+  public String toPrometheusText() {
+    StringWriter writer = new StringWriter();
+    try {
+      write(writer);
+    } catch (IOException e) {
+      // A StringWriter doesn't throw IOExceptions.
+      throw new IllegalStateException(e);
+    }
+    return writer.toString();
+  }
+
+  /**
+   * Removes all the metrics. Used only in testing.
+   */
+  public synchronized void clear() {
+    families.clear();
+  }
+
+  private String formatLabels(String[] labels) {
+    if (labels.length == 0) {
+      return "";
+    }
+    if (labels.length % 2 != 0) {
+      throw new IllegalArgumentException("Labels must be name and value pairs.");
+    }
+    StringBuilder formatted = new StringBuilder("{");
+    for (int i = 0; i < labels.length; i += 2) {
+      if (i > 0) {
+        formatted.append(",");
+      }
+      formatted.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append("\"");
+    }
+    return formatted.append("}").toString();
+  }
+
+  private String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  /**
+   * Formats a sample value without exponents or floating point noise, like 0.000075 instead of
+   * 7.500000000000001E-5.
+   */
+  static String formatValue(double value) {
+    if (Double.isNaN(value)) {
+      return "NaN";
+    }
+    if (Double.isInfinite(value)) {
+      return value > 0 ? "+Inf" : "-Inf";
+    }
+    return new BigDecimal(value).round(SAMPLE_PRECISION).stripTrailingZeros().toPlainString();
+  }
+}
@@ -15,9 +15,16 @@
 package apps.provisioning.server;
 
 import java.sql.SQLException;
+import java.util.Random;
+import java.util.TimeZone;
 
 import apps.provisioning.config.ConfigData;
+import apps.provisioning.data.CacheAuditor;
+import apps.provisioning.data.DirectoryWatcher;
+import apps.provisioning.data.RefreshSchedule;
 import apps.provisioning.data.UsernameCache;
+import apps.provisioning.metrics.Gauge;
+import apps.provisioning.metrics.MetricsRegistry;
 import apps.provisioning.server.account.data.UsernameDataSource;
 import apps.provisioning.server.apis.GoogleDirectory;
 
@@ -29,6 +36,9 @@ public class Context {
   private ConfigData config;
   private GoogleDirectory directory;
   private UsernameCache usernameCache;
+  private DirectoryWatcher directoryWatcher;
+  private CacheAuditor cacheAuditor;
+  private RequestExecutor requestExecutor;
   private boolean useCache = false;
   private final Integer INITIAL_UPDATE_RATE_IN_SECONDS = 0;
 
@@ -41,17 +51,70 @@ public class Context {
   public Context(String configFilePath) throws SQLException, Exception {
     config = new ConfigData(configFilePath);
     directory = new GoogleDirectory(config);
+    requestExecutor =
+        new RequestExecutor(config.getMaxConcurrentRequests(), config.getMaxQueuedRequests(),
+            config.getRequestTimeout(), config.getBulkMaxConcurrentRequests(),
+            config.getBulkMaxQueuedRequests(), config.getBulkRequestTimeout());
+    registerExecutorGauges();
     if (config.getCacheUsernames()) {
       String dbPath = config.getDbPath();
       String dbName = config.getDbName();
       Integer updateRateInSeconds = config.getCacheExpirationHours() * 3600;
+      RefreshSchedule refreshSchedule =
+          new RefreshSchedule(updateRateInSeconds, config.getRefreshWindows(),
+              config.getRefreshJitterMinutes() * 60, config.getAdaptiveRefresh(), new Random(),
+              TimeZone.getDefault());
       usernameCache =
-          new UsernameCache(INITIAL_UPDATE_RATE_IN_SECONDS, updateRateInSeconds, dbPath, dbName,
-              directory);
+          new UsernameCache(INITIAL_UPDATE_RATE_IN_SECONDS, refreshSchedule,
+              config.getDbEngine(), dbPath, dbName, directory);
       useCache = true;
+      if (config.getWatchAddress() != null) {
+        directoryWatcher =
+            new DirectoryWatcher(directory, usernameCache, config.getWatchAddress(),
+                config.getWatchChannelHours() * 3600L);
+        directoryWatcher.start();
+      }
+      if (config.getAuditChecksPerHour() > 0) {
+        cacheAuditor =
+            new CacheAuditor(directory, usernameCache, config.getAuditChecksPerHour(),
+                config.getAuditRefreshThreshold() / 100.0);
+        cacheAuditor.start();
+      }
     }
   }
 
+  /**
+   * Exposes the load of the request executor lanes in the metrics registry.
+   */
+  private void registerExecutorGauges() {
+    MetricsRegistry registry = MetricsRegistry.getDefault();
+    for (final String requestClass : new String[] {RequestExecutor.INTERACTIVE,
+        RequestExecutor.BULK}) {
+      registry.gauge("provisioning_executor_active_requests",
+          "Requests running in the request executor.", new Gauge() {
+            @Override
+            public double getValue() {
+              return requestExecutor.getActiveCount(requestClass);
+            }
+          }, "class", requestClass);
+      registry.gauge("provisioning_executor_queued_requests",
+          "Requests waiting for a thread of the request executor.", new Gauge() {
+            @Override
+            public double getValue() {
+              return requestExecutor.getQueueSize(requestClass);
+            }
+          }, "class", requestClass);
+    }
+  }
+
+  /**
+   * @return Whether the service is ready to take traffic: the Google Directory client is
+   *         authenticated and the username cache is disabled or it has been populated.
+   */
+  public boolean isReady() {
+    return directory.isReady() && (!useCache || usernameCache.isReady());
+  }
+
   /**
    * Gets the configuration object.
    *
@@ -70,6 +133,15 @@ public class Context {
     return directory;
   }
 
+  /**
+   * Gets the executor that runs the requests that call Google APIs.
+   *
+   * @return RequestExecutor object
+   */
+  public RequestExecutor getRequestExecutor() {
+    return requestExecutor;
+  }
+
   /**
    * Gets the UsernameCache object. This is exposed just for testing, use getDatasource instead.
    *
@@ -83,6 +155,24 @@ public class Context {
     return usernameCache;
   }
 
+  /**
+   * Gets the watcher that applies Google Directory notifications to the username cache.
+   *
+   * @return DirectoryWatcher object or null if notifications are not enabled.
+   */
+  public DirectoryWatcher getDirectoryWatcher() {
+    return directoryWatcher;
+  }
+
+  /**
+   * Gets the auditor that checks the username cache against the Google Directory.
+   *
+   * @return CacheAuditor object or null if the audit is disabled.
+   */
+  public CacheAuditor getCacheAuditor() {
+    return cacheAuditor;
+  }
+
   /**
    * Gets the DataSource object.
    *
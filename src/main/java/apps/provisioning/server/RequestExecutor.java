@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded thread pools that run the requests that call Google APIs, so the server threads that
+ * accept requests are not blocked while waiting for Google.
+ *
+ * Requests belong to one of two classes. Interactive requests (like a user filling out a sign-up
+ * form) and bulk requests (like a roster import) have separate threads, queues and timeouts, so
+ * the number of bulk threads bounds how many Google API calls bulk jobs make at the same time.
+ * Bulk requests also have strict lower priority: they don't start while interactive requests are
+ * waiting for a thread. Once started, both classes run concurrently, since the suggestor only
+ * serializes the locking of each suggestion.
+ */
+public class RequestExecutor {
+
+  public static final String INTERACTIVE = "interactive";
+  public static final String BULK = "bulk";
+
+  private final String INTERACTIVE_THREAD_NAME_PREFIX = "google-api-";
+  private final String BULK_THREAD_NAME_PREFIX = "google-api-bulk-";
+  private final long KEEP_ALIVE_SECONDS = 60;
+  // Bulk requests check again for waiting interactive requests after this time, in case they
+  // missed a notification.
+  private final long PRIORITY_CHECK_MILLIS = 100;
+
+  private final Object priorityLock = new Object();
+  private ThreadPoolExecutor interactiveExecutor;
+  private ThreadPoolExecutor bulkExecutor;
+  private long requestTimeout;
+  private long bulkRequestTimeout;
+
+  /**
+   * Creates the thread pools.
+   *
+   * @param maxConcurrentRequests Number of interactive requests that can run at the same time.
+   * @param maxQueuedRequests Number of interactive requests that can wait for a thread. More
+   *        requests are rejected.
+   * @param requestTimeout Seconds that an interactive request can take, including the time in the
+   *        queue.
+   * @param bulkMaxConcurrentRequests Number of bulk requests that can run at the same time.
+   * @param bulkMaxQueuedRequests Number of bulk requests that can wait for a thread.
+   * @param bulkRequestTimeout Seconds that a bulk request can take, including the time in the
+   *        queue.
+   */
+  public RequestExecutor(int maxConcurrentRequests, int maxQueuedRequests, long requestTimeout,
+      int bulkMaxConcurrentRequests, int bulkMaxQueuedRequests, long bulkRequestTimeout) {
+    this.requestTimeout = requestTimeout;
+    this.bulkRequestTimeout = bulkRequestTimeout;
+    interactiveExecutor =
+        new ThreadPoolExecutor(maxConcurrentRequests, maxConcurrentRequests, KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(maxQueuedRequests),
+            createThreadFactory(INTERACTIVE_THREAD_NAME_PREFIX)) {
+          @Override
+          protected void afterExecute(Runnable task, Throwable throwable) {
+            if (getQueue().isEmpty()) {
+              synchronized (priorityLock) {
+                priorityLock.notifyAll();
+              }
+            }
+          }
+        };
+    interactiveExecutor.allowCoreThreadTimeOut(true);
+    bulkExecutor =
+        new ThreadPoolExecutor(bulkMaxConcurrentRequests, bulkMaxConcurrentRequests,
+            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                bulkMaxQueuedRequests), createThreadFactory(BULK_THREAD_NAME_PREFIX)) {
+          @Override
+          protected void beforeExecute(Thread thread, Runnable task) {
+            waitForInteractiveRequests();
+          }
+        };
+    bulkExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Creates a single class executor.
+   *
+   * @param maxConcurrentRequests Number of requests that can run at the same time.
+   * @param maxQueuedRequests Number of requests that can wait for a thread. More requests are
+   *        rejected.
+   * @param requestTimeout Seconds that a request can take, including the time in the queue.
+   */
+  public RequestExecutor(int maxConcurrentRequests, int maxQueuedRequests, long requestTimeout) {
+    this(maxConcurrentRequests, maxQueuedRequests, requestTimeout, maxConcurrentRequests,
+        maxQueuedRequests, requestTimeout);
+  }
+
+  private ThreadFactory createThreadFactory(final String threadNamePrefix) {
+    return new ThreadFactory() {
+      private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, threadNamePrefix + threadNumber.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  /**
+   * Blocks the calling bulk thread while interactive requests are waiting for a thread.
+   */
+  private void waitForInteractiveRequests() {
+    synchronized (priorityLock) {
+      while (!interactiveExecutor.getQueue().isEmpty() && !interactiveExecutor.isShutdown()) {
+        try {
+          priorityLock.wait(PRIORITY_CHECK_MILLIS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Parses the class of a request.
+   *
+   * @param requestClass interactive, bulk or null (interactive).
+   * @return INTERACTIVE or BULK.
+   * @throws Exception If the value is not valid.
+   */
+  public static String parseRequestClass(String requestClass) throws Exception {
+    if (requestClass == null || requestClass.isEmpty()) {
+      return INTERACTIVE;
+    }
+    String value = requestClass.trim().toLowerCase();
+    if (value.equals(INTERACTIVE) || value.equals(BULK)) {
+      return value;
+    }
+    throw new Exception("The request class must be " + INTERACTIVE + " or " + BULK + ".");
+  }
+
+  /**
+   * Runs the given interactive task when a thread is available.
+   *
+   * @param task The task to run.
+   * @throws RejectedExecutionException when the queue is full or the executor is shut down.
+   */
+  public void execute(Runnable task) throws RejectedExecutionException {
+    execute(task, INTERACTIVE);
+  }
+
+  /**
+   * Runs the given task when a thread of its class is available.
+   *
+   * @param task The task to run.
+   * @param requestClass INTERACTIVE or BULK.
+   * @throws RejectedExecutionException when the queue is full or the executor is shut down.
+   */
+  public void execute(Runnable task, String requestClass) throws RejectedExecutionException {
+    getExecutor(requestClass).execute(task);
+  }
+
+  private ThreadPoolExecutor getExecutor(String requestClass) {
+    return BULK.equals(requestClass) ? bulkExecutor : interactiveExecutor;
+  }
+
+  /**
+   * @return Seconds that an interactive request can take, including the time in the queue.
+   */
+  public long getRequestTimeout() {
+    return requestTimeout;
+  }
+
+  /**
+   * @param requestClass INTERACTIVE or BULK.
+   * @return Seconds that a request of the given class can take, including the time in the queue.
+   */
+  public long getRequestTimeout(String requestClass) {
+    return BULK.equals(requestClass) ? bulkRequestTimeout : requestTimeout;
+  }
+
+  /**
+   * @return The number of interactive requests that are running.
+   */
+  public int getActiveCount() {
+    return getActiveCount(INTERACTIVE);
+  }
+
+  /**
+   * @param requestClass INTERACTIVE or BULK.
+   * @return The number of requests of the given class that are running.
+   */
+  public int getActiveCount(String requestClass) {
+    return getExecutor(requestClass).getActiveCount();
+  }
+
+  /**
+   * @return The number of interactive requests waiting for a thread.
+   */
+  public int getQueueSize() {
+    return getQueueSize(INTERACTIVE);
+  }
+
+  /**
+   * @param requestClass INTERACTIVE or BULK.
+   * @return The number of requests of the given class waiting for a thread.
+   */
+  public int getQueueSize(String requestClass) {
+    return getExecutor(requestClass).getQueue().size();
+  }
+
+  /**
+   * Stops accepting requests and interrupts the running ones.
+   */
+  public void shutdown() {
+    interactiveExecutor.shutdownNow();
+    bulkExecutor.shutdownNow();
+  }
+}
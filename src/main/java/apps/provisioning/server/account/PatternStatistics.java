@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.server.account;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import apps.provisioning.metrics.Counter;
+import apps.provisioning.metrics.MetricsRegistry;
+import apps.provisioning.util.Utils;
+
+/**
+ * Measures how often the suggestions of each pattern are available, by name frequency, so patterns
+ * that are almost always taken for common names can be skipped.
+ *
+ * The frequency of a name is how many times it has been seen recently: a name like John Smith
+ * comes back often and its first patterns are usually taken, while a rare name is likely to get its
+ * first pattern. Skipped patterns are still checked now and then, so they come back when their
+ * usernames are freed. Patterns with [#] are never skipped and the order of the rest is kept.
+ */
+public class PatternStatistics {
+
+  private final String AUTONUMERIC_PATTERN = "[#]";
+  private final int MAX_FREQUENCY_BUCKET = 3;
+  private final int MAX_NAMES = 10000;
+  // Checks of a pattern in a bucket before it can be skipped.
+  private final int MIN_CHECKS = 50;
+  // The counts are halved when they reach this value, so old checks weigh less.
+  private final int MAX_CHECKS = 1000;
+  private final double MIN_AVAILABILITY = 0.02;
+  private final double EXPLORATION_RATE = 0.05;
+
+  /**
+   * Checks and available suggestions of a pattern, by frequency bucket.
+   */
+  private class PatternCounts {
+    int[] checks = new int[MAX_FREQUENCY_BUCKET + 1];
+    int[] available = new int[MAX_FREQUENCY_BUCKET + 1];
+  }
+
+  private final HashMap<String, PatternCounts> patternCounts =
+      new HashMap<String, PatternCounts>();
+  // Recently seen names and how many times, with the least recently seen first.
+  private final LinkedHashMap<String, Integer> nameCounts =
+      new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+          return size() > MAX_NAMES;
+        }
+      };
+  private final Random random;
+  private final Counter skippedPatterns = MetricsRegistry.getDefault().counter(
+      "provisioning_skipped_patterns_total",
+      "Patterns skipped because their suggestions are rarely available for the name frequency.");
+
+  /**
+   * @param random Decides when a skipped pattern is checked anyway.
+   */
+  public PatternStatistics(Random random) {
+    this.random = random;
+  }
+
+  /**
+   * Counts a request for a name and gets its frequency bucket.
+   *
+   * @param userData The user information with the first name and last name.
+   * @return 0 for names seen for the first time, up to 3 for the most frequent names.
+   */
+  public synchronized int countName(HashMap<String, String> userData) {
+    String name =
+        Utils.replaceSpecialChars(userData.get(UsernameManager.FIRST_NAME)) + " "
+            + Utils.replaceSpecialChars(userData.get(UsernameManager.LAST_NAME));
+    Integer count = nameCounts.get(name);
+    count = count == null ? 1 : count + 1;
+    nameCounts.put(name, count);
+    // 1 time is bucket 0, 2 to 7 times bucket 1, 8 to 31 times bucket 2 and more bucket 3.
+    int bitLength = Integer.SIZE - Integer.numberOfLeadingZeros(count);
+    return Math.min(MAX_FREQUENCY_BUCKET, bitLength / 2);
+  }
+
+  /**
+   * Removes the patterns whose suggestions are rarely available for names of the given frequency.
+   *
+   * @param patterns The configured patterns, in order of preference.
+   * @param frequencyBucket The bucket returned by countName.
+   * @return The patterns to try, in the same order.
+   */
+  public synchronized String[] selectPatterns(String[] patterns, int frequencyBucket) {
+    ArrayList<String> selectedPatterns = new ArrayList<String>(patterns.length);
+    for (String pattern : patterns) {
+      if (isExhausted(pattern, frequencyBucket) && random.nextDouble() >= EXPLORATION_RATE) {
+        skippedPatterns.inc();
+      } else {
+        selectedPatterns.add(pattern);
+      }
+    }
+    return selectedPatterns.toArray(new String[selectedPatterns.size()]);
+  }
+
+  /**
+   * Records whether a suggestion of the pattern was available.
+   *
+   * @param pattern The pattern of the suggestion.
+   * @param frequencyBucket The bucket returned by countName.
+   * @param available Whether the suggestion was available.
+   */
+  public synchronized void record(String pattern, int frequencyBucket, boolean available) {
+    if (pattern.contains(AUTONUMERIC_PATTERN)) {
+      return;
+    }
+    PatternCounts counts = patternCounts.get(pattern);
+    if (counts == null) {
+      counts = new PatternCounts();
+      patternCounts.put(pattern, counts);
+    }
+    counts.checks[frequencyBucket]++;
+    if (available) {
+      counts.available[frequencyBucket]++;
+    }
+    if (counts.checks[frequencyBucket] >= MAX_CHECKS) {
+      counts.checks[frequencyBucket] /= 2;
+      counts.available[frequencyBucket] /= 2;
+    }
+  }
+
+  /**
+   * @return Whether the pattern has been checked enough times for the bucket and its suggestions
+   *         were almost never available.
+   */
+  synchronized boolean isExhausted(String pattern, int frequencyBucket) {
+    if (pattern.contains(AUTONUMERIC_PATTERN)) {
+      return false;
+    }
+    PatternCounts counts = patternCounts.get(pattern);
+    if (counts == null || counts.checks[frequencyBucket] < MIN_CHECKS) {
+      return false;
+    }
+    return counts.available[frequencyBucket] < MIN_AVAILABILITY * counts.checks[frequencyBucket];
+  }
+}
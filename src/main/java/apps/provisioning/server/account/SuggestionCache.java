@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.server.account;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Remembers the suggestions returned for a request fingerprint, so a retried suggest call returns
+ * the usernames that were already locked for it instead of locking a new set.
+ */
+public class SuggestionCache {
+
+  private final String FIELD_SEPARATOR = "\u0000";
+  private final String KEY_SEPARATOR = "\u0001";
+
+  /**
+   * Suggestions generated for a fingerprint and the time when they were generated.
+   */
+  private class SuggestionCacheEntry {
+    ArrayList<String> suggestions;
+    long timestamp;
+
+    public SuggestionCacheEntry(ArrayList<String> suggestions) {
+      this.suggestions = new ArrayList<String>(suggestions);
+      timestamp = System.currentTimeMillis();
+    }
+  }
+
+  // Entries are kept in insertion order, so the first one is always the oldest.
+  private LinkedHashMap<String, SuggestionCacheEntry> entries;
+  private long suggestedUsernamesTimeout;
+
+  /**
+   * @param suggestedUsernamesTimeout Seconds that the suggestions remain locked. Entries are not
+   *        returned after this time.
+   */
+  public SuggestionCache(long suggestedUsernamesTimeout) {
+    entries = new LinkedHashMap<String, SuggestionCacheEntry>();
+    this.suggestedUsernamesTimeout = suggestedUsernamesTimeout * 1000;
+  }
+
+  /**
+   * Builds the fingerprint of a suggest request. Field names and values are normalized so that
+   * retries with different letter case or extra spaces match.
+   *
+   * @param userData The fields filled by the user.
+   * @param idempotencyKey Optional key sent by the client. It can be null.
+   * @return The fingerprint.
+   */
+  public String fingerprint(HashMap<String, String> userData, String idempotencyKey) {
+    TreeMap<String, String> sortedData = new TreeMap<String, String>();
+    for (Map.Entry<String, String> field : userData.entrySet()) {
+      if (field.getKey() == null || field.getKey().equals(UsernameManager.PASSWORD)) {
+        continue;
+      }
+      sortedData.put(field.getKey().toLowerCase(), normalize(field.getValue()));
+    }
+    StringBuilder fingerprint = new StringBuilder();
+    if (idempotencyKey != null) {
+      fingerprint.append(idempotencyKey.trim());
+    }
+    for (Map.Entry<String, String> field : sortedData.entrySet()) {
+      fingerprint.append(FIELD_SEPARATOR).append(field.getKey()).append(KEY_SEPARATOR)
+          .append(field.getValue());
+    }
+    return fingerprint.toString();
+  }
+
+  /**
+   * Gets the suggestions stored for the given fingerprint.
+   *
+   * @param fingerprint The request fingerprint.
+   * @return A copy of the suggestions or null if there are none or they have expired.
+   */
+  public synchronized ArrayList<String> get(String fingerprint) {
+    removeExpiredEntries();
+    SuggestionCacheEntry entry = entries.get(fingerprint);
+    if (entry == null) {
+      return null;
+    }
+    return new ArrayList<String>(entry.suggestions);
+  }
+
+  /**
+   * Stores the suggestions generated for the given fingerprint.
+   *
+   * @param fingerprint The request fingerprint.
+   * @param suggestions The suggestions that were locked for the request.
+   */
+  public synchronized void put(String fingerprint, ArrayList<String> suggestions) {
+    // Removing first keeps the insertion order aligned with the timestamps.
+    entries.remove(fingerprint);
+    entries.put(fingerprint, new SuggestionCacheEntry(suggestions));
+  }
+
+  /**
+   * Removes the entry stored for the given fingerprint.
+   *
+   * @param fingerprint The request fingerprint.
+   */
+  public synchronized void remove(String fingerprint) {
+    entries.remove(fingerprint);
+  }
+
+  /**
+   * Removes every entry that contains any of the given usernames. Used when suggestions are
+   * selected or taken, so they are not returned again.
+   *
+   * @param usernames The usernames that are no longer suggested.
+   */
+  public synchronized void invalidate(Collection<String> usernames) {
+    Iterator<SuggestionCacheEntry> iterator = entries.values().iterator();
+    while (iterator.hasNext()) {
+      SuggestionCacheEntry entry = iterator.next();
+      for (String username : usernames) {
+        if (entry.suggestions.contains(username)) {
+          iterator.remove();
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return The number of stored entries.
+   */
+  public synchronized int size() {
+    removeExpiredEntries();
+    return entries.size();
+  }
+
+  /**
+   * Removes all the entries.
+   */
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Removes expired entries.
+   */
+  private void removeExpiredEntries() {
+    long now = System.currentTimeMillis();
+    Iterator<SuggestionCacheEntry> iterator = entries.values().iterator();
+    while (iterator.hasNext()) {
+      // The first entry is always the oldest one, so it stops at the first valid entry.
+      if (now - iterator.next().timestamp > suggestedUsernamesTimeout) {
+        iterator.remove();
+      } else {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Lowercases the value and collapses consecutive white spaces.
+   */
+  private String normalize(String value) {
+    if (value == null) {
+      return "";
+    }
+    return value.trim().replaceAll("\\s+", " ").toLowerCase();
+  }
+}
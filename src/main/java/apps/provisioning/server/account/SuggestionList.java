@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.server.account;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * List of username suggestions that also tells whether the generation stopped before reaching the
+ * configured number of suggestions because its time budget ran out, and whether it was replayed
+ * from a previous request.
+ */
+public class SuggestionList extends ArrayList<String> {
+
+  private static final long serialVersionUID = 1L;
+
+  private boolean partial = false;
+  private boolean replayed = false;
+
+  public SuggestionList() {
+    super();
+  }
+
+  public SuggestionList(Collection<String> suggestions) {
+    super(suggestions);
+  }
+
+  /**
+   * @return Whether the time budget ran out before all the suggestions were generated.
+   */
+  public boolean isPartial() {
+    return partial;
+  }
+
+  /**
+   * Sets whether the time budget ran out before all the suggestions were generated.
+   *
+   * @param partial The partial value.
+   */
+  public void setPartial(boolean partial) {
+    this.partial = partial;
+  }
+
+  /**
+   * @return Whether the suggestions were generated for a previous request with the same key.
+   */
+  public boolean isReplayed() {
+    return replayed;
+  }
+
+  /**
+   * Sets whether the suggestions were generated for a previous request with the same key.
+   *
+   * @param replayed The replayed value.
+   */
+  public void setReplayed(boolean replayed) {
+    this.replayed = replayed;
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.server.account;
+
+/**
+ * Receives each username suggestion as soon as it is locked, before the rest of the suggestions
+ * are generated.
+ */
+public interface SuggestionListener {
+
+  /**
+   * Called when a suggestion has been found available and locked.
+   *
+   * @param suggestion The locked username.
+   * @throws Exception to stop generating suggestions.
+   */
+  public void onSuggestion(String suggestion) throws Exception;
+
+}
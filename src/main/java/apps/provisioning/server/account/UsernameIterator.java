@@ -21,6 +21,7 @@ import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import apps.provisioning.server.account.data.StemCounterIndex;
 import apps.provisioning.util.Utils;
 
 /**
@@ -46,6 +47,7 @@ public class UsernameIterator implements Iterator<String> {
   private String currentPattern;
   private String nextSuggestion;
   private String[] patterns;
+  private StemCounterIndex stemCounterIndex;
 
   /**
    * Creates a UsernameIterator object.
@@ -56,6 +58,20 @@ public class UsernameIterator implements Iterator<String> {
    * @throws Exception
    */
   public UsernameIterator(String[] patterns, HashMap<String, String> userData) throws Exception {
+    this(patterns, userData, null);
+  }
+
+  /**
+   * Creates a UsernameIterator object that skips the counters used by taken usernames.
+   *
+   * @param patterns The patterns to be evaluated as a String array.
+   * @param userData The user information, the required fields are at least first name and last
+   *        name.
+   * @param stemCounterIndex The counters used by taken usernames, or null to try every counter.
+   * @throws Exception
+   */
+  public UsernameIterator(String[] patterns, HashMap<String, String> userData,
+      StemCounterIndex stemCounterIndex) throws Exception {
     if (userData == null || patterns == null) {
       throw new Exception("The patterns and userData parameters can't be set as null.");
     }
@@ -72,6 +88,7 @@ public class UsernameIterator implements Iterator<String> {
     }
     this.patterns = patterns;
     this.userData = userData;
+    this.stemCounterIndex = stemCounterIndex;
     autonumeric = 1;
     patternIndex = 0;
   }
@@ -107,6 +124,12 @@ public class UsernameIterator implements Iterator<String> {
       String key = matcher.group(0);
       String fieldName = matcher.group(2);
       if (key.equals(AUTONUMERIC_PATTERN)) {
+        if (stemCounterIndex != null && matcher.end() == suggestion.length()) {
+          // The rest of the suggestion is already evaluated, so it is the stem of the counter.
+          autonumeric =
+              stemCounterIndex.getNextFreeCounter(suggestion.substring(0, matcher.start()),
+                  autonumeric);
+        }
         fieldValue = "" + autonumeric++;
       } else {
         fieldValue = Utils.replaceSpecialChars(userData.get(fieldName));
@@ -137,6 +160,13 @@ public class UsernameIterator implements Iterator<String> {
     return suggestion;
   }
 
+  /**
+   * @return The pattern of the last returned suggestion.
+   */
+  public String getCurrentPattern() {
+    return currentPattern;
+  }
+
   /**
    * Checks if the next element is not longer than 64 characters.
    */
@@ -34,6 +34,7 @@ public class UsernameManager {
   public static final String LAST_NAME = "lastname";
   public static final String PASSWORD = "password";
   public static final String SUGGESTIONS = "suggestions";
+  public static final String USERNAMES = "usernames";
   public static final Integer MAX_USERNAME_LENGTH = 64;
   public static final Integer MAX_NAME_LENGTH = 60;
   public static final Integer MIN_PASSWORD_LENGTH = 8;
@@ -59,14 +60,62 @@ public class UsernameManager {
    * @throws Exception
    */
   public ArrayList<String> suggest(HashMap<String, String> userData) throws Exception {
+    return suggest(userData, null, context.getConfig().getSuggestTimeBudget());
+  }
+
+  /**
+   * Suggests usernames that are available. Retries that send the same idempotency key and user
+   * data get the same suggestions while they remain locked.
+   *
+   * @param userData This most contain at least firstname and lastname keys, custom fields are
+   *        optional.
+   * @param idempotencyKey Optional key sent by the client to identify retries. It can be null.
+   * @param timeBudget Milliseconds that the generation can take. When it runs out, the suggestions
+   *        found so far are returned and marked as partial. 0 means no limit.
+   * @return A list with the number of suggestions configured that are available.
+   * @throws Exception
+   */
+  public SuggestionList suggest(HashMap<String, String> userData, String idempotencyKey,
+      long timeBudget) throws Exception {
+    return suggest(userData, idempotencyKey, timeBudget, null);
+  }
+
+  /**
+   * Suggests usernames that are available, notifying each suggestion as soon as it is locked.
+   *
+   * @param userData This most contain at least firstname and lastname keys, custom fields are
+   *        optional.
+   * @param idempotencyKey Optional key sent by the client to identify retries. It can be null.
+   * @param timeBudget Milliseconds that the generation can take. When it runs out, the suggestions
+   *        found so far are returned and marked as partial. 0 means no limit.
+   * @param listener Receives every suggestion when it is locked. It can be null.
+   * @return A list with the number of suggestions configured that are available.
+   * @throws Exception
+   */
+  public SuggestionList suggest(HashMap<String, String> userData, String idempotencyKey,
+      long timeBudget, SuggestionListener listener) throws Exception {
     if (userData == null) {
       throw new NullPointerException("User data parameter can't be null.");
     }
-    ArrayList<String> suggestions = usernameSuggestor.generate(userData);
+    // The deadline starts counting before waiting for other requests to finish.
+    long deadline =
+        timeBudget > 0 ? System.currentTimeMillis() + timeBudget : UsernameSuggestor.NO_DEADLINE;
+    SuggestionList suggestions =
+        usernameSuggestor.generate(userData, idempotencyKey, deadline, listener);
     setImpression("suggest");
     return suggestions;
   }
 
+  /**
+   * Unlocks suggestions that were never sent to the client, like the ones of a request that timed
+   * out.
+   *
+   * @param suggestions The abandoned suggestions.
+   */
+  public void abandon(SuggestionList suggestions) {
+    usernameSuggestor.abandon(suggestions);
+  }
+
   /**
    * This creates users into Google Apps.
    *
@@ -100,9 +149,60 @@ public class UsernameManager {
       // This line updates the existing cache until it is refreshed.
       context.getUsernameCache().insert(username);
     }
+    usernameSuggestor.invalidate(username);
     setImpression("create");
   }
 
+  /**
+   * Deletes a Google Apps account. The username is removed from the cache right away, so it can be
+   * suggested again without waiting for the next refresh.
+   *
+   * @param username Username without domain.
+   * @return Whether the account was deleted. False if it didn't exist.
+   * @throws Exception
+   */
+  public boolean delete(String username) throws Exception {
+    boolean deleted = context.getDirectory().remove(username);
+    if (context.getConfig().getCacheUsernames()) {
+      // The account is gone even if it was deleted by someone else before.
+      context.getUsernameCache().remove(username);
+    }
+    return deleted;
+  }
+
+  /**
+   * Reserves the first available username for the given user and creates its Google Apps account
+   * in a single step. The reservation is released once the account is created or the creation
+   * fails.
+   *
+   * @param userData This must contain at least firstname, lastname and password keys, custom
+   *        fields are optional.
+   * @return The username of the created account.
+   * @throws Exception
+   */
+  public String claim(HashMap<String, String> userData) throws Exception {
+    if (userData == null) {
+      throw new NullPointerException("User data parameter can't be null.");
+    }
+    String username = usernameSuggestor.reserve(userData);
+    if (username == null) {
+      throw new Exception("There are no available usernames for the given user data.");
+    }
+    try {
+      context.getDirectory().createUser(username, userData.get(FIRST_NAME),
+          userData.get(LAST_NAME), userData.get(PASSWORD));
+      if (context.getConfig().getCacheUsernames()) {
+        // This line updates the existing cache until it is refreshed.
+        context.getUsernameCache().insert(username);
+      }
+    } finally {
+      // The account either exists now or couldn't be created, so the lock is no longer needed.
+      usernameSuggestor.release(username);
+    }
+    setImpression("claim");
+    return username;
+  }
+
   /**
    * Selects the given username from the given username suggestions. This will unlock all the
    * suggestions, except the selected one.
@@ -113,6 +213,7 @@ public class UsernameManager {
    */
   public void select(ArrayList<String> suggestions, String selectedUsername) throws Exception {
     usernameSuggestor.select(suggestions, selectedUsername);
+    setImpression("select");
   }
 
   /**
@@ -134,8 +235,7 @@ public class UsernameManager {
     for (int i = 0; i < suggestionsJson.length(); i++) {
       suggestionsList.add(suggestionsJson.getString(i));
     }
-    usernameSuggestor.select(suggestionsList, username);
-    setImpression("select");
+    select(suggestionsList, username);
   }
 
   /**
@@ -16,23 +16,114 @@ package apps.provisioning.server.account;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Random;
 
+import apps.provisioning.metrics.Counter;
+import apps.provisioning.metrics.Histogram;
+import apps.provisioning.metrics.MetricsRegistry;
 import apps.provisioning.server.Context;
+import apps.provisioning.data.UsernameCache;
 import apps.provisioning.server.account.data.LockedDirectory;
-import apps.provisioning.server.account.data.UsernameDataSource;
+import apps.provisioning.server.account.data.ResolverChain;
+import apps.provisioning.server.account.data.StemCounterIndex;
+import apps.provisioning.server.account.data.UsernameResolver;
+import apps.provisioning.server.apis.GoogleDirectory;
 
 /**
  * Suggests the configured number of usernames.
  */
 public class UsernameSuggestor {
 
+  /**
+   * Deadline value used to generate suggestions without a time budget.
+   */
+  public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+  // Generations with the same fingerprint take the same lock, so a retry waits for the request
+  // it repeats and gets its suggestions. Other generations run at the same time.
+  private final int FINGERPRINT_LOCKS = 64;
+
   private Context context;
   LockedDirectory lockedUsernames;
+  SuggestionCache suggestionCache;
+  private ResolverChain resolverChain;
+  private PatternStatistics patternStatistics;
+  private final Object[] fingerprintLocks = new Object[FINGERPRINT_LOCKS];
+  private final Histogram generationDuration = MetricsRegistry.getDefault().latencyHistogram(
+      "provisioning_suggestion_generation_duration_seconds",
+      "Time spent generating suggestions.");
+  private final Counter generatedSuggestions = MetricsRegistry.getDefault().counter(
+      "provisioning_suggestions_total", "Suggestions returned.", "origin", "generated");
+  private final Counter replayedSuggestions = MetricsRegistry.getDefault().counter(
+      "provisioning_suggestions_total", "Suggestions returned.", "origin", "replayed");
+  private final Counter partialGenerations = MetricsRegistry.getDefault().counter(
+      "provisioning_partial_suggestions_total",
+      "Suggestion lists cut short because the time budget ran out.");
+  private final Counter abandonedSuggestions = MetricsRegistry.getDefault().counter(
+      "provisioning_abandoned_suggestions_total",
+      "Suggestions unlocked because their request timed out or failed.");
 
   public UsernameSuggestor(Context context) {
     this.context = context;
+    for (int i = 0; i < fingerprintLocks.length; i++) {
+      fingerprintLocks[i] = new Object();
+    }
     lockedUsernames = new LockedDirectory(context.getConfig());
+    suggestionCache = new SuggestionCache(context.getConfig().getSuggestedUsernamesTimeout());
+    resolverChain = createResolverChain();
+    if (context.getConfig().getAdaptivePatterns()) {
+      patternStatistics = new PatternStatistics(new Random());
+    }
+  }
+
+  /**
+   * Creates the chain of tiers that tells whether a suggestion is taken, in the configured order.
+   */
+  private ResolverChain createResolverChain() {
+    ResolverChain chain = new ResolverChain();
+    for (String tier : context.getConfig().getResolverTiers()) {
+      if (tier.equals(ResolverChain.LOCKED_TIER)) {
+        chain.addTier(tier, new UsernameResolver() {
+          public Answer resolve(String username) {
+            return lockedUsernames.exists(username) ? Answer.TAKEN : Answer.UNKNOWN;
+          }
+
+          public boolean answersAvailable() {
+            return false;
+          }
+        });
+      } else if (tier.equals(ResolverChain.CACHE_TIER)) {
+        if (context.getConfig().getCacheUsernames()) {
+          chain.addTier(tier, new UsernameResolver() {
+            public Answer resolve(String username) throws Exception {
+              UsernameCache usernameCache = context.getUsernameCache();
+              if (!usernameCache.isReady()) {
+                return Answer.UNKNOWN;
+              }
+              return usernameCache.exists(username) ? Answer.TAKEN : Answer.AVAILABLE;
+            }
+
+            public boolean answersAvailable() {
+              return true;
+            }
+          });
+        }
+      } else if (tier.equals(ResolverChain.DIRECTORY_TIER)) {
+        chain.addTier(tier, new UsernameResolver() {
+          public Answer resolve(String username) throws Exception {
+            GoogleDirectory directory = context.getDirectory();
+            return directory.exists(username) ? Answer.TAKEN : Answer.AVAILABLE;
+          }
+
+          public boolean answersAvailable() {
+            return true;
+          }
+        });
+      }
+    }
+    return chain;
   }
 
   /**
@@ -43,22 +134,240 @@ public class UsernameSuggestor {
    * @return List with the username suggestions.
    * @throws Exception
    */
-  public synchronized ArrayList<String> generate(HashMap<String, String> userData) throws Exception {
-    ArrayList<String> suggestions = new ArrayList<String>();
-    String[] patterns = context.getConfig().getPatterns();
+  public ArrayList<String> generate(HashMap<String, String> userData) throws Exception {
+    return generate(userData, null, NO_DEADLINE);
+  }
+
+  /**
+   * Generates and locks available usernames. Requests with an idempotency key, or any request when
+   * idempotent suggestions are enabled, get the same suggestions while they remain locked.
+   *
+   * @param userData Contains the fields filled by the user, at least firstname and lastname
+   *        parameters must be present.
+   * @param idempotencyKey Optional key sent by the client to identify retries. It can be null.
+   * @param deadline Time in milliseconds (as in System.currentTimeMillis) after which no more
+   *        lookups are done. Use NO_DEADLINE to generate all the suggestions.
+   * @return List with the username suggestions. It is marked as partial when the deadline was
+   *         reached before generating the configured number of suggestions.
+   * @throws Exception
+   */
+  public SuggestionList generate(HashMap<String, String> userData,
+      String idempotencyKey, long deadline) throws Exception {
+    return generate(userData, idempotencyKey, deadline, null);
+  }
+
+  /**
+   * Generates and locks available usernames, notifying each one as soon as it is locked. The
+   * lookups of different requests run concurrently: only locking each suggestion is atomic.
+   *
+   * @param userData Contains the fields filled by the user, at least firstname and lastname
+   *        parameters must be present.
+   * @param idempotencyKey Optional key sent by the client to identify retries. It can be null.
+   * @param deadline Time in milliseconds (as in System.currentTimeMillis) after which no more
+   *        lookups are done. Use NO_DEADLINE to generate all the suggestions.
+   * @param listener Receives every suggestion when it is locked. It can be null.
+   * @return List with the username suggestions. It is marked as partial when the deadline was
+   *         reached before generating the configured number of suggestions.
+   * @throws Exception
+   */
+  public SuggestionList generate(HashMap<String, String> userData,
+      String idempotencyKey, long deadline, SuggestionListener listener) throws Exception {
+    String fingerprint = null;
+    if (idempotencyKey != null || context.getConfig().getIdempotentSuggestions()) {
+      fingerprint = suggestionCache.fingerprint(userData, idempotencyKey);
+      synchronized (fingerprintLocks[(fingerprint.hashCode() & Integer.MAX_VALUE)
+          % FINGERPRINT_LOCKS]) {
+        return timeGeneration(userData, fingerprint, deadline, listener);
+      }
+    }
+    return timeGeneration(userData, null, deadline, listener);
+  }
+
+  private SuggestionList timeGeneration(HashMap<String, String> userData, String fingerprint,
+      long deadline, SuggestionListener listener) throws Exception {
+    long start = System.nanoTime();
+    try {
+      return generateSuggestions(userData, fingerprint, deadline, listener);
+    } finally {
+      generationDuration.observeSince(start);
+    }
+  }
+
+  private SuggestionList generateSuggestions(HashMap<String, String> userData,
+      String fingerprint, long deadline, SuggestionListener listener) throws Exception {
+    SuggestionList suggestions = new SuggestionList();
+    if (Thread.currentThread().isInterrupted()) {
+      // The request was abandoned while waiting for the request it repeats.
+      throw new InterruptedException("The suggestions were abandoned.");
+    }
     Integer numberOfSuggestions = context.getConfig().getNumberOfSuggestions();
-    UsernameDataSource existingUsernames = context.getDatasource();
-    UsernameIterator usernameIterator = new UsernameIterator(patterns, userData);
-    while (suggestions.size() < numberOfSuggestions && usernameIterator.hasNext()) {
-      String suggestion = usernameIterator.next();
-      if (!lockedUsernames.exists(suggestion) && !existingUsernames.exists(suggestion)) {
-        suggestions.add(suggestion);
-        lockedUsernames.insert(suggestion);
+    if (fingerprint != null) {
+      ArrayList<String> previousSuggestions = suggestionCache.get(fingerprint);
+      if (previousSuggestions != null && areLocked(previousSuggestions)) {
+        if (listener != null) {
+          for (String suggestion : previousSuggestions) {
+            listener.onSuggestion(suggestion);
+          }
+        }
+        replayedSuggestions.inc(previousSuggestions.size());
+        SuggestionList replayed = new SuggestionList(previousSuggestions);
+        replayed.setReplayed(true);
+        return replayed;
       }
     }
+    int frequencyBucket = countName(userData);
+    UsernameIterator usernameIterator = createUsernameIterator(userData, frequencyBucket);
+    try {
+      while (suggestions.size() < numberOfSuggestions && usernameIterator.hasNext()) {
+        if (Thread.currentThread().isInterrupted()) {
+          // The request timed out and nobody will receive these suggestions.
+          throw new InterruptedException("The suggestions were abandoned.");
+        }
+        if (System.currentTimeMillis() >= deadline) {
+          suggestions.setPartial(true);
+          break;
+        }
+        String suggestion = usernameIterator.next();
+        // Another generation may have locked the suggestion since it was looked up.
+        if (isAvailable(suggestion, usernameIterator, frequencyBucket)
+            && lockedUsernames.insertIfAbsent(suggestion)) {
+          suggestions.add(suggestion);
+          if (listener != null) {
+            listener.onSuggestion(suggestion);
+          }
+        }
+      }
+    } catch (Exception e) {
+      // The list is never returned, so its usernames are unlocked now instead of when they expire.
+      lockedUsernames.removeMultiple(suggestions);
+      abandonedSuggestions.inc(suggestions.size());
+      throw e;
+    }
+    generatedSuggestions.inc(suggestions.size());
+    if (suggestions.isPartial()) {
+      partialGenerations.inc();
+    }
+    // Partial results are not remembered, so a retry gets a new chance to return a full list.
+    if (fingerprint != null && !suggestions.isPartial()) {
+      suggestionCache.put(fingerprint, suggestions);
+    }
     return suggestions;
   }
 
+  /**
+   * @return The frequency bucket of the name, or 0 if adaptive patterns are disabled.
+   */
+  private int countName(HashMap<String, String> userData) {
+    return patternStatistics == null ? 0 : patternStatistics.countName(userData);
+  }
+
+  /**
+   * Creates an iterator over the configured patterns, without the patterns that are rarely
+   * available for names of this frequency when adaptive patterns are enabled.
+   */
+  private UsernameIterator createUsernameIterator(HashMap<String, String> userData,
+      int frequencyBucket) throws Exception {
+    String[] patterns = context.getConfig().getPatterns();
+    if (patternStatistics != null) {
+      patterns = patternStatistics.selectPatterns(patterns, frequencyBucket);
+    }
+    return new UsernameIterator(patterns, userData, getStemCounterIndex());
+  }
+
+  /**
+   * Checks whether the last suggestion of the iterator is available, recording the result for its
+   * pattern when adaptive patterns are enabled. Locked suggestions are not recorded: a name that is
+   * requested again finds the suggestions of its earlier request locked, which says nothing about
+   * how often the pattern is taken in the Google Directory.
+   */
+  private boolean isAvailable(String suggestion, UsernameIterator usernameIterator,
+      int frequencyBucket) throws Exception {
+    String takingTier = resolverChain.getTakingTier(suggestion);
+    boolean available = takingTier == null;
+    if (patternStatistics != null && !ResolverChain.LOCKED_TIER.equals(takingTier)) {
+      patternStatistics.record(usernameIterator.getCurrentPattern(), frequencyBucket, available);
+    }
+    return available;
+  }
+
+  /**
+   * @return The counters used by the cached usernames, or null if the cache is not in use.
+   */
+  private StemCounterIndex getStemCounterIndex() throws Exception {
+    if (!context.getConfig().getCacheUsernames()) {
+      return null;
+    }
+    return context.getUsernameCache().getStemCounterIndex();
+  }
+
+  /**
+   * Checks that all the given usernames are still locked.
+   */
+  private boolean areLocked(ArrayList<String> usernames) {
+    for (String username : usernames) {
+      if (!lockedUsernames.exists(username)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Prevents the given username from being returned again for a retried request. Used when the
+   * username has been taken.
+   *
+   * @param username The taken username.
+   */
+  public void invalidate(String username) {
+    suggestionCache.invalidate(Collections.singletonList(username));
+  }
+
+  /**
+   * Reserves the first available username following the configured patterns order. The username
+   * remains locked until it is released or expires.
+   *
+   * @param userData Contains the fields filled by the user, at least firstname and lastname
+   *        parameters must be present.
+   * @return The reserved username or null if no username is available.
+   * @throws Exception
+   */
+  public String reserve(HashMap<String, String> userData) throws Exception {
+    int frequencyBucket = countName(userData);
+    UsernameIterator usernameIterator = createUsernameIterator(userData, frequencyBucket);
+    while (usernameIterator.hasNext()) {
+      String candidate = usernameIterator.next();
+      if (isAvailable(candidate, usernameIterator, frequencyBucket)
+          && lockedUsernames.insertIfAbsent(candidate)) {
+        return candidate;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Unlocks a username that was previously reserved.
+   *
+   * @param username The reserved username.
+   */
+  public void release(String username) {
+    lockedUsernames.remove(username);
+  }
+
+  /**
+   * Unlocks suggestions that were generated but never sent, like the ones of a request that timed
+   * out. Replayed suggestions are kept, because they were sent to the first request.
+   *
+   * @param suggestions The abandoned suggestions.
+   */
+  public void abandon(SuggestionList suggestions) {
+    if (suggestions.isReplayed()) {
+      return;
+    }
+    suggestionCache.invalidate(suggestions);
+    lockedUsernames.removeMultiple(suggestions);
+    abandonedSuggestions.inc(suggestions.size());
+  }
+
   /**
    * Selects the given username from the given username suggestions. This will unlock all the
    * suggestions, except the selected one.
@@ -70,6 +379,7 @@ public class UsernameSuggestor {
    */
   public void select(ArrayList<String> suggestions, String selectedUsername) throws SQLException,
   Exception {
+    suggestionCache.invalidate(suggestions);
     suggestions.remove(selectedUsername);
     lockedUsernames.removeMultiple(suggestions);
   }
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.server.account.data;
+
+/**
+ * Progress of a copy of the Google Directory: the next page to request and the usernames copied
+ * so far.
+ */
+public class CrawlCheckpoint {
+
+  private String pageToken;
+  private long rowCount;
+  private long updateTime;
+
+  /**
+   * @param pageToken The token of the next page or null if every page has been copied.
+   * @param rowCount Number of usernames copied so far.
+   * @param updateTime Time in milliseconds when the last page was copied.
+   */
+  public CrawlCheckpoint(String pageToken, long rowCount, long updateTime) {
+    this.pageToken = pageToken;
+    this.rowCount = rowCount;
+    this.updateTime = updateTime;
+  }
+
+  /**
+   * @return The token of the next page or null if every page has been copied.
+   */
+  public String getPageToken() {
+    return pageToken;
+  }
+
+  /**
+   * @return Whether every page has been copied.
+   */
+  public boolean isComplete() {
+    return pageToken == null || pageToken.isEmpty();
+  }
+
+  /**
+   * @return Number of usernames copied so far.
+   */
+  public long getRowCount() {
+    return rowCount;
+  }
+
+  /**
+   * @return Time in milliseconds when the last page was copied.
+   */
+  public long getUpdateTime() {
+    return updateTime;
+  }
+}
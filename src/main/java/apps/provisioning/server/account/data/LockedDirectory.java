@@ -21,6 +21,9 @@ import java.util.Comparator;
 import java.util.PriorityQueue;
 
 import apps.provisioning.config.ConfigData;
+import apps.provisioning.metrics.Counter;
+import apps.provisioning.metrics.Gauge;
+import apps.provisioning.metrics.MetricsRegistry;
 
 /**
  * In-memory data source that locks usernames to prevent to be taken meanwhile user is choosing one
@@ -79,15 +82,26 @@ public class LockedDirectory implements UsernameDataSource {
   // In-memory data source.
   private PriorityQueue<LockedDirectoryEntry> lockedEntries;
   private long suggestedUsernamesTimeout;
+  private final Counter lookups = MetricsRegistry.getDefault().counter(
+      "provisioning_username_lookups_total", "Username availability checks per data source.",
+      "source", "locked");
 
   public LockedDirectory(ConfigData config) {
     lockedEntries = new PriorityQueue<LockedDirectory.LockedDirectoryEntry>(
         10, new LockedDirectoryComparator());
     // Get the suggested usernames timeout and convert it to milliseconds.
     suggestedUsernamesTimeout = config.getSuggestedUsernamesTimeout() * 1000;
+    MetricsRegistry.getDefault().gauge("provisioning_locked_usernames",
+        "Usernames locked while users choose one of their suggestions.", new Gauge() {
+          @Override
+          public double getValue() {
+            return size();
+          }
+        });
   }
 
   public synchronized boolean exists(String username) {
+    lookups.inc();
     removeExpiredUsernames();
     return lockedEntries.contains(new LockedDirectoryEntry(username));
   }
@@ -99,6 +113,20 @@ public class LockedDirectory implements UsernameDataSource {
     lockedEntries.add(new LockedDirectoryEntry(username));
   }
 
+  /**
+   * Locks a username unless it is already locked. The check and the lock are atomic, so two
+   * suggestions generated at the same time never get the same username.
+   *
+   * @param username The user name.
+   * @return Whether the username was locked by this call.
+   */
+  public synchronized boolean insertIfAbsent(String username) {
+    if (exists(username)) {
+      return false;
+    }
+    lockedEntries.add(new LockedDirectoryEntry(username));
+    return true;
+  }
 
   /**
    * Removes expired usernames.
@@ -133,7 +161,7 @@ public class LockedDirectory implements UsernameDataSource {
    * @param username The user name.
    * @return Whether the user was deleted.
    */
-  public boolean remove(String username) {
+  public synchronized boolean remove(String username) {
     return lockedEntries.remove(new LockedDirectoryEntry(username));
   }
 
@@ -142,7 +170,7 @@ public class LockedDirectory implements UsernameDataSource {
    *
    * @param usernames Usernames collection.
    */
-  public void removeMultiple(Collection<String> usernames) {
+  public synchronized void removeMultiple(Collection<String> usernames) {
     for (String username : usernames) {
       lockedEntries.remove(new LockedDirectoryEntry(username));
     }
@@ -153,16 +181,23 @@ public class LockedDirectory implements UsernameDataSource {
    *
    * @param usernames ArrayList with usernames to be added.
    */
-  public void insertMultiple(ArrayList<String> usernames) {
+  public synchronized void insertMultiple(ArrayList<String> usernames) {
     for (String username : usernames) {
       lockedEntries.add(new LockedDirectoryEntry(username));
     }
   }
 
+  /**
+   * @return The number of locked usernames, including the expired ones not removed yet.
+   */
+  public synchronized int size() {
+    return lockedEntries.size();
+  }
+
   /**
    * Clears the HashMap.
    */
-  public void clear() {
+  public synchronized void clear() {
     lockedEntries.clear();
   }
 }
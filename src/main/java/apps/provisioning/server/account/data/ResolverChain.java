@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.server.account.data;
+
+import java.util.ArrayList;
+
+import apps.provisioning.metrics.Counter;
+import apps.provisioning.metrics.Histogram;
+import apps.provisioning.metrics.MetricsRegistry;
+import apps.provisioning.server.account.data.UsernameResolver.Answer;
+
+/**
+ * Ordered tiers that are asked in turn whether a username is taken, for example the locked
+ * usernames, then the username cache and then the Google Directory. The first tier that answers
+ * TAKEN ends the lookup. After a tier answers AVAILABLE, only the tiers that never answer
+ * AVAILABLE are still asked, so the locked usernames are always checked.
+ *
+ * The answers and the lookup time of each tier are exposed in the metrics registry, to compare
+ * tier orders.
+ */
+public class ResolverChain {
+
+  public static final String LOCKED_TIER = "locked";
+  public static final String CACHE_TIER = "cache";
+  public static final String DIRECTORY_TIER = "directory";
+
+  private final String ANSWERS_METRIC = "provisioning_resolver_answers_total";
+  private final String ANSWERS_HELP = "Username lookups answered by each resolver tier.";
+  private final String DURATION_METRIC = "provisioning_resolver_duration_seconds";
+  private final String DURATION_HELP = "Time spent in each resolver tier.";
+
+  /**
+   * A tier and its metrics.
+   */
+  private class Tier {
+    String name;
+    UsernameResolver resolver;
+    Histogram duration;
+    Counter taken;
+    Counter available;
+    Counter unknown;
+
+    public Tier(String name, UsernameResolver resolver) {
+      MetricsRegistry registry = MetricsRegistry.getDefault();
+      this.name = name;
+      this.resolver = resolver;
+      duration = registry.latencyHistogram(DURATION_METRIC, DURATION_HELP, "tier", name);
+      taken = registry.counter(ANSWERS_METRIC, ANSWERS_HELP, "tier", name, "answer", "taken");
+      available =
+          registry.counter(ANSWERS_METRIC, ANSWERS_HELP, "tier", name, "answer", "available");
+      unknown = registry.counter(ANSWERS_METRIC, ANSWERS_HELP, "tier", name, "answer", "unknown");
+    }
+
+    public Answer resolve(String username) throws Exception {
+      long start = System.nanoTime();
+      Answer answer;
+      try {
+        answer = resolver.resolve(username);
+      } finally {
+        duration.observeSince(start);
+      }
+      if (answer == Answer.TAKEN) {
+        taken.inc();
+      } else if (answer == Answer.AVAILABLE) {
+        available.inc();
+      } else {
+        unknown.inc();
+      }
+      return answer;
+    }
+  }
+
+  private ArrayList<Tier> tiers = new ArrayList<Tier>();
+
+  /**
+   * Adds a tier after the current ones.
+   *
+   * @param name Name of the tier in the metrics.
+   * @param resolver The tier.
+   */
+  public void addTier(String name, UsernameResolver resolver) {
+    tiers.add(new Tier(name, resolver));
+  }
+
+  /**
+   * Asks the tiers whether the username is taken.
+   *
+   * @param username The username.
+   * @return true if a tier answered TAKEN. Usernames that no tier knows are available.
+   * @throws Exception
+   */
+  public boolean exists(String username) throws Exception {
+    return getTakingTier(username) != null;
+  }
+
+  /**
+   * Asks the tiers whether the username is taken.
+   *
+   * @param username The username.
+   * @return The name of the tier that answered TAKEN, or null if the username is available.
+   * @throws Exception
+   */
+  public String getTakingTier(String username) throws Exception {
+    boolean answered = false;
+    for (Tier tier : tiers) {
+      if (answered && tier.resolver.answersAvailable()) {
+        continue;
+      }
+      Answer answer = tier.resolve(username);
+      if (answer == Answer.TAKEN) {
+        return tier.name;
+      }
+      if (answer == Answer.AVAILABLE) {
+        answered = true;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.server.account.data;
+
+import java.util.ArrayList;
+
+/**
+ * Data source that records how far a copy of the Google Directory has got, so an interrupted
+ * copy can continue from its last page instead of starting over.
+ */
+public interface ResumableDataSource extends UsernameDataSource {
+
+  /**
+   * Gets the checkpoint of the copy into this data source.
+   *
+   * @return The checkpoint or null if the copy hasn't started.
+   * @throws Exception
+   */
+  public CrawlCheckpoint getCheckpoint() throws Exception;
+
+  /**
+   * Inserts the usernames of a page and moves the checkpoint to the next page in the same
+   * transaction.
+   *
+   * @param usernames The usernames of the page.
+   * @param nextPageToken The token of the next page or null if it was the last one.
+   * @throws Exception
+   */
+  public void insertPage(ArrayList<String> usernames, String nextPageToken) throws Exception;
+}
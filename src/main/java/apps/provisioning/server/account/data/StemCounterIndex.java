@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.server.account.data;
+
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Index of the counters used by the taken usernames that end in a number, by stem. For example,
+ * carlosalvarez12 uses the counter 12 of the stem carlosalvarez and the counter 2 of the stem
+ * carlosalvarez1. Patterns that end with [#] ask it for the next free counter instead of looking
+ * up every number in the data source.
+ *
+ * The index is a hint: it can miss usernames created while it was built, so the suggestions are
+ * still checked against the data source.
+ */
+public class StemCounterIndex {
+
+  // Larger counters are not indexed, so a username like john19901231 doesn't allocate a large
+  // set. The iterator looks them up as usual.
+  private final int MAX_INDEXED_COUNTER = 10000;
+  private final int MAX_COUNTER_DIGITS = 5;
+
+  // Used counters of each stem. The clear bits below the highest one are the free gaps.
+  private final HashMap<String, BitSet> usedCounters = new HashMap<String, BitSet>();
+
+  /**
+   * Marks the counters used by a taken username.
+   *
+   * @param username The taken username.
+   */
+  public synchronized void add(String username) {
+    int digitsStart = getDigitsStart(username);
+    for (int i = digitsStart; i < username.length(); i++) {
+      int counter = parseCounter(username, i);
+      if (counter > 0) {
+        String stem = username.substring(0, i);
+        BitSet counters = usedCounters.get(stem);
+        if (counters == null) {
+          counters = new BitSet();
+          usedCounters.put(stem, counters);
+        }
+        counters.set(counter);
+      }
+    }
+  }
+
+  /**
+   * Frees the counters of a username that is available again.
+   *
+   * @param username The removed username.
+   */
+  public synchronized void remove(String username) {
+    int digitsStart = getDigitsStart(username);
+    for (int i = digitsStart; i < username.length(); i++) {
+      int counter = parseCounter(username, i);
+      if (counter > 0) {
+        String stem = username.substring(0, i);
+        BitSet counters = usedCounters.get(stem);
+        if (counters != null) {
+          counters.clear(counter);
+          if (counters.isEmpty()) {
+            usedCounters.remove(stem);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the first counter of the stem that is not used by a taken username.
+   *
+   * @param stem The username without the counter.
+   * @param from The first counter to consider.
+   * @return The first free counter larger or equal to from.
+   */
+  public synchronized int getNextFreeCounter(String stem, int from) {
+    BitSet counters = usedCounters.get(stem);
+    if (counters == null || from > MAX_INDEXED_COUNTER) {
+      return from;
+    }
+    return counters.nextClearBit(from);
+  }
+
+  /**
+   * @return The number of stems with used counters.
+   */
+  public synchronized int getStemCount() {
+    return usedCounters.size();
+  }
+
+  /**
+   * @return The index of the first digit of the trailing number of the username, limited to the
+   *         digits of the largest indexed counter.
+   */
+  private int getDigitsStart(String username) {
+    int digitsStart = username.length();
+    while (digitsStart > 0 && username.length() - digitsStart < MAX_COUNTER_DIGITS
+        && isDigit(username.charAt(digitsStart - 1))) {
+      digitsStart--;
+    }
+    return digitsStart;
+  }
+
+  private boolean isDigit(char character) {
+    return character >= '0' && character <= '9';
+  }
+
+  /**
+   * @return The counter that starts at the given index, or 0 if it isn't one that [#] generates.
+   */
+  private int parseCounter(String username, int start) {
+    if (username.charAt(start) == '0') {
+      // Counters don't have leading zeros.
+      return 0;
+    }
+    int counter = Integer.parseInt(username.substring(start));
+    return counter <= MAX_INDEXED_COUNTER ? counter : 0;
+  }
+}
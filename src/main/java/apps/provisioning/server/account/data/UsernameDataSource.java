@@ -17,6 +17,7 @@
 package apps.provisioning.server.account.data;
 
 import java.util.ArrayList;
+import java.util.Collection;
 
 /**
  * Interface that is used to retrieve a username from a data source.
@@ -45,4 +46,19 @@ public interface UsernameDataSource {
    */
   public void insertMultiple(ArrayList<String> usernames) throws Exception;
 
+  /**
+   * Removes an username from the data source.
+   *
+   * @param username
+   * @return Whether the username was in the data source.
+   */
+  public boolean remove(String username) throws Exception;
+
+  /**
+   * Removes multiple usernames from the data source.
+   *
+   * @param usernames
+   */
+  public void removeMultiple(Collection<String> usernames) throws Exception;
+
 }
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.server.account.data;
+
+/**
+ * Tier of a ResolverChain that tells whether a username is taken, or passes the lookup to the next
+ * tier when it doesn't know.
+ */
+public interface UsernameResolver {
+
+  /**
+   * Answers of a tier.
+   */
+  public enum Answer {
+    TAKEN, AVAILABLE, UNKNOWN
+  }
+
+  /**
+   * Looks for the username in the tier.
+   *
+   * @param username The username.
+   * @return TAKEN or AVAILABLE, or UNKNOWN to ask the next tier.
+   * @throws Exception
+   */
+  public Answer resolve(String username) throws Exception;
+
+  /**
+   * Tiers that only know some taken usernames, like the locked usernames, never answer AVAILABLE.
+   * They are still asked after another tier answers AVAILABLE.
+   *
+   * @return Whether the tier can answer AVAILABLE.
+   */
+  public boolean answersAvailable();
+
+}
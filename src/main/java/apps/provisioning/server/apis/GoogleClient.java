@@ -21,10 +21,27 @@ import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.Collections;
 
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
 import apps.provisioning.config.ConfigData;
 
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
@@ -36,9 +53,17 @@ import com.google.api.services.admin.directory.DirectoryScopes;
  */
 public class GoogleClient {
 
+  public static final String APACHE_TRANSPORT = "apache";
+  public static final String NET_TRANSPORT = "net";
+
+  private static final int DEFAULT_TIMEOUT = 20000;
+
   public HttpTransport httpTransport = new NetHttpTransport();
   public JsonFactory jsonFactory = new JacksonFactory();
 
+  protected int connectTimeout = DEFAULT_TIMEOUT;
+  protected int readTimeout = DEFAULT_TIMEOUT;
+
   protected String domain;
   protected String authUser;
   protected String serviceAccountEmail;
@@ -57,6 +82,35 @@ public class GoogleClient {
     serviceAccountEmail = config.getServiceAccountEmail();
     keyPath = config.getKeyPath();
     appName = config.getAppName();
+    httpTransport = createHttpTransport(config.getHttpTransport(), config.getMaxConnections());
+    connectTimeout = config.getConnectTimeout();
+    readTimeout = config.getReadTimeout();
+  }
+
+  /**
+   * Creates the HTTP transport used to call Google APIs.
+   *
+   * @param transport APACHE_TRANSPORT or NET_TRANSPORT.
+   * @param maxConnections Number of connections that the apache transport keeps open.
+   * @return The transport.
+   */
+  public static HttpTransport createHttpTransport(String transport, int maxConnections) {
+    if (NET_TRANSPORT.equals(transport)) {
+      return new NetHttpTransport();
+    }
+    HttpParams params = new BasicHttpParams();
+    HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+    // Every request goes to the same host, so a single route can use the whole pool.
+    ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+    ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+    SchemeRegistry registry = new SchemeRegistry();
+    registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+    registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+    DefaultHttpClient httpClient =
+        new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+    // The Google client retries the requests itself.
+    httpClient.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+    return new ApacheHttpTransport(httpClient);
   }
 
   /**
@@ -80,11 +134,11 @@ public class GoogleClient {
         .setServiceAccountId(serviceAccountEmail)
         .setServiceAccountScopes(Collections.singleton(DirectoryScopes.ADMIN_DIRECTORY_USER))
         .setServiceAccountPrivateKeyFromP12File(new File(keyPath)).setServiceAccountUser(authUser)
-        .build();
+        .addRefreshListener(InstrumentedRequestInitializer.createRefreshListener()).build();
   }
 
   /**
-   * Create a new authorized Google API client.
+   * Create a new authorized Google API client. Its calls are recorded in the metrics registry.
    *
    * @param projectName The project name that is displayed in the Google
    *        Developer Console.
@@ -92,8 +146,26 @@ public class GoogleClient {
    * @return The Admin SDK client object
    */
   protected Directory createAuthorizedClient(String projectName, GoogleCredential credential) {
-    return new Directory.Builder(httpTransport, jsonFactory, credential).setApplicationName(
-        projectName).build();
+    return new Directory.Builder(httpTransport, jsonFactory, new InstrumentedRequestInitializer(
+        createRequestInitializer(credential))).setApplicationName(projectName).build();
+  }
+
+  /**
+   * Creates an initializer that authorizes the requests and sets the configured timeouts.
+   *
+   * @param authorizer The initializer that authorizes the requests or null.
+   * @return The initializer.
+   */
+  protected HttpRequestInitializer createRequestInitializer(final HttpRequestInitializer authorizer) {
+    return new HttpRequestInitializer() {
+      public void initialize(HttpRequest request) throws IOException {
+        if (authorizer != null) {
+          authorizer.initialize(request);
+        }
+        request.setConnectTimeout(connectTimeout);
+        request.setReadTimeout(readTimeout);
+      }
+    };
   }
 
 }
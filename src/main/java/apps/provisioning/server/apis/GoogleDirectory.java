@@ -17,25 +17,48 @@ package apps.provisioning.server.apis;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.Collection;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import apps.provisioning.config.ConfigData;
+import apps.provisioning.metrics.Counter;
+import apps.provisioning.metrics.Histogram;
+import apps.provisioning.metrics.MetricsRegistry;
 import apps.provisioning.server.account.UsernameManager;
+import apps.provisioning.server.account.data.CrawlCheckpoint;
+import apps.provisioning.server.account.data.ResumableDataSource;
 import apps.provisioning.server.account.data.UsernameDataSource;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.googleapis.json.GoogleJsonError.ErrorInfo;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.ExponentialBackOff;
 import com.google.api.services.admin.directory.Directory;
+import com.google.api.services.admin.directory.model.Channel;
 import com.google.api.services.admin.directory.model.User;
 import com.google.api.services.admin.directory.model.UserName;
-import com.google.api.services.admin.directory.model.Users;
 
 /**
  * Manages the Admin SDK service.
  */
 public class GoogleDirectory extends GoogleClient implements UsernameDataSource {
 
+  private final Logger logger = Logger.getLogger(GoogleDirectory.class.getName());
+
   private GoogleCredential credential;
   private Directory directory;
+  private TokenRefresher tokenRefresher;
+
+  /**
+   * Seconds before its expiration when the access token is renewed in the background. Requests
+   * renew it themselves when it expires in less than a minute.
+   */
+  private final long TOKEN_REFRESH_MARGIN_SECONDS = 300;
 
   /**
    * Represents the administrator customerId.
@@ -53,6 +76,41 @@ public class GoogleDirectory extends GoogleClient implements UsernameDataSource
   private final int MIN_RESULTS = 1;
   private final int MAX_RESULTS = 500;
 
+  /**
+   * Partial response with the fields that the username cache needs.
+   *
+   * @link https://developers.google.com/admin-sdk/directory/v1/guides/performance#partial
+   */
+  private final String CRAWL_FIELDS = "nextPageToken,users(primaryEmail)";
+  private final String GZIP_ENCODING = "gzip";
+  private final String WARM_UP_FIELDS = "nextPageToken";
+  private final String VERIFY_FIELDS = "primaryEmail";
+
+  /**
+   * Backoff used to retry a page of the directory copy. A page is retried for up to 5 minutes, so
+   * a transient error doesn't restart the whole copy and a persistent one doesn't stall it.
+   */
+  private final int PAGE_RETRY_INITIAL_INTERVAL_MILLIS = 1000;
+  private final int PAGE_RETRY_MAX_INTERVAL_MILLIS = 60000;
+  private final int PAGE_RETRY_MAX_ELAPSED_TIME_MILLIS = 300000;
+  private static final int TOO_MANY_REQUESTS = 429;
+  private static final int FORBIDDEN = 403;
+  private final int USER_NOT_FOUND_STATUS = 404;
+  private static final String RATE_LIMIT_EXCEEDED_SUFFIX = "ratelimitexceeded";
+
+  private final Counter lookups = MetricsRegistry.getDefault().counter(
+      "provisioning_username_lookups_total", "Username availability checks per data source.",
+      "source", "directory");
+  private final Histogram lookupDuration = MetricsRegistry.getDefault().latencyHistogram(
+      "provisioning_username_lookup_duration_seconds",
+      "Duration of the username availability checks per data source.", "source", "directory");
+  private final Counter crawledUsernames = MetricsRegistry.getDefault().counter(
+      "provisioning_directory_crawled_usernames_total",
+      "Usernames copied from the Google Directory to the cache.");
+  private final Counter pageRetries = MetricsRegistry.getDefault().counter(
+      "provisioning_directory_page_retries_total",
+      "Pages of the Google Directory copy that were requested again after an error.");
+
   /**
    * Constructor used for testing only.
    */
@@ -61,7 +119,8 @@ public class GoogleDirectory extends GoogleClient implements UsernameDataSource
   }
 
   /**
-   * Initializes Admin SDK credentials.
+   * Initializes Admin SDK credentials. The first authentication runs in the background, so the
+   * rest of the server starts meanwhile, and the access token is renewed before it expires.
    *
    * @throws GeneralSecurityException
    * @throws IOException
@@ -70,13 +129,61 @@ public class GoogleDirectory extends GoogleClient implements UsernameDataSource
     super(config);
     credential = getCredentialForServiceAccount(serviceAccountEmail, keyPath);
     directory = createAuthorizedClient(appName, credential);
-    // Forces Google Apps authentication (it happens in the first API call) to prevent delay in the
-    // next API call (up to 30 seconds).
-    directory.users().list().setCustomer(CUSTOMER_ID).setMaxResults(MIN_RESULTS).execute();
+    tokenRefresher = new TokenRefresher(credential, TOKEN_REFRESH_MARGIN_SECONDS);
+    tokenRefresher.start(new Runnable() {
+      public void run() {
+        warmUp();
+      }
+    });
+  }
+
+  /**
+   * Forces Google Apps authentication (it happens in the first API call) to prevent delay in the
+   * next API call (up to 30 seconds).
+   */
+  private void warmUp() {
+    try {
+      directory.users().list().setCustomer(CUSTOMER_ID).setMaxResults(MIN_RESULTS)
+          .setFields(WARM_UP_FIELDS).execute();
+      logger.log(Level.INFO, "Google Apps authentication completed.");
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Unable to authenticate with Google Apps.", e);
+    }
+  }
+
+  /**
+   * @return Whether the first authentication with Google Apps got an access token.
+   */
+  public boolean isReady() {
+    return tokenRefresher == null || tokenRefresher.hasToken();
   }
 
   public boolean exists(String username) {
-    return getUser(username) != null;
+    long start = System.nanoTime();
+    boolean exists = getUser(username) != null;
+    lookups.inc();
+    lookupDuration.observeSince(start);
+    return exists;
+  }
+
+  /**
+   * Looks for a user like exists, but fails on errors instead of treating them as a missing user.
+   * Used to check the username cache, where an error must not count as a mismatch.
+   *
+   * @param username Username without domain.
+   * @return Whether the user exists.
+   * @throws IOException When the user couldn't be looked up.
+   */
+  public boolean verifyExists(String username) throws IOException {
+    try {
+      directory.users().get(getEmail(username)).setFields(VERIFY_FIELDS).execute();
+      return true;
+    } catch (HttpResponseException e) {
+      if (e.getStatusCode() == USER_NOT_FOUND_STATUS) {
+        return false;
+      }
+      throw e;
+    }
   }
 
   /**
@@ -94,31 +201,150 @@ public class GoogleDirectory extends GoogleClient implements UsernameDataSource
   }
 
   /**
-   * Retrieves the basic information of all the users from the configured domain.
+   * Copies the usernames of all the users from the configured domain. Each page is requested
+   * with a partial response and gzip compression and it is parsed as a stream. If the data source
+   * is resumable, the copy continues from its checkpoint and moves it after each page.
    *
-   * @return List with all the users.
    * @throws Exception
    */
   public void copyToDataSource(UsernameDataSource dataSource) throws Exception {
+    ResumableDataSource resumableDataSource = null;
+    if (dataSource instanceof ResumableDataSource) {
+      resumableDataSource = (ResumableDataSource) dataSource;
+    }
     Directory.Users.List request = directory.users().list();
     // This constant applies to every domain or multi domain Google Apps
     // account.
     request.setCustomer(CUSTOMER_ID);
     request.setMaxResults(MAX_RESULTS);
     request.setDomain(domain);
+    // Only the usernames are needed, so the rest of the user fields are not sent.
+    request.setFields(CRAWL_FIELDS);
+    request.getRequestHeaders().setAcceptEncoding(GZIP_ENCODING);
+    if (resumableDataSource != null) {
+      CrawlCheckpoint checkpoint = resumableDataSource.getCheckpoint();
+      if (checkpoint != null) {
+        if (checkpoint.isComplete()) {
+          return;
+        }
+        logger.log(Level.INFO, "Resuming the copy of the Google Directory after "
+            + checkpoint.getRowCount() + " usernames.");
+        request.setPageToken(checkpoint.getPageToken());
+      }
+    }
     // Get all users
     do {
-      ArrayList<String> usernames = new ArrayList<String>();
-      Users currentPage = request.execute();
-      List<User> users = currentPage.getUsers();
-      for (int i = 0; i < users.size(); i++) {
-        usernames.add(users.get(i).getPrimaryEmail().split("@")[0]);
+      ArrayList<String> usernames = new ArrayList<String>(MAX_RESULTS);
+      String nextPageToken = copyPage(request, usernames);
+      if (resumableDataSource != null) {
+        resumableDataSource.insertPage(usernames, nextPageToken);
+      } else {
+        dataSource.insertMultiple(usernames);
       }
-      dataSource.insertMultiple(usernames);
-      request.setPageToken(currentPage.getNextPageToken());
+      crawledUsernames.inc(usernames.size());
+      request.setPageToken(nextPageToken);
     } while (request.getPageToken() != null && request.getPageToken().length() > 0);
   }
 
+  /**
+   * Requests a page of users, retrying it with exponential backoff when the error is transient.
+   *
+   * @param request The list request, with the token of the page.
+   * @param usernames The list where the usernames of the page are added.
+   * @return The token of the next page or null if it is the last one.
+   * @throws IOException When the page fails with a permanent error or runs out of retries.
+   * @throws InterruptedException
+   */
+  private String copyPage(Directory.Users.List request, ArrayList<String> usernames)
+      throws IOException, InterruptedException {
+    BackOff backOff =
+        new ExponentialBackOff.Builder()
+            .setInitialIntervalMillis(PAGE_RETRY_INITIAL_INTERVAL_MILLIS)
+            .setMaxIntervalMillis(PAGE_RETRY_MAX_INTERVAL_MILLIS)
+            .setMaxElapsedTimeMillis(PAGE_RETRY_MAX_ELAPSED_TIME_MILLIS).build();
+    while (true) {
+      try {
+        HttpResponse response = request.executeUnparsed();
+        try {
+          return UsersPageParser.parse(response.getContent(), usernames);
+        } finally {
+          response.disconnect();
+        }
+      } catch (IOException e) {
+        long backOffMillis = isRetryable(e) ? backOff.nextBackOffMillis() : BackOff.STOP;
+        if (backOffMillis == BackOff.STOP) {
+          throw e;
+        }
+        usernames.clear();
+        pageRetries.inc();
+        logger.log(Level.WARNING, "Unable to get a page of users. Retrying in " + backOffMillis
+            + " ms.", e);
+        Thread.sleep(backOffMillis);
+      }
+    }
+  }
+
+  /**
+   * Tells whether a failed request can succeed if it is sent again: server errors, rate limits and
+   * network errors. Responses that can't be parsed are not retried, since the same request gets
+   * the same response.
+   *
+   * @param e The error of the request.
+   * @return Whether the request can be retried.
+   */
+  static boolean isRetryable(IOException e) {
+    if (e instanceof JsonProcessingException) {
+      return false;
+    }
+    if (!(e instanceof HttpResponseException)) {
+      return true;
+    }
+    int statusCode = ((HttpResponseException) e).getStatusCode();
+    if (statusCode >= 500 || statusCode == TOO_MANY_REQUESTS) {
+      return true;
+    }
+    if (statusCode == FORBIDDEN && e instanceof GoogleJsonResponseException) {
+      // The Directory API reports rate limits as 403 errors with a rateLimitExceeded or
+      // userRateLimitExceeded reason.
+      GoogleJsonResponseException jsonException = (GoogleJsonResponseException) e;
+      if (jsonException.getDetails() != null && jsonException.getDetails().getErrors() != null) {
+        for (ErrorInfo error : jsonException.getDetails().getErrors()) {
+          if (error.getReason() != null
+              && error.getReason().toLowerCase().endsWith(RATE_LIMIT_EXCEEDED_SUFFIX)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Subscribes to an event of the users of the configured domain. Google sends a notification to
+   * the address of the channel each time the event happens.
+   *
+   * @link https://developers.google.com/admin-sdk/directory/v1/guides/push
+   *
+   * @param event The event, like add or delete.
+   * @param channel The channel with its id, type, address, token and expiration.
+   * @return The channel created by Google.
+   * @throws IOException
+   */
+  public Channel watchUsers(String event, Channel channel) throws IOException {
+    return directory.users().watch(channel).setCustomer(CUSTOMER_ID).setDomain(domain)
+        .setEvent(event).execute();
+  }
+
+  /**
+   * Stops the notifications of a channel.
+   *
+   * @param channel The channel returned by watchUsers.
+   * @throws IOException
+   */
+  public void stopChannel(Channel channel) throws IOException {
+    directory.channels().stop(channel).execute();
+  }
+
   /**
    * Creates a user in Google Apps Diretory.
    *
@@ -172,10 +398,31 @@ public class GoogleDirectory extends GoogleClient implements UsernameDataSource
    * Deletes a user.
    *
    * @param username Username without domain.
+   * @return Whether the user was deleted. False if it didn't exist.
    * @throws IOException
    */
-  public void remove(String username) throws IOException {
-    directory.users().delete(getEmail(username)).execute();
+  public boolean remove(String username) throws IOException {
+    try {
+      directory.users().delete(getEmail(username)).execute();
+      return true;
+    } catch (HttpResponseException e) {
+      if (e.getStatusCode() == USER_NOT_FOUND_STATUS) {
+        return false;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Deletes multiple users, stopping at the first one that can't be deleted.
+   *
+   * @param usernames Usernames without domain.
+   * @throws IOException
+   */
+  public void removeMultiple(Collection<String> usernames) throws IOException {
+    for (String username : usernames) {
+      remove(username);
+    }
   }
 
   /**
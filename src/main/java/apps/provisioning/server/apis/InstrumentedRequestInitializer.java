@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.server.apis;
+
+import java.io.IOException;
+
+import apps.provisioning.metrics.MetricsRegistry;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.CredentialRefreshListener;
+import com.google.api.client.auth.oauth2.TokenErrorResponse;
+import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpIOExceptionHandler;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+
+/**
+ * Records the calls made to the Directory API in the metrics registry: count per method and
+ * status code, latency (including retries), retries, I/O errors and bytes sent and received. It
+ * wraps the credential, which keeps authorizing every request.
+ */
+public class InstrumentedRequestInitializer implements HttpRequestInitializer {
+
+  private final String USERS_PATH = "/users";
+  private final String STATUS_IO_ERROR = "io_error";
+
+  private final HttpRequestInitializer delegate;
+  private final MetricsRegistry registry = MetricsRegistry.getDefault();
+
+  /**
+   * @param delegate The initializer that authorizes the requests, usually the credential.
+   */
+  public InstrumentedRequestInitializer(HttpRequestInitializer delegate) {
+    this.delegate = delegate;
+  }
+
+  public void initialize(HttpRequest request) throws IOException {
+    if (delegate != null) {
+      delegate.initialize(request);
+    }
+    // The URL and the HTTP method are not set yet when the request factory calls the initializer,
+    // so the recorder resolves the method name when the request is executed.
+    CallRecorder recorder = new CallRecorder(request.getInterceptor());
+    request.setInterceptor(recorder);
+    request.setResponseInterceptor(recorder);
+    request.setIOExceptionHandler(recorder);
+  }
+
+  /**
+   * Gets the Directory API method of a request from its HTTP method and URL, like list for GET
+   * /users or get for GET /users/{userKey}.
+   *
+   * @param request The request.
+   * @return The method name.
+   */
+  String getMethodName(HttpRequest request) {
+    String httpMethod = request.getRequestMethod();
+    String path = request.getUrl().getRawPath();
+    if (path == null) {
+      path = "";
+    }
+    int usersIndex = path.lastIndexOf(USERS_PATH);
+    if (usersIndex < 0) {
+      return httpMethod.toLowerCase();
+    }
+    String resource = path.substring(usersIndex + USERS_PATH.length());
+    if (resource.isEmpty() || resource.equals("/")) {
+      return "GET".equals(httpMethod) ? "list" : "POST".equals(httpMethod) ? "insert" : httpMethod
+          .toLowerCase();
+    }
+    if (resource.equals("/watch")) {
+      return "watch";
+    }
+    if ("GET".equals(httpMethod)) {
+      return "get";
+    } else if ("DELETE".equals(httpMethod)) {
+      return "delete";
+    } else if ("PUT".equals(httpMethod) || "PATCH".equals(httpMethod)) {
+      return "update";
+    }
+    return httpMethod.toLowerCase();
+  }
+
+  /**
+   * @return A listener that records the access token refreshes.
+   */
+  public static CredentialRefreshListener createRefreshListener() {
+    return new CredentialRefreshListener() {
+      public void onTokenResponse(Credential credential, TokenResponse tokenResponse) {
+        MetricsRegistry.getDefault().counter("provisioning_google_api_token_refreshes_total",
+            "Access token refreshes.", "outcome", "success").inc();
+      }
+
+      public void onTokenErrorResponse(Credential credential, TokenErrorResponse tokenErrorResponse) {
+        MetricsRegistry.getDefault().counter("provisioning_google_api_token_refreshes_total",
+            "Access token refreshes.", "outcome", "failure").inc();
+      }
+    };
+  }
+
+  /**
+   * Follows a single call, which can be executed several times when it is retried. The call is
+   * recorded once, with its final status.
+   */
+  private class CallRecorder implements HttpExecuteInterceptor, HttpResponseInterceptor,
+      HttpIOExceptionHandler {
+
+    private final HttpExecuteInterceptor authorizationInterceptor;
+    private String methodName;
+    private long start;
+    private int attempts = 0;
+    private boolean recorded = false;
+
+    CallRecorder(HttpExecuteInterceptor authorizationInterceptor) {
+      this.authorizationInterceptor = authorizationInterceptor;
+    }
+
+    public void intercept(HttpRequest request) throws IOException {
+      if (recorded) {
+        // The same request is executed again: this is a new call.
+        attempts = 0;
+        recorded = false;
+      }
+      if (attempts == 0) {
+        start = System.nanoTime();
+        methodName = getMethodName(request);
+        HttpContent content = request.getContent();
+        if (content != null && content.getLength() > 0) {
+          registry.counter("provisioning_google_api_request_bytes_total",
+              "Bytes sent to Google APIs.", "method", methodName).inc(content.getLength());
+        }
+      }
+      attempts++;
+      if (authorizationInterceptor != null) {
+        authorizationInterceptor.intercept(request);
+      }
+    }
+
+    public void interceptResponse(HttpResponse response) {
+      if (recorded) {
+        return;
+      }
+      Long contentLength = response.getHeaders().getContentLength();
+      if (contentLength != null) {
+        registry.counter("provisioning_google_api_response_bytes_total",
+            "Bytes received from Google APIs, when the response declares its length.", "method",
+            methodName).inc(contentLength);
+      }
+      recordCall(String.valueOf(response.getStatusCode()));
+    }
+
+    public boolean handleIOException(HttpRequest request, boolean supportsRetry) {
+      // No retries, as when no handler is set.
+      recordCall(STATUS_IO_ERROR);
+      return false;
+    }
+
+    private void recordCall(String status) {
+      if (recorded || attempts == 0) {
+        return;
+      }
+      recorded = true;
+      registry.counter("provisioning_google_api_calls_total",
+          "Calls to Google APIs by method and final status code.", "method", methodName,
+          "status", status).inc();
+      registry.latencyHistogram("provisioning_google_api_call_duration_seconds",
+          "Duration of the calls to Google APIs, including retries.", "method", methodName)
+          .observeSince(start);
+      if (attempts > 1) {
+        registry.counter("provisioning_google_api_retries_total",
+            "Calls to Google APIs that were sent again.", "method", methodName).inc(attempts - 1);
+      }
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.server.apis;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import apps.provisioning.metrics.Gauge;
+import apps.provisioning.metrics.MetricsRegistry;
+
+import com.google.api.client.auth.oauth2.Credential;
+
+/**
+ * Renews the access token of a credential in a background thread before it expires, so the
+ * requests that call Google APIs never wait for a token refresh. The credential refreshes the
+ * token itself when it expires in less than a minute, so the token is renewed earlier than that.
+ */
+public class TokenRefresher {
+
+  private final Logger logger = Logger.getLogger(TokenRefresher.class.getName());
+  private final String THREAD_NAME = "google-api-token-refresher";
+  // Seconds between attempts while the token can't be refreshed.
+  private final long RETRY_DELAY_SECONDS = 30;
+
+  private final Credential credential;
+  private final long refreshMarginSeconds;
+  private final ScheduledExecutorService scheduler;
+  private volatile boolean hasToken = false;
+
+  /**
+   * @param credential The credential to refresh.
+   * @param refreshMarginSeconds Seconds before the expiration of the token when it is renewed.
+   */
+  public TokenRefresher(Credential credential, long refreshMarginSeconds) {
+    this.credential = credential;
+    this.refreshMarginSeconds = refreshMarginSeconds;
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, THREAD_NAME);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    MetricsRegistry.getDefault().gauge("provisioning_google_api_token_expires_in_seconds",
+        "Seconds until the access token of the Google APIs credential expires.", new Gauge() {
+          @Override
+          public double getValue() {
+            Long expiresInSeconds = TokenRefresher.this.credential.getExpiresInSeconds();
+            return expiresInSeconds == null ? 0 : expiresInSeconds;
+          }
+        });
+  }
+
+  /**
+   * Runs the warm up task in the background thread and then keeps the token fresh.
+   *
+   * @param warmUp Task that authenticates with Google APIs for the first time or null.
+   */
+  public void start(final Runnable warmUp) {
+    scheduler.execute(new Runnable() {
+      public void run() {
+        if (warmUp != null) {
+          try {
+            warmUp.run();
+          } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Unable to warm up the Google API client.", e);
+          }
+        }
+        refresh();
+      }
+    });
+  }
+
+  /**
+   * Refreshes the token when it is about to expire and schedules the next refresh.
+   */
+  private void refresh() {
+    long delay;
+    try {
+      if (getRefreshDelay(credential.getExpiresInSeconds()) == 0 && !credential.refreshToken()) {
+        throw new Exception("The token server didn't return a new token.");
+      }
+      hasToken = credential.getAccessToken() != null;
+      delay = getRefreshDelay(credential.getExpiresInSeconds());
+      if (delay == 0) {
+        // The token doesn't last longer than the margin.
+        delay = RETRY_DELAY_SECONDS;
+      }
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "Unable to refresh the Google API access token.", e);
+      delay = RETRY_DELAY_SECONDS;
+    }
+    if (!scheduler.isShutdown()) {
+      scheduler.schedule(new Runnable() {
+        public void run() {
+          refresh();
+        }
+      }, delay, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Gets the time until the token must be refreshed.
+   *
+   * @param expiresInSeconds Seconds until the token expires or null if there is no token.
+   * @return Seconds until the next refresh, 0 if it must be refreshed now.
+   */
+  long getRefreshDelay(Long expiresInSeconds) {
+    if (expiresInSeconds == null) {
+      return 0;
+    }
+    return Math.max(0, expiresInSeconds - refreshMarginSeconds);
+  }
+
+  /**
+   * @return Whether the credential has got an access token.
+   */
+  public boolean hasToken() {
+    return hasToken;
+  }
+
+  /**
+   * Stops refreshing the token.
+   */
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+}
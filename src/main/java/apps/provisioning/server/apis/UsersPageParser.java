@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.server.apis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Reads a page of the Directory API users.list method with a streaming parser. Only the usernames
+ * and the next page token are kept, so no User objects are created while the directory is copied.
+ * Single user resources, like the ones sent in watch notifications, are read the same way.
+ */
+public class UsersPageParser {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+  private static final String USERS = "users";
+  private static final String PRIMARY_EMAIL = "primaryEmail";
+  private static final String NEXT_PAGE_TOKEN = "nextPageToken";
+
+  /**
+   * Adds the usernames (email local parts) of a page to the given list.
+   *
+   * @param content The JSON content of the page. It is closed when the page is read.
+   * @param usernames The list where the usernames are added.
+   * @return The token of the next page or null if it is the last one.
+   * @throws JsonParseException When the content is not a valid page.
+   * @throws IOException When the content can't be read.
+   */
+  public static String parse(InputStream content, List<String> usernames) throws IOException {
+    JsonParser parser = JSON_FACTORY.createParser(content);
+    String nextPageToken = null;
+    try {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new JsonParseException("The users page is not a JSON object.",
+            parser.getCurrentLocation());
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (NEXT_PAGE_TOKEN.equals(fieldName) && token == JsonToken.VALUE_STRING) {
+          nextPageToken = parser.getText();
+        } else if (USERS.equals(fieldName) && token == JsonToken.START_ARRAY) {
+          parseUsers(parser, usernames);
+        } else {
+          parser.skipChildren();
+        }
+      }
+    } finally {
+      parser.close();
+    }
+    return nextPageToken;
+  }
+
+  /**
+   * Reads the username (email local part) of a single user resource.
+   *
+   * @param content The JSON content of the user. It is closed when the user is read.
+   * @return The username or null if the user has no primary email.
+   * @throws JsonParseException When the content is not a valid user.
+   * @throws IOException When the content can't be read.
+   */
+  public static String parseUsername(InputStream content) throws IOException {
+    JsonParser parser = JSON_FACTORY.createParser(content);
+    try {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new JsonParseException("The user is not a JSON object.",
+            parser.getCurrentLocation());
+      }
+      return parseUser(parser);
+    } finally {
+      parser.close();
+    }
+  }
+
+  /**
+   * Reads the users array, keeping the local part of each primary email.
+   */
+  private static void parseUsers(JsonParser parser, List<String> usernames) throws IOException {
+    while (parser.nextToken() == JsonToken.START_OBJECT) {
+      String username = parseUser(parser);
+      if (username != null) {
+        usernames.add(username);
+      }
+    }
+  }
+
+  /**
+   * Reads the fields of a user object until its end.
+   *
+   * @return The local part of the primary email or null if there is none.
+   */
+  private static String parseUser(JsonParser parser) throws IOException {
+    String username = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String fieldName = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      if (PRIMARY_EMAIL.equals(fieldName) && token == JsonToken.VALUE_STRING) {
+        String email = parser.getText();
+        int atIndex = email.indexOf('@');
+        username = atIndex < 0 ? email : email.substring(0, atIndex);
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return username;
+  }
+}
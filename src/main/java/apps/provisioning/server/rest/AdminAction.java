@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.server.rest;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import apps.provisioning.ProvisioningApp;
+import apps.provisioning.data.UsernameCache;
+import apps.provisioning.server.Action;
+import apps.provisioning.server.Context;
+
+/**
+ * Maintenance methods for administrators. They are disabled unless security.admin.token is set,
+ * and every request must send that token in the X-Admin-Token header.
+ */
+@Path("/admin")
+public class AdminAction implements Action {
+
+  public static final String ADMIN_TOKEN_HEADER = "X-Admin-Token";
+
+  private final Logger logger = Logger.getLogger(AdminAction.class.getName());
+  // Each username is looked up in the Directory API while the request waits.
+  private final int MAX_REFRESHED_USERNAMES = 100;
+
+  /**
+   * Method exposed as a REST POST service that removes usernames from the username cache, so
+   * usernames deleted outside this service can be suggested again without refreshing the whole
+   * cache. Usernames that still exist are added back by the next refresh.
+   *
+   * @param adminToken The admin token.
+   * @param body A JSON object with the "usernames" array.
+   * @return A JSON serialized map with the "message" index, or with the "errorMessage" index and a
+   *         400 status if the body is not valid. The status is 403 if the token is wrong and 404 if
+   *         the admin methods are disabled.
+   */
+  @POST
+  @Path("cache/invalidate")
+  @Produces("application/json")
+  public Response invalidateCache(@HeaderParam(ADMIN_TOKEN_HEADER) String adminToken,
+      String body) {
+    Context context = ProvisioningApp.getInstance().getContext();
+    Response denied = checkAdminToken(context, adminToken);
+    if (denied != null) {
+      return denied;
+    }
+    if (!context.getConfig().getCacheUsernames()) {
+      return Response.status(Status.BAD_REQUEST)
+          .entity(JsonCodec.writeError("The username cache is disabled.")).build();
+    }
+    ArrayList<String> usernames;
+    try {
+      usernames = JsonCodec.readUsernames(body);
+    } catch (Exception e) {
+      return Response.status(Status.BAD_REQUEST).entity(JsonCodec.writeError(e.getMessage()))
+          .build();
+    }
+    try {
+      context.getUsernameCache().removeMultiple(usernames);
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "Unable to invalidate the username cache.", e);
+      return Response.status(Status.INTERNAL_SERVER_ERROR)
+          .entity(JsonCodec.writeError(e.getMessage())).build();
+    }
+    logger.log(Level.INFO, "Invalidated " + usernames.size() + " cached usernames.");
+    return Response.ok(
+        JsonCodec.writeMessage(usernames.size() + " usernames were removed from the cache."))
+        .build();
+  }
+
+  /**
+   * Method exposed as a REST POST service that refreshes the username cache. Without a body, it
+   * starts a full refresh now, regardless of the refresh windows. With a JSON object with the
+   * "usernames" array, it only looks up those usernames in the Google Directory and fixes the
+   * cache for them, without copying the whole directory.
+   *
+   * @param adminToken The admin token.
+   * @param body Empty or a JSON object with the "usernames" array.
+   * @return A JSON serialized map with the "message" index. The status is 202 if a full refresh
+   *         started, 409 if a refresh is already running, 400 if the body is not valid, 403 if the
+   *         token is wrong and 404 if the admin methods are disabled.
+   */
+  @POST
+  @Path("cache/refresh")
+  @Produces("application/json")
+  public Response refreshCache(@HeaderParam(ADMIN_TOKEN_HEADER) String adminToken, String body) {
+    Context context = ProvisioningApp.getInstance().getContext();
+    Response denied = checkAdminToken(context, adminToken);
+    if (denied != null) {
+      return denied;
+    }
+    if (!context.getConfig().getCacheUsernames()) {
+      return Response.status(Status.BAD_REQUEST)
+          .entity(JsonCodec.writeError("The username cache is disabled.")).build();
+    }
+    UsernameCache usernameCache;
+    try {
+      usernameCache = context.getUsernameCache();
+    } catch (Exception e) {
+      return Response.status(Status.INTERNAL_SERVER_ERROR)
+          .entity(JsonCodec.writeError(e.getMessage())).build();
+    }
+    if (body == null || body.trim().isEmpty()) {
+      if (!usernameCache.refreshNow()) {
+        return Response.status(Status.CONFLICT)
+            .entity(JsonCodec.writeError("The username cache is already being refreshed."))
+            .build();
+      }
+      logger.log(Level.INFO, "Refreshing the username cache on demand.");
+      return Response.status(Status.ACCEPTED)
+          .entity(JsonCodec.writeMessage("The username cache refresh started.")).build();
+    }
+    ArrayList<String> usernames;
+    try {
+      usernames = JsonCodec.readUsernames(body);
+      if (usernames.size() > MAX_REFRESHED_USERNAMES) {
+        throw new Exception("Up to " + MAX_REFRESHED_USERNAMES
+            + " usernames can be refreshed in a request.");
+      }
+    } catch (Exception e) {
+      return Response.status(Status.BAD_REQUEST).entity(JsonCodec.writeError(e.getMessage()))
+          .build();
+    }
+    try {
+      int fixedUsernames = usernameCache.refreshUsernames(usernames);
+      return Response.ok(
+          JsonCodec.writeMessage(fixedUsernames + " of " + usernames.size()
+              + " usernames were out of date.")).build();
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "Unable to refresh the given usernames.", e);
+      return Response.status(Status.INTERNAL_SERVER_ERROR)
+          .entity(JsonCodec.writeError(e.getMessage())).build();
+    }
+  }
+
+  /**
+   * @return null if the request can continue or the response that rejects it.
+   */
+  private Response checkAdminToken(Context context, String adminToken) {
+    String expectedToken = context.getConfig().getAdminToken();
+    if (expectedToken == null) {
+      return Response.status(Status.NOT_FOUND).build();
+    }
+    // Compares in constant time, so the token can't be guessed from the response times.
+    if (adminToken == null
+        || !MessageDigest.isEqual(expectedToken.getBytes(StandardCharsets.UTF_8),
+            adminToken.getBytes(StandardCharsets.UTF_8))) {
+      return Response.status(Status.FORBIDDEN).build();
+    }
+    return null;
+  }
+}
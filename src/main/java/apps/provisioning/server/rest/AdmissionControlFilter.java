@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.server.rest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import apps.provisioning.ProvisioningApp;
+import apps.provisioning.config.ConfigData;
+
+/**
+ * Limits the number of requests that each REST endpoint runs at the same time. Requests that find
+ * no free slot are rejected at once with a 503 status, so they never hold a Jetty thread while
+ * waiting. Optionally, it also limits the rate of requests of each client (identified by its IP
+ * address, or by the X-Client-Id header when the request comes from a trusted proxy), rejecting
+ * the excess with a 429 status. Rejected requests get a Retry-After header, so overloaded servers
+ * shed load instead of queueing it without limit.
+ */
+public class AdmissionControlFilter implements Filter {
+
+  /**
+   * Optional header that identifies the client for the rate limit. It is only read from trusted
+   * proxies; the IP address is used otherwise.
+   */
+  public static final String CLIENT_ID_HEADER = "X-Client-Id";
+
+  static final String RATE_LIMITED_MESSAGE = "Too many requests. Try again later.";
+
+  private final Logger logger = Logger.getLogger(AdmissionControlFilter.class.getName());
+  private final String REST_PATH = "/rest/";
+  private final String[] LIMITED_ENDPOINTS = new String[] {"suggest", "suggest/stream", "create",
+      "claim", "select"};
+  private final int TOO_MANY_REQUESTS = 429;
+
+  private HashMap<String, Semaphore> endpointPermits = new HashMap<String, Semaphore>();
+  private ClientRateLimiter rateLimiter;
+  private HashSet<String> trustedProxies;
+  private String retryAfter;
+
+  @Override
+  public void init(FilterConfig filterConfig) throws ServletException {
+    ConfigData config = ProvisioningApp.getInstance().getContext().getConfig();
+    for (String endpoint : LIMITED_ENDPOINTS) {
+      int limit = config.getMaxConcurrentRequests(endpoint);
+      if (limit > 0) {
+        endpointPermits.put(endpoint, new Semaphore(limit));
+      }
+    }
+    if (config.getRateLimit() > 0) {
+      rateLimiter = new ClientRateLimiter(config.getRateLimit(), config.getRateLimitBurst());
+    }
+    trustedProxies = config.getTrustedProxies();
+    retryAfter = config.getRetryAfter().toString();
+  }
+
+  @Override
+  public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse,
+      FilterChain chain) throws IOException, ServletException {
+    HttpServletRequest request = (HttpServletRequest) servletRequest;
+    HttpServletResponse response = (HttpServletResponse) servletResponse;
+    // CORS preflight requests don't reach the endpoints.
+    if ("OPTIONS".equals(request.getMethod())) {
+      chain.doFilter(request, response);
+      return;
+    }
+    if (rateLimiter != null && !rateLimiter.tryAcquire(getClientId(request))) {
+      reject(response, TOO_MANY_REQUESTS, RATE_LIMITED_MESSAGE);
+      return;
+    }
+    Semaphore permits = endpointPermits.get(getEndpoint(request));
+    if (permits == null) {
+      chain.doFilter(request, response);
+      return;
+    }
+    if (!permits.tryAcquire()) {
+      reject(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+          ProvisioningAction.SERVER_BUSY_MESSAGE);
+      return;
+    }
+    PermitRelease release = new PermitRelease(permits);
+    try {
+      chain.doFilter(request, response);
+    } finally {
+      if (request.isAsyncStarted()) {
+        // The response is written later by another thread, so the slot is kept until then.
+        request.getAsyncContext().addListener(release);
+      } else {
+        release.run();
+      }
+    }
+  }
+
+  @Override
+  public void destroy() {}
+
+  /**
+   * @return The endpoint name, like suggest or create, or null if it isn't a REST path.
+   */
+  private String getEndpoint(HttpServletRequest request) {
+    String path = request.getRequestURI().substring(request.getContextPath().length());
+    if (!path.startsWith(REST_PATH)) {
+      return null;
+    }
+    path = path.substring(REST_PATH.length());
+    if (path.endsWith("/")) {
+      path = path.substring(0, path.length() - 1);
+    }
+    return path;
+  }
+
+  /**
+   * @return The IP address of the client, or the X-Client-Id header when the request comes from a
+   *         trusted proxy. Other clients could send a new header with each request to get a new
+   *         rate limit.
+   */
+  private String getClientId(HttpServletRequest request) {
+    String remoteAddress = request.getRemoteAddr();
+    if (!trustedProxies.contains(remoteAddress)) {
+      return remoteAddress;
+    }
+    String clientId = request.getHeader(CLIENT_ID_HEADER);
+    if (clientId == null || clientId.isEmpty()) {
+      return remoteAddress;
+    }
+    return clientId;
+  }
+
+  private void reject(HttpServletResponse response, int status, String message)
+      throws IOException {
+    logger.log(Level.FINE, "Request rejected with status " + status);
+    response.setStatus(status);
+    response.setHeader("Retry-After", retryAfter);
+    response.setContentType("application/json");
+    response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+    response.getWriter().write(JsonCodec.writeError(message));
+  }
+
+  /**
+   * Releases an endpoint slot once, either when the request ends or when its asynchronous
+   * response is completed.
+   */
+  private static class PermitRelease implements AsyncListener, Runnable {
+
+    private final Semaphore permits;
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    PermitRelease(Semaphore permits) {
+      this.permits = permits;
+    }
+
+    public void run() {
+      if (released.compareAndSet(false, true)) {
+        permits.release();
+      }
+    }
+
+    public void onComplete(AsyncEvent event) {
+      run();
+    }
+
+    public void onTimeout(AsyncEvent event) {
+      run();
+    }
+
+    public void onError(AsyncEvent event) {
+      run();
+    }
+
+    public void onStartAsync(AsyncEvent event) {
+      // The listener is removed when the request is dispatched again, so it is added back.
+      event.getAsyncContext().addListener(this);
+    }
+  }
+}
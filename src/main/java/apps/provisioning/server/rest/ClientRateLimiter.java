@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.server.rest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Token bucket rate limiter with one bucket per client. Each bucket holds up to burst tokens and
+ * gets rate tokens per second. A request takes a token or is rejected. At most maxClients buckets
+ * are kept; the least recently used one is dropped when a new client arrives.
+ */
+public class ClientRateLimiter {
+
+  private final int MAX_CLIENTS_DEFAULT = 10000;
+
+  private final double rate;
+  private final double burst;
+  private final LinkedHashMap<String, TokenBucket> buckets;
+
+  /**
+   * @param rate Requests per second allowed for each client.
+   * @param burst Requests that a client can send at once.
+   */
+  public ClientRateLimiter(int rate, int burst) {
+    this(rate, burst, 0);
+  }
+
+  /**
+   * @param rate Requests per second allowed for each client.
+   * @param burst Requests that a client can send at once.
+   * @param maxClients Maximum number of clients being tracked. 0 uses the default.
+   */
+  ClientRateLimiter(int rate, int burst, int maxClients) {
+    this.rate = rate;
+    this.burst = burst;
+    final int capacity = maxClients > 0 ? maxClients : MAX_CLIENTS_DEFAULT;
+    buckets = new LinkedHashMap<String, TokenBucket>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * Takes a token from the client bucket.
+   *
+   * @param client Identifies the client, like its IP address.
+   * @return Whether the request is allowed.
+   */
+  public synchronized boolean tryAcquire(String client) {
+    TokenBucket bucket = buckets.get(client);
+    if (bucket == null) {
+      bucket = new TokenBucket(burst);
+      buckets.put(client, bucket);
+    }
+    return bucket.tryAcquire(rate, burst);
+  }
+
+  /**
+   * @return The number of clients being tracked.
+   */
+  public synchronized int size() {
+    return buckets.size();
+  }
+
+  private static class TokenBucket {
+
+    private double tokens;
+    private long lastRefill;
+
+    TokenBucket(double tokens) {
+      this.tokens = tokens;
+      this.lastRefill = System.nanoTime();
+    }
+
+    boolean tryAcquire(double rate, double burst) {
+      long now = System.nanoTime();
+      tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+      lastRefill = now;
+      if (tokens < 1) {
+        return false;
+      }
+      tokens--;
+      return true;
+    }
+  }
+}
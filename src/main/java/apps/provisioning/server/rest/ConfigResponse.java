@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.server.rest;
+
+/**
+ * Response of the config REST method. The values are serialized as strings.
+ */
+public class ConfigResponse {
+
+  private long suggestedUsernamesTimeout;
+  private int numberOfSuggestions;
+  private String domain;
+
+  public ConfigResponse(long suggestedUsernamesTimeout, int numberOfSuggestions, String domain) {
+    this.suggestedUsernamesTimeout = suggestedUsernamesTimeout;
+    this.numberOfSuggestions = numberOfSuggestions;
+    this.domain = domain;
+  }
+
+  public long getSuggestedUsernamesTimeout() {
+    return suggestedUsernamesTimeout;
+  }
+
+  public int getNumberOfSuggestions() {
+    return numberOfSuggestions;
+  }
+
+  public String getDomain() {
+    return domain;
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.server.rest;
+
+import java.util.HashMap;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.json.JSONObject;
+
+import apps.provisioning.ProvisioningApp;
+import apps.provisioning.data.UsernameCache;
+import apps.provisioning.metrics.MetricsRegistry;
+import apps.provisioning.server.Action;
+import apps.provisioning.server.Context;
+
+/**
+ * Endpoints used by monitoring systems and load balancers.
+ */
+@Path("/")
+public class MonitoringAction implements Action {
+
+  private final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  /**
+   * Method exposed as a REST GET service that returns the metrics in the Prometheus text format.
+   *
+   * @return The metrics.
+   */
+  @GET
+  @Path("metrics")
+  public Response getMetrics() {
+    return Response.ok(MetricsRegistry.getDefault().toPrometheusText(), PROMETHEUS_CONTENT_TYPE)
+        .build();
+  }
+
+  /**
+   * Method exposed as a REST GET service that tells whether the server is alive.
+   *
+   * @return A JSON serialized map with the "status" index.
+   */
+  @GET
+  @Path("health")
+  @Produces("application/json")
+  public String getHealth() {
+    return "{\"status\":\"ok\"}";
+  }
+
+  /**
+   * Method exposed as a REST GET service that tells whether the server is ready to take traffic.
+   * It is not ready until the Google Directory client is authenticated and while the username
+   * cache is populated for the first time.
+   *
+   * @return A JSON serialized map with the "ready", "directoryReady" and "cacheStatus" indexes,
+   *         with a 200 status if the server is ready or a 503 status if not.
+   */
+  @GET
+  @Path("ready")
+  @Produces("application/json")
+  public Response getReadiness() {
+    Context context = ProvisioningApp.getInstance().getContext();
+    HashMap<String, Object> readiness = new HashMap<String, Object>();
+    boolean ready = context.isReady();
+    readiness.put("ready", ready);
+    readiness.put("directoryReady", context.getDirectory().isReady());
+    if (context.getConfig().getCacheUsernames()) {
+      try {
+        UsernameCache usernameCache = context.getUsernameCache();
+        readiness.put("cacheStatus", usernameCache.getStatus());
+        readiness.put("cacheAgeSeconds", usernameCache.getAgeInSeconds());
+        readiness.put("cacheConsecutiveFailures", usernameCache.getConsecutiveFailures());
+      } catch (Exception e) {
+        // The cache is enabled, so this doesn't happen.
+      }
+    }
+    return Response.status(ready ? Status.OK : Status.SERVICE_UNAVAILABLE)
+        .entity(JSONObject.valueToString(readiness)).build();
+  }
+}
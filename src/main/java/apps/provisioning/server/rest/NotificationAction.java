@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.server.rest;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import apps.provisioning.ProvisioningApp;
+import apps.provisioning.data.DirectoryWatcher;
+import apps.provisioning.server.Action;
+
+/**
+ * Receives the push notifications sent by Google APIs.
+ */
+@Path("/notifications")
+public class NotificationAction implements Action {
+
+  private final Logger logger = Logger.getLogger(NotificationAction.class.getName());
+
+  /**
+   * Method exposed as a REST POST service that receives the Directory API notifications about
+   * users and applies them to the username cache. Google retries the notifications that don't get
+   * a 200 status.
+   *
+   * @param channelId The id of the channel.
+   * @param token The token of the channel.
+   * @param resourceState sync or the event, like add or delete.
+   * @param body The user resource.
+   * @return A 200 status if the notification was applied or can never be applied, 403 if it
+   *         doesn't belong to a channel of this server, 404 if notifications are not enabled or 500
+   *         if the cache couldn't be updated.
+   */
+  @POST
+  @Path("directory")
+  public Response receiveDirectoryNotification(
+      @HeaderParam(DirectoryWatcher.CHANNEL_ID_HEADER) String channelId,
+      @HeaderParam(DirectoryWatcher.CHANNEL_TOKEN_HEADER) String token,
+      @HeaderParam(DirectoryWatcher.RESOURCE_STATE_HEADER) String resourceState, String body) {
+    DirectoryWatcher directoryWatcher =
+        ProvisioningApp.getInstance().getContext().getDirectoryWatcher();
+    if (directoryWatcher == null) {
+      return Response.status(Status.NOT_FOUND).build();
+    }
+    if (!directoryWatcher.isValidChannel(channelId, token)) {
+      return Response.status(Status.FORBIDDEN).build();
+    }
+    try {
+      directoryWatcher.handleNotification(channelId, token, resourceState, body);
+      return Response.ok().build();
+    } catch (IllegalArgumentException e) {
+      // A retry would carry the same body, so it is acknowledged to stop Google from sending it.
+      logger.log(Level.WARNING, "Dropping an invalid " + resourceState + " notification: "
+          + e.getMessage());
+      return Response.ok().build();
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "Unable to apply the " + resourceState
+          + " notification to the username cache.", e);
+      return Response.status(Status.INTERNAL_SERVER_ERROR)
+          .entity(ProvisioningAction.createJSONErrorResponse(e.getMessage())).build();
+    }
+  }
+}
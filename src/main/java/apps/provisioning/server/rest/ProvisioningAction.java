@@ -15,33 +15,115 @@
 package apps.provisioning.server.rest;
 
 import java.util.HashMap;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.QueryParam;
-
-import org.json.JSONException;
-import org.json.JSONObject;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.Response.Status;
 
 import apps.provisioning.ProvisioningApp;
 import apps.provisioning.config.ConfigData;
+import apps.provisioning.metrics.MetricsRegistry;
 import apps.provisioning.server.Action;
+import apps.provisioning.server.RequestExecutor;
+import apps.provisioning.server.account.SuggestionList;
 import apps.provisioning.server.account.UsernameManager;
 
+/**
+ * REST methods of the username suggest API. The methods that call Google APIs are asynchronous:
+ * they run in the RequestExecutor, so the Jetty threads are released while waiting for Google.
+ * The methods that return a String run synchronously and are used by tests and Java clients.
+ */
 @Path("/rest")
 public class ProvisioningAction implements Action {
 
+  /**
+   * Optional header used by clients to identify retries of the same suggest request.
+   */
+  public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+  /**
+   * Optional header used by clients to shorten the configured suggest time budget (in
+   * milliseconds). Longer values are capped to the configured time budget, if any.
+   */
+  public static final String TIME_BUDGET_HEADER = "X-Suggest-Time-Budget";
+
+  /**
+   * Response header set to true when the suggest time budget ran out before all the suggestions
+   * were generated.
+   */
+  public static final String PARTIAL_SUGGESTIONS_HEADER = "X-Suggestions-Partial";
+
+  /**
+   * Optional header that sets the class of the request: interactive (default) or bulk. Bulk
+   * requests run in their own threads and only start when no interactive request is waiting.
+   */
+  public static final String REQUEST_CLASS_HEADER = "X-Request-Class";
+
+  private static final String REQUESTS_METRIC = "provisioning_requests_total";
+  private static final String REQUEST_DURATION_METRIC = "provisioning_request_duration_seconds";
+  private static final String OUTCOME_COMPLETED = "completed";
+  private static final String OUTCOME_FAILED = "failed";
+  private static final String OUTCOME_INVALID = "invalid";
+  private static final String OUTCOME_TIMEOUT = "timeout";
+  private static final String OUTCOME_REJECTED = "rejected";
+
+  static final String SERVER_BUSY_MESSAGE = "The server is too busy. Try again later.";
+  static final String REQUEST_TIMEOUT_MESSAGE = "The request timed out.";
+
   private final String[] JSON_FIELDS_CREATE = new String[] {UsernameManager.FIRST_NAME,
       UsernameManager.LAST_NAME, UsernameManager.USERNAME, UsernameManager.PASSWORD};
-  private final String[] JSON_FIELDS_SELECT = new String[] {UsernameManager.USERNAME,
-      UsernameManager.SUGGESTIONS};
-  private final String[] JSON_FIELDS_SUGGEST = new String[] {UsernameManager.FIRST_NAME,
+  private final String[] JSON_FIELDS_CLAIM = new String[] {UsernameManager.FIRST_NAME,
+      UsernameManager.LAST_NAME, UsernameManager.PASSWORD};
+  static final String[] JSON_FIELDS_SUGGEST = new String[] {UsernameManager.FIRST_NAME,
       UsernameManager.LAST_NAME};
 
   /**
-   * Method exposed as a REST POST service that suggests usernames.
+   * Method exposed as a REST POST service that suggests usernames. Retries sent with the same
+   * Idempotency-Key header get the same suggestions while they remain locked. When the time budget
+   * runs out, the suggestions found so far are returned and the X-Suggestions-Partial response
+   * header is set to true.
+   *
+   * @param asyncResponse The response resumed when the suggestions are generated.
+   * @param userData Serialized map with the following fields: firstname (String) and lastname
+   *        (String).
+   * @param idempotencyKey Value of the optional Idempotency-Key header.
+   * @param timeBudget Value of the optional X-Suggest-Time-Budget header.
+   * @param requestClass Value of the optional X-Request-Class header.
+   */
+  @POST
+  @Path("suggest")
+  public void suggest(@Suspended AsyncResponse asyncResponse, final String userData,
+      @HeaderParam(IDEMPOTENCY_KEY_HEADER) final String idempotencyKey,
+      @HeaderParam(TIME_BUDGET_HEADER) final String timeBudget,
+      @HeaderParam(REQUEST_CLASS_HEADER) String requestClass) {
+    // The suggestions generated for a request that timed out are unlocked, since nobody gets them.
+    final AtomicReference<SuggestionList> generated = new AtomicReference<SuggestionList>();
+    executeAsync(asyncResponse, "suggest", requestClass, new Callable<Response>() {
+      public Response call() {
+        return suggestResponse(userData, idempotencyKey, timeBudget, generated);
+      }
+    }, new Runnable() {
+      public void run() {
+        abandon(generated.getAndSet(null));
+      }
+    });
+  }
+
+  /**
+   * Suggests usernames synchronously.
    *
    * @param userData Serialized map with the following fields: firstname (String) and lastname
    *        (String).
@@ -49,20 +131,60 @@ public class ProvisioningAction implements Action {
    *         error it returns a JSON serialized map with the "errorMessage" index explaining the
    *         error.
    */
-  @POST
-  @Path("suggest")
   public String suggest(String userData) {
-    HashMap<String, String> userDataMap;
+    return suggest(userData, null, null);
+  }
+
+  /**
+   * Suggests usernames synchronously.
+   *
+   * @param userData Serialized map with the following fields: firstname (String) and lastname
+   *        (String).
+   * @param idempotencyKey Identifies retries of the same request. It can be null.
+   * @param timeBudget Time budget in milliseconds. The configured one is used when it is null.
+   * @return In case of success, it returns a JSON serialized array with suggestions, in case of
+   *         error it returns a JSON serialized map with the "errorMessage" index explaining the
+   *         error.
+   */
+  public String suggest(String userData, String idempotencyKey, String timeBudget) {
+    return (String) suggestResponse(userData, idempotencyKey, timeBudget, null).getEntity();
+  }
+
+  /**
+   * Generates the suggest response.
+   *
+   * @param generated Receives the generated suggestions, so they can be unlocked if the response
+   *        is never sent. It can be null.
+   */
+  private Response suggestResponse(String userData, String idempotencyKey, String timeBudget,
+      AtomicReference<SuggestionList> generated) {
+    UserDataRequest request;
+    long timeBudgetValue;
     try {
-      userDataMap = parseAndValidateJSON(userData, JSON_FIELDS_SUGGEST);
+      request = JsonCodec.readUserData(userData, JSON_FIELDS_SUGGEST);
+      timeBudgetValue = parseTimeBudget(timeBudget);
     } catch (Exception e) {
-      return createJSONErrorResponse(e.getMessage());
+      return Response.ok(createJSONErrorResponse(e.getMessage())).build();
     }
     try {
-      return JSONObject.valueToString(ProvisioningApp.getInstance().getUsernameManager()
-          .suggest(userDataMap));
+      SuggestionList suggestions =
+          ProvisioningApp.getInstance().getUsernameManager()
+              .suggest(request.getUserData(), idempotencyKey, timeBudgetValue);
+      if (generated != null) {
+        generated.set(suggestions);
+        if (Thread.currentThread().isInterrupted()) {
+          // The request timed out while the last suggestion was being generated.
+          abandon(generated.getAndSet(null));
+          return createServiceUnavailableResponse(REQUEST_TIMEOUT_MESSAGE);
+        }
+      }
+      ResponseBuilder responseBuilder = Response.ok(JsonCodec.writeSuggestions(suggestions));
+      if (suggestions.isPartial()) {
+        responseBuilder.header(PARTIAL_SUGGESTIONS_HEADER, "true");
+      }
+      return responseBuilder.build();
     } catch (Exception e) {
-      return createJSONErrorResponse(e.getMessage());
+      return Response.ok(createJSONErrorResponse(e.getMessage())).build();
     }
   }
 
@@ -70,21 +192,39 @@ public class ProvisioningAction implements Action {
    * Method exposed as a REST GET service that suggests usernames. This method doesn't support
    * custom fields. Use the POST service instead. Exposed for testing only.
    *
+   * @param asyncResponse The response resumed when the suggestions are generated.
+   * @param firstName The user's first name.
+   * @param lastName The user's last name.
+   * @param requestClass Value of the optional X-Request-Class header.
+   */
+  @GET
+  @Path("suggest")
+  public void suggestGet(@Suspended AsyncResponse asyncResponse,
+      @QueryParam("firstname") final String firstName,
+      @QueryParam("lastname") final String lastName,
+      @HeaderParam(REQUEST_CLASS_HEADER) String requestClass) {
+    executeAsync(asyncResponse, "suggest", requestClass, new Callable<Response>() {
+      public Response call() {
+        return Response.ok(suggestGet(firstName, lastName)).build();
+      }
+    });
+  }
+
+  /**
+   * Suggests usernames synchronously.
+   *
    * @param firstName The user's first name.
    * @param lastName The user's last name.
    * @return In case of success, it returns a JSON serialized array with suggestions, in case of
    *         error it returns a JSON serialized map with the "errorMessage" index explaining the
    *         error.
    */
-  @GET
-  @Path("suggest")
-  public String suggestGet(@QueryParam("firstname") String firstName,
-      @QueryParam("lastname") String lastName) {
+  public String suggestGet(String firstName, String lastName) {
     HashMap<String, String> userDataMap = new HashMap<String, String>();
     userDataMap.put(UsernameManager.FIRST_NAME, firstName);
     userDataMap.put(UsernameManager.LAST_NAME, lastName);
     try {
-      return JSONObject.valueToString(ProvisioningApp.getInstance().getUsernameManager()
+      return JsonCodec.writeSuggestions(ProvisioningApp.getInstance().getUsernameManager()
           .suggest(userDataMap));
     } catch (Exception e) {
       return createJSONErrorResponse(e.getMessage());
@@ -94,47 +234,126 @@ public class ProvisioningAction implements Action {
   /**
    * Method exposed as a REST POST service that creates users in Google Apps.
    *
+   * @param asyncResponse The response resumed when the user is created.
    * @param userData Serialized map with the following fields: username (String), firstname
    *        (String), lastname (String) and password (String).
-   * @return In case of success, it returns a JSON serialized map with the "message" index or in
-   *         case of failure with the "errorMessage" index.
+   * @param requestClass Value of the optional X-Request-Class header.
    */
   @POST
   @Path("create")
+  public void create(@Suspended AsyncResponse asyncResponse, final String userData,
+      @HeaderParam(REQUEST_CLASS_HEADER) String requestClass) {
+    executeAsync(asyncResponse, "create", requestClass, new Callable<Response>() {
+      public Response call() {
+        return Response.ok(create(userData)).build();
+      }
+    });
+  }
+
+  /**
+   * Creates users in Google Apps synchronously.
+   *
+   * @param userData Serialized map with the following fields: username (String), firstname
+   *        (String), lastname (String) and password (String).
+   * @return In case of success, it returns a JSON serialized map with the "message" index or in
+   *         case of failure with the "errorMessage" index.
+   */
   public String create(String userData) {
-    HashMap<String, String> userDataMap;
+    UserDataRequest request;
     try {
-      userDataMap = parseAndValidateJSON(userData, JSON_FIELDS_CREATE);
+      request = JsonCodec.readUserData(userData, JSON_FIELDS_CREATE);
     } catch (Exception e) {
       return createJSONErrorResponse(e.getMessage());
     }
     try {
-      ProvisioningApp.getInstance().getUsernameManager().create(userDataMap);
+      ProvisioningApp.getInstance().getUsernameManager().create(request.getUsername(),
+          request.getFirstName(), request.getLastName(), request.getPassword());
       return createJSONSuccessResponse("User created successfully.");
     } catch (Exception e) {
       return createJSONErrorResponse(e.getMessage());
     }
   }
 
+  /**
+   * Method exposed as a REST POST service that reserves the first available username and creates
+   * the Google Apps account in a single call.
+   *
+   * @param asyncResponse The response resumed when the user is created.
+   * @param userData Serialized map with the following fields: firstname (String), lastname
+   *        (String) and password (String). Custom fields used by the patterns are optional.
+   * @param requestClass Value of the optional X-Request-Class header.
+   */
+  @POST
+  @Path("claim")
+  public void claim(@Suspended AsyncResponse asyncResponse, final String userData,
+      @HeaderParam(REQUEST_CLASS_HEADER) String requestClass) {
+    executeAsync(asyncResponse, "claim", requestClass, new Callable<Response>() {
+      public Response call() {
+        return Response.ok(claim(userData)).build();
+      }
+    });
+  }
+
+  /**
+   * Reserves the first available username and creates the Google Apps account synchronously.
+   *
+   * @param userData Serialized map with the following fields: firstname (String), lastname
+   *        (String) and password (String). Custom fields used by the patterns are optional.
+   * @return In case of success, it returns a JSON serialized map with the "username" and "message"
+   *         indexes or in case of failure with the "errorMessage" index.
+   */
+  public String claim(String userData) {
+    UserDataRequest request;
+    try {
+      request = JsonCodec.readUserData(userData, JSON_FIELDS_CLAIM);
+    } catch (Exception e) {
+      return createJSONErrorResponse(e.getMessage());
+    }
+    try {
+      String username =
+          ProvisioningApp.getInstance().getUsernameManager().claim(request.getUserData());
+      return JsonCodec.writeClaim(username, "User created successfully.");
+    } catch (Exception e) {
+      return createJSONErrorResponse(e.getMessage());
+    }
+  }
+
   /**
    * Method exposed as a REST POST service that unlocks the usernames suggested that were locked
    * meanwhile user chooses one.
    *
+   * @param asyncResponse The response resumed when the usernames are unlocked.
    * @param userData Serialized map with username (String) and patterns (String array) keys.
-   * @return In case of success, it returns a JSON serialized map with the "message" index or in
-   *         case of failure with the "errorMessage" index.
+   * @param requestClass Value of the optional X-Request-Class header.
    */
   @POST
   @Path("select")
+  public void select(@Suspended AsyncResponse asyncResponse, final String userData,
+      @HeaderParam(REQUEST_CLASS_HEADER) String requestClass) {
+    executeAsync(asyncResponse, "select", requestClass, new Callable<Response>() {
+      public Response call() {
+        return Response.ok(select(userData)).build();
+      }
+    });
+  }
+
+  /**
+   * Unlocks the usernames suggested synchronously.
+   *
+   * @param userData Serialized map with username (String) and patterns (String array) keys.
+   * @return In case of success, it returns a JSON serialized map with the "message" index or in
+   *         case of failure with the "errorMessage" index.
+   */
   public String select(String userData) {
-    HashMap<String, String> userDataMap;
+    SelectRequest request;
     try {
-      userDataMap = parseAndValidateJSON(userData, JSON_FIELDS_SELECT);
+      request = JsonCodec.readSelectRequest(userData);
     } catch (Exception e) {
       return createJSONErrorResponse(e.getMessage());
     }
     try {
-      ProvisioningApp.getInstance().getUsernameManager().select(userDataMap);
+      ProvisioningApp.getInstance().getUsernameManager()
+          .select(request.getSuggestions(), request.getUsername());
       return createJSONSuccessResponse("User selected successfully.");
     } catch (Exception e) {
       return createJSONErrorResponse(e.getMessage());
@@ -173,58 +392,166 @@ public class ProvisioningAction implements Action {
    */
   public String getServerConfig() {
     ConfigData config = ProvisioningApp.getInstance().getContext().getConfig();
-    long suggestedUsernamesTimeout = config.getSuggestedUsernamesTimeout();
-    Integer numberOfSuggestions = config.getNumberOfSuggestions();
-    String domain = config.getDomain();
-    HashMap<String, String> configMap = new HashMap<String, String>();
-    configMap.put("suggestedUsernamesTimeout", String.valueOf(suggestedUsernamesTimeout));
-    configMap.put("numberOfSuggestions", numberOfSuggestions.toString());
-    configMap.put("domain", domain);
-    return JSONObject.valueToString(configMap);
+    return JsonCodec.writeConfig(new ConfigResponse(config.getSuggestedUsernamesTimeout(),
+        config.getNumberOfSuggestions(), config.getDomain()));
+  }
+
+  /**
+   * Parses the time budget header. The configured time budget is used when the header is missing.
+   *
+   * @param timeBudget The header value in milliseconds.
+   * @return The time budget in milliseconds.
+   * @throws Exception
+   */
+  static long parseTimeBudget(String timeBudget) throws Exception {
+    return parseTimeBudget(timeBudget,
+        ProvisioningApp.getInstance().getContext().getConfig().getSuggestTimeBudget());
   }
 
   /**
-   * Parses the incoming JSON text and validates that needed fields are contained.
+   * Parses the time budget header. The header can only shorten the configured time budget, so
+   * clients can't raise the latency of the suggestions above it.
    *
-   * @param userData The raw body sent in the HTTP POST payload section.
-   * @param validateFields The fields to be validated after parsing the object.
-   * @return HashMap with the fields as keys containing their values.
+   * @param timeBudget The header value in milliseconds.
+   * @param configuredTimeBudget The configured time budget in milliseconds, 0 for no limit.
+   * @return The time budget in milliseconds.
    * @throws Exception
    */
-  private HashMap<String, String> parseAndValidateJSON(String userData, String[] validateFields)
-      throws Exception {
-    if (userData == null || userData.isEmpty()) {
-      throw new Exception("No parameters received.");
+  static long parseTimeBudget(String timeBudget, long configuredTimeBudget) throws Exception {
+    if (timeBudget == null || timeBudget.isEmpty()) {
+      return configuredTimeBudget;
     }
-    JSONObject jsonObject;
     try {
-      jsonObject = new JSONObject(userData);
-    } catch (JSONException e) {
-      throw new Exception("Parse errors in JSON input: " + e.getMessage());
+      long value = Long.parseLong(timeBudget.trim());
+      if (value > 0) {
+        return configuredTimeBudget > 0 ? Math.min(value, configuredTimeBudget) : value;
+      }
+    } catch (NumberFormatException e) {
+    }
+    throw new Exception(TIME_BUDGET_HEADER + " header must be a positive number of milliseconds.");
+  }
+
+  /**
+   * Runs the handler in the RequestExecutor lane of the request class and resumes the response
+   * with its result. If the request doesn't finish within the configured timeout, the handler is
+   * cancelled and the response is resumed with a 503 status. Requests are also answered with a 503
+   * status when all the threads are busy and the queue is full. The duration and outcome of every
+   * request are recorded in the metrics registry.
+   *
+   * @param asyncResponse The suspended response.
+   * @param endpoint The endpoint name used in the metrics.
+   * @param requestClass Value of the optional X-Request-Class header.
+   * @param handler Generates the response. It must not throw exceptions.
+   */
+  private void executeAsync(AsyncResponse asyncResponse, String endpoint, String requestClass,
+      Callable<Response> handler) {
+    executeAsync(asyncResponse, endpoint, requestClass, handler, null);
+  }
+
+  /**
+   * Runs the handler as executeAsync does and runs onAbandoned when the handler was cancelled or
+   * its response couldn't be sent because the request had already timed out.
+   *
+   * @param asyncResponse The suspended response.
+   * @param endpoint The endpoint name used in the metrics.
+   * @param requestClass Value of the optional X-Request-Class header.
+   * @param handler Generates the response. It must not throw exceptions.
+   * @param onAbandoned Releases what the handler reserved for the response. It can be null.
+   */
+  private void executeAsync(final AsyncResponse asyncResponse, final String endpoint,
+      String requestClass, Callable<Response> handler, final Runnable onAbandoned) {
+    final long start = System.nanoTime();
+    String requestClassValue;
+    try {
+      requestClassValue = RequestExecutor.parseRequestClass(requestClass);
+    } catch (Exception e) {
+      resume(asyncResponse, Response.ok(createJSONErrorResponse(e.getMessage())).build(),
+          endpoint, OUTCOME_INVALID, start);
+      return;
     }
-    for (String field : validateFields) {
-      if (!jsonObject.has(field)) {
-        throw new Exception("User data must contain " + field + " field.");
+    RequestExecutor requestExecutor =
+        ProvisioningApp.getInstance().getContext().getRequestExecutor();
+    final FutureTask<Response> task = new FutureTask<Response>(handler) {
+      @Override
+      protected void done() {
+        if (isCancelled()) {
+          abandon();
+          return;
+        }
+        try {
+          if (!resume(asyncResponse, get(), endpoint, OUTCOME_COMPLETED, start)) {
+            abandon();
+          }
+        } catch (Exception e) {
+          resume(asyncResponse, createServiceUnavailableResponse(e.getMessage()), endpoint,
+              OUTCOME_FAILED, start);
+        }
       }
 
+      private void abandon() {
+        if (onAbandoned != null) {
+          onAbandoned.run();
+        }
+      }
+    };
+    asyncResponse.setTimeoutHandler(new TimeoutHandler() {
+      public void handleTimeout(AsyncResponse timedOutResponse) {
+        task.cancel(true);
+        resume(timedOutResponse, createServiceUnavailableResponse(REQUEST_TIMEOUT_MESSAGE),
+            endpoint, OUTCOME_TIMEOUT, start);
+      }
+    });
+    asyncResponse.setTimeout(requestExecutor.getRequestTimeout(requestClassValue),
+        TimeUnit.SECONDS);
+    try {
+      requestExecutor.execute(task, requestClassValue);
+    } catch (RejectedExecutionException e) {
+      resume(asyncResponse, createServiceUnavailableResponse(SERVER_BUSY_MESSAGE), endpoint,
+          OUTCOME_REJECTED, start);
     }
-    HashMap<String, String> userDataMap = new HashMap<String, String>();
-    Set<?> keySet = jsonObject.keySet();
-    for (Object field : keySet) {
-      String fieldName = (String) field;
-      // The value associated to a key is not always a String, (i.e. it can be a JSONArray in the
-      // select method)
-      userDataMap.put(fieldName, jsonObject.get(fieldName).toString());
+  }
+
+  /**
+   * Resumes the response and records the request metrics, unless it was already resumed.
+   *
+   * @return Whether the response was resumed.
+   */
+  private boolean resume(AsyncResponse asyncResponse, Response response, String endpoint,
+      String outcome, long start) {
+    if (!asyncResponse.resume(response)) {
+      return false;
     }
-    return userDataMap;
+    MetricsRegistry registry = MetricsRegistry.getDefault();
+    registry.counter(REQUESTS_METRIC, "REST requests by endpoint and outcome.", "endpoint",
+        endpoint, "outcome", outcome).inc();
+    registry.latencyHistogram(REQUEST_DURATION_METRIC,
+        "Duration of the REST requests, including the time in the queue.", "endpoint", endpoint)
+        .observeSince(start);
+    return true;
+  }
+
+  /**
+   * Unlocks suggestions that were generated for a response that was never sent.
+   *
+   * @param suggestions The suggestions or null if none were generated.
+   */
+  private void abandon(SuggestionList suggestions) {
+    if (suggestions != null) {
+      ProvisioningApp.getInstance().getUsernameManager().abandon(suggestions);
+    }
+  }
+
+  private Response createServiceUnavailableResponse(String message) {
+    return Response.status(Status.SERVICE_UNAVAILABLE).entity(createJSONErrorResponse(message))
+        .build();
   }
 
   private String createJSONSuccessResponse(String message) {
-    return "{\"message\":\"" + message + "\"}";
+    return JsonCodec.writeMessage(message);
   }
 
-  private String createJSONErrorResponse(String message) {
-    return "{\"errorMessage\":\"" + message + "\"}";
+  static String createJSONErrorResponse(String message) {
+    return JsonCodec.writeError(message);
   }
 
 }
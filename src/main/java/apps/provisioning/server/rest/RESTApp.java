@@ -19,6 +19,7 @@ package apps.provisioning.server.rest;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.eclipse.jetty.server.ConnectionFactory;
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.HttpConnectionFactory;
@@ -29,8 +30,11 @@ import org.eclipse.jetty.server.SslConnectionFactory;
 import org.eclipse.jetty.servlet.FilterHolder;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.servlets.AsyncGzipFilter;
 import org.eclipse.jetty.servlets.CrossOriginFilter;
+import org.eclipse.jetty.util.BlockingArrayQueue;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import apps.provisioning.Application;
 import apps.provisioning.Commands;
@@ -46,6 +50,16 @@ public class RESTApp extends Application {
 
   private static final int PORT_DEFAULT_VALUE = 8080;
   private final String HTTP_VERSION = "http/1.1";
+  // Threads of the Jetty pool above minThreads are stopped after being idle this long.
+  private final int THREAD_IDLE_TIMEOUT_MILLIS = 60000;
+  // The REST methods return JSON text. Event streams are not compressed, so each event is sent
+  // as soon as it is written.
+  private final String GZIP_MIME_TYPES = "application/json,text/plain";
+  private final String ALLOWED_HEADERS = "X-Requested-With,Content-Type,Accept,Origin,"
+      + ProvisioningAction.IDEMPOTENCY_KEY_HEADER + "," + ProvisioningAction.TIME_BUDGET_HEADER + ","
+      + AdmissionControlFilter.CLIENT_ID_HEADER + "," + ProvisioningAction.REQUEST_CLASS_HEADER;
+  private final String EXPOSED_HEADERS = ProvisioningAction.PARTIAL_SUGGESTIONS_HEADER
+      + ",Retry-After";
 
   private Server jettyServer;
   private ServletContextHandler servletContext;
@@ -83,9 +97,21 @@ public class RESTApp extends Application {
       logger.log(Level.INFO, "Initialzing server in custom port: " + customPort.toString());
       port = customPort;
     }
-    jettyServer = new Server(port);
-
     ConfigData config = ProvisioningApp.getInstance().getContext().getConfig();
+    QueuedThreadPool threadPool;
+    if (config.getThreadQueueSize() > 0) {
+      threadPool =
+          new QueuedThreadPool(config.getMaxThreads(), config.getMinThreads(),
+              THREAD_IDLE_TIMEOUT_MILLIS, new BlockingArrayQueue<Runnable>(
+                  config.getThreadQueueSize()));
+    } else {
+      threadPool =
+          new QueuedThreadPool(config.getMaxThreads(), config.getMinThreads(),
+              THREAD_IDLE_TIMEOUT_MILLIS);
+    }
+    jettyServer = new Server(threadPool);
+
+    ConnectionFactory[] connectionFactories;
     if (config.getUseSSL()) {
       HttpConfiguration https = new HttpConfiguration();
       https.addCustomizer(new SecureRequestCustomizer());
@@ -95,14 +121,18 @@ public class RESTApp extends Application {
       sslContextFactory.setKeyStorePassword(config.getKeyStorePassword());
       sslContextFactory.setKeyManagerPassword(config.getKeyManagerPassword());
 
-      ServerConnector sslConnector =
-          new ServerConnector(jettyServer,
-              new SslConnectionFactory(sslContextFactory, HTTP_VERSION), new HttpConnectionFactory(
-                  https));
-      sslConnector.setPort(port);
-
-      jettyServer.setConnectors(new Connector[] {sslConnector});
+      connectionFactories =
+          new ConnectionFactory[] {new SslConnectionFactory(sslContextFactory, HTTP_VERSION),
+              new HttpConnectionFactory(https)};
+    } else {
+      connectionFactories = new ConnectionFactory[] {new HttpConnectionFactory()};
     }
+    ServerConnector connector =
+        new ServerConnector(jettyServer, config.getAcceptors(), config.getSelectors(),
+            connectionFactories);
+    connector.setPort(port);
+    connector.setIdleTimeout(config.getIdleTimeout());
+    jettyServer.setConnectors(new Connector[] {connector});
 
     jettyServer.setHandler(servletContext);
 
@@ -119,19 +149,47 @@ public class RESTApp extends Application {
    * Initializes the Jersey Servlet.
    */
   private void initJerseyServlet() {
-    servletContext = new ServletContextHandler(ServletContextHandler.SESSIONS);
+    // The API is stateless, so no HTTP sessions are created.
+    servletContext = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
     servletContext.setContextPath("/");
     // This is used for allowing access to different domains/ports.
     FilterHolder filterHolder = new FilterHolder(CrossOriginFilter.class);
     filterHolder.setInitParameter("allowedOrigins", "*");
     filterHolder.setInitParameter("allowedMethods", "GET, POST");
+    filterHolder.setInitParameter("allowedHeaders", ALLOWED_HEADERS);
+    filterHolder.setInitParameter("exposedHeaders", EXPOSED_HEADERS);
+    filterHolder.setAsyncSupported(true);
     servletContext.addFilter(filterHolder, "/*", null);
 
+    // Sheds load when the endpoints are saturated, before the requests reach Jersey.
+    FilterHolder admissionHolder = new FilterHolder(AdmissionControlFilter.class);
+    admissionHolder.setAsyncSupported(true);
+    servletContext.addFilter(admissionHolder, "/*", null);
+
+    ConfigData config = ProvisioningApp.getInstance().getContext().getConfig();
+    if (config.getUseGzip()) {
+      FilterHolder gzipHolder = new FilterHolder(AsyncGzipFilter.class);
+      gzipHolder.setInitParameter("minGzipSize", config.getGzipMinSize().toString());
+      gzipHolder.setInitParameter("mimeTypes", GZIP_MIME_TYPES);
+      gzipHolder.setAsyncSupported(true);
+      servletContext.addFilter(gzipHolder, "/*", null);
+    }
+
+    // Streams suggestions asynchronously. This mapping takes precedence over the Jersey servlet.
+    ServletHolder suggestStreamServlet = new ServletHolder(new SuggestStreamServlet());
+    suggestStreamServlet.setAsyncSupported(true);
+    servletContext.addServlet(suggestStreamServlet, SuggestStreamServlet.PATH);
+
     jerseyServlet = servletContext.addServlet(org.glassfish.jersey.servlet.ServletContainer.class, "/*");
     jerseyServlet.setInitOrder(0);
+    // The REST methods suspend their responses while Google APIs are called.
+    jerseyServlet.setAsyncSupported(true);
 
     // Tell the Jersey Servlet which REST class to load.
     jerseyServlet.setInitParameter("jersey.config.server.provider.classnames",
-        ProvisioningAction.class.getCanonicalName());
+        ProvisioningAction.class.getCanonicalName() + ","
+            + MonitoringAction.class.getCanonicalName() + ","
+            + NotificationAction.class.getCanonicalName() + ","
+            + AdminAction.class.getCanonicalName());
   }
 }
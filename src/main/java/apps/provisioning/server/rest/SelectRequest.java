@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.server.rest;
+
+import java.util.ArrayList;
+
+/**
+ * Body of the select REST method.
+ */
+public class SelectRequest {
+
+  private String username;
+  private ArrayList<String> suggestions;
+
+  SelectRequest(String username, ArrayList<String> suggestions) {
+    this.username = username;
+    this.suggestions = suggestions;
+  }
+
+  /**
+   * @return The selected username.
+   */
+  public String getUsername() {
+    return username;
+  }
+
+  /**
+   * @return The suggestions returned by the suggest method.
+   */
+  public ArrayList<String> getSuggestions() {
+    return suggestions;
+  }
+}
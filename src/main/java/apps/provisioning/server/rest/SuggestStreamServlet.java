@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.server.rest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import apps.provisioning.ProvisioningApp;
+import apps.provisioning.server.RequestExecutor;
+import apps.provisioning.server.account.SuggestionList;
+import apps.provisioning.server.account.SuggestionListener;
+import apps.provisioning.server.account.UsernameManager;
+
+/**
+ * Streams username suggestions as Server-Sent Events. Each suggestion is sent in a "suggestion"
+ * event as soon as it is locked and the stream ends with a "complete" event. The request is
+ * handled asynchronously, so no Jetty thread waits while the suggestions are generated, and the
+ * events are written with non-blocking I/O, so a slow client never holds up the generation.
+ *
+ * GET requests take the user data from the query parameters (as used by EventSource clients) and
+ * POST requests take it from a JSON body, as in the suggest REST method. Invalid requests are
+ * answered with a 400 status and an "error" event.
+ */
+public class SuggestStreamServlet extends HttpServlet {
+
+  private static final long serialVersionUID = 1L;
+
+  public static final String PATH = "/rest/suggest/stream";
+
+  private static final Logger logger = Logger.getLogger(SuggestStreamServlet.class.getName());
+  private final String CONTENT_TYPE = "text/event-stream";
+  private final String SUGGESTION_EVENT = "suggestion";
+  private final String COMPLETE_EVENT = "complete";
+  private final String ERROR_EVENT = "error";
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    for (String field : ProvisioningAction.JSON_FIELDS_SUGGEST) {
+      if (request.getParameter(field) == null) {
+        writeErrorResponse(response, "User data must contain " + field + " field.");
+        return;
+      }
+    }
+    HashMap<String, String> userData = new HashMap<String, String>();
+    Enumeration<String> parameterNames = request.getParameterNames();
+    while (parameterNames.hasMoreElements()) {
+      String parameterName = parameterNames.nextElement();
+      userData.put(parameterName, request.getParameter(parameterName));
+    }
+    startStream(request, response, userData);
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    HashMap<String, String> userData;
+    try {
+      userData =
+          JsonCodec.readUserData(readBody(request), ProvisioningAction.JSON_FIELDS_SUGGEST)
+              .getUserData();
+    } catch (Exception e) {
+      writeErrorResponse(response, e.getMessage());
+      return;
+    }
+    startStream(request, response, userData);
+  }
+
+  /**
+   * Releases the request thread and generates the suggestions in the RequestExecutor.
+   */
+  private void startStream(HttpServletRequest request, HttpServletResponse response,
+      final HashMap<String, String> userData) throws IOException {
+    final String idempotencyKey = request.getHeader(ProvisioningAction.IDEMPOTENCY_KEY_HEADER);
+    final long timeBudget;
+    String requestClass;
+    try {
+      timeBudget =
+          ProvisioningAction.parseTimeBudget(request
+              .getHeader(ProvisioningAction.TIME_BUDGET_HEADER));
+      requestClass =
+          RequestExecutor.parseRequestClass(request
+              .getHeader(ProvisioningAction.REQUEST_CLASS_HEADER));
+    } catch (Exception e) {
+      writeErrorResponse(response, e.getMessage());
+      return;
+    }
+    response.setContentType(CONTENT_TYPE);
+    response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+    response.setHeader("Cache-Control", "no-cache");
+    AsyncContext asyncContext = request.startAsync();
+    asyncContext.setTimeout(ProvisioningApp.getInstance().getContext().getConfig()
+        .getStreamTimeout());
+    final EventStream stream = new EventStream(asyncContext);
+    asyncContext.addListener(stream);
+    response.getOutputStream().setWriteListener(stream);
+    try {
+      ProvisioningApp.getInstance().getContext().getRequestExecutor().execute(new Runnable() {
+        public void run() {
+          generate(stream, userData, idempotencyKey, timeBudget);
+        }
+      }, requestClass);
+    } catch (RejectedExecutionException e) {
+      stream.close(ERROR_EVENT,
+          ProvisioningAction.createJSONErrorResponse(ProvisioningAction.SERVER_BUSY_MESSAGE));
+    }
+  }
+
+  /**
+   * Generates the suggestions, queuing an event for each one.
+   */
+  private void generate(final EventStream stream, HashMap<String, String> userData,
+      String idempotencyKey, long timeBudget) {
+    UsernameManager usernameManager = ProvisioningApp.getInstance().getUsernameManager();
+    try {
+      // The listener runs while the suggestor is locked, so it only queues the event.
+      SuggestionList suggestions =
+          usernameManager.suggest(userData, idempotencyKey, timeBudget, new SuggestionListener() {
+            public void onSuggestion(String suggestion) {
+              stream.send(SUGGESTION_EVENT, suggestion);
+            }
+          });
+      stream.close(COMPLETE_EVENT,
+          JsonCodec.writeStreamCompletion(suggestions, suggestions.isPartial()));
+    } catch (Exception e) {
+      stream.close(ERROR_EVENT, ProvisioningAction.createJSONErrorResponse(e.getMessage()));
+    }
+  }
+
+  /**
+   * Formats a Server-Sent Event.
+   */
+  private static byte[] formatEvent(String event, String data) {
+    return ("event: " + event + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Reads the request body as text.
+   */
+  private String readBody(HttpServletRequest request) throws IOException {
+    if (request.getCharacterEncoding() == null) {
+      request.setCharacterEncoding(StandardCharsets.UTF_8.name());
+    }
+    StringBuilder body = new StringBuilder();
+    BufferedReader reader = request.getReader();
+    char[] buffer = new char[1024];
+    int read;
+    while ((read = reader.read(buffer)) != -1) {
+      body.append(buffer, 0, read);
+    }
+    return body.toString();
+  }
+
+  /**
+   * Answers a request that couldn't start a stream with a 400 status and an error event.
+   */
+  private void writeErrorResponse(HttpServletResponse response, String message)
+      throws IOException {
+    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    response.setContentType(CONTENT_TYPE);
+    response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+    response.getOutputStream().write(
+        formatEvent(ERROR_EVENT, ProvisioningAction.createJSONErrorResponse(message)));
+  }
+
+  /**
+   * Queues the events of a stream and writes them whenever the client can take more data. Events
+   * are never written from the generating thread when the output isn't ready, so queuing one never
+   * blocks.
+   */
+  private static class EventStream implements WriteListener, AsyncListener {
+
+    private final AsyncContext asyncContext;
+    private final LinkedList<byte[]> events = new LinkedList<byte[]>();
+    private ServletOutputStream output;
+    private boolean headersSent = false;
+    private boolean closing = false;
+    private boolean finished = false;
+
+    EventStream(AsyncContext asyncContext) {
+      this.asyncContext = asyncContext;
+    }
+
+    /**
+     * Queues an event and writes it if the output is ready.
+     */
+    synchronized void send(String event, String data) {
+      if (finished || closing) {
+        return;
+      }
+      events.add(formatEvent(event, data));
+      write();
+    }
+
+    /**
+     * Queues the last event. The stream is completed once it is written.
+     */
+    synchronized void close(String event, String data) {
+      if (finished || closing) {
+        return;
+      }
+      events.add(formatEvent(event, data));
+      closing = true;
+      write();
+    }
+
+    public synchronized void onWritePossible() {
+      write();
+    }
+
+    public synchronized void onError(Throwable t) {
+      // The client closed the stream.
+      logger.log(Level.FINE, "Unable to write the suggestions stream.", t);
+      finish();
+    }
+
+    public synchronized void onTimeout(AsyncEvent event) {
+      logger.log(Level.FINE, "The suggestions stream timed out.");
+      finish();
+    }
+
+    public synchronized void onError(AsyncEvent event) {
+      onError(event.getThrowable());
+    }
+
+    public synchronized void onComplete(AsyncEvent event) {
+      finished = true;
+      events.clear();
+    }
+
+    public void onStartAsync(AsyncEvent event) {}
+
+    /**
+     * Writes the queued events until the output isn't ready. The container calls
+     * onWritePossible when it is ready again.
+     */
+    private void write() {
+      if (finished) {
+        return;
+      }
+      try {
+        if (output == null) {
+          output = asyncContext.getResponse().getOutputStream();
+        }
+        while (output.isReady()) {
+          if (!headersSent) {
+            // Sends the headers, so the client knows the stream is open.
+            headersSent = true;
+            output.flush();
+          } else if (!events.isEmpty()) {
+            output.write(events.removeFirst());
+            if (output.isReady()) {
+              output.flush();
+            }
+          } else {
+            if (closing) {
+              finish();
+            }
+            return;
+          }
+        }
+      } catch (IOException e) {
+        onError(e);
+      }
+    }
+
+    /**
+     * Completes the request and drops the events that were not written.
+     */
+    private void finish() {
+      if (finished) {
+        return;
+      }
+      finished = true;
+      events.clear();
+      try {
+        asyncContext.complete();
+      } catch (IllegalStateException e) {
+        // Already completed.
+      }
+    }
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.server.rest;
+
+import java.util.HashMap;
+
+import apps.provisioning.server.account.UsernameManager;
+
+/**
+ * Body of the suggest, create and claim REST methods. Besides the standard fields, it keeps the
+ * custom fields used by the username patterns.
+ */
+public class UserDataRequest {
+
+  private HashMap<String, String> userData;
+
+  UserDataRequest(HashMap<String, String> userData) {
+    this.userData = userData;
+  }
+
+  public String getFirstName() {
+    return userData.get(UsernameManager.FIRST_NAME);
+  }
+
+  public String getLastName() {
+    return userData.get(UsernameManager.LAST_NAME);
+  }
+
+  public String getUsername() {
+    return userData.get(UsernameManager.USERNAME);
+  }
+
+  public String getPassword() {
+    return userData.get(UsernameManager.PASSWORD);
+  }
+
+  /**
+   * @return All the fields, as used by the username patterns.
+   */
+  public HashMap<String, String> getUserData() {
+    return userData;
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.util;
+
+import java.text.Normalizer;
+
+/**
+ * Turns user data into characters that are valid in a Google Apps username: lowercase ASCII
+ * letters, digits, underscores, dots and hyphens. Accents are removed, Greek and Cyrillic letters
+ * are transliterated (a Greek omega is o and a Cyrillic zhe is zh) and other characters are
+ * dropped.
+ *
+ * The output of each code point is precomputed in a table, so a name is normalized in a single
+ * pass without regular expressions or Unicode normalization. Names that are already valid are
+ * returned as they are.
+ */
+public class UsernameNormalizer {
+
+  // The maximum Google Apps username length is 60 characters.
+  static final int USERNAME_MAX_LENGTH = 60;
+
+  // Code points of the table: Latin-1, Latin Extended, Greek, Cyrillic, Latin Extended Additional
+  // and Greek Extended. Other code points are normalized one by one.
+  private static final int TABLE_SIZE = 0x2000;
+  // The longest transliteration, like shch.
+  private static final int MAX_REPLACEMENT_LENGTH = 4;
+
+  private static final String[] GREEK = {"a", "v", "g", "d", "e", "z", "i", "th", "i", "k", "l",
+      "m", "n", "x", "o", "p", "r", "s", "s", "t", "y", "f", "ch", "ps", "o"};
+  private static final String[] CYRILLIC = {"a", "b", "v", "g", "d", "e", "zh", "z", "i", "i",
+      "k", "l", "m", "n", "o", "p", "r", "s", "t", "u", "f", "kh", "ts", "ch", "sh", "shch", "",
+      "y", "", "e", "yu", "ya"};
+  // Cyrillic letters after ya, from U+0450 to U+045F, used in Ukrainian, Serbian and Macedonian.
+  private static final String[] CYRILLIC_EXTENDED = {"e", "e", "dj", "g", "ye", "dz", "i", "i",
+      "j", "lj", "nj", "c", "k", "i", "u", "dz"};
+
+  private static final String[] TABLE = createTable();
+
+  private static final ThreadLocal<char[]> BUFFER = new ThreadLocal<char[]>() {
+    @Override
+    protected char[] initialValue() {
+      return new char[USERNAME_MAX_LENGTH + MAX_REPLACEMENT_LENGTH];
+    }
+  };
+
+  private UsernameNormalizer() {}
+
+  /**
+   * Normalizes a value to be used in a username.
+   *
+   * @param value User data, like a first name.
+   * @return The valid characters of the value, at most 60. Null if the value is null.
+   */
+  public static String normalize(String value) {
+    if (value == null) {
+      return null;
+    }
+    if (isNormalized(value)) {
+      return value;
+    }
+    char[] buffer = BUFFER.get();
+    int length = 0;
+    int index = 0;
+    while (index < value.length() && length < USERNAME_MAX_LENGTH) {
+      char character = value.charAt(index);
+      if (character < 0x80) {
+        // ASCII fast path.
+        char lowerCase = toLowerCase(character);
+        if (isValid(lowerCase)) {
+          buffer[length++] = lowerCase;
+        }
+        index++;
+        continue;
+      }
+      int codePoint = value.codePointAt(index);
+      index += Character.charCount(codePoint);
+      String replacement =
+          codePoint < TABLE_SIZE ? TABLE[codePoint] : normalizeCodePoint(codePoint, false);
+      for (int i = 0; i < replacement.length(); i++) {
+        buffer[length++] = replacement.charAt(i);
+      }
+    }
+    return new String(buffer, 0, Math.min(length, USERNAME_MAX_LENGTH));
+  }
+
+  /**
+   * @return Whether the value only has valid characters and is not too long.
+   */
+  private static boolean isNormalized(String value) {
+    if (value.length() > USERNAME_MAX_LENGTH) {
+      return false;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      if (!isValid(value.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isValid(char character) {
+    return (character >= 'a' && character <= 'z') || (character >= '0' && character <= '9')
+        || character == '_' || character == '.' || character == '-';
+  }
+
+  private static char toLowerCase(char character) {
+    return character >= 'A' && character <= 'Z' ? (char) (character + ('a' - 'A')) : character;
+  }
+
+  private static String[] createTable() {
+    String[] table = new String[TABLE_SIZE];
+    for (int codePoint = 0; codePoint < TABLE_SIZE; codePoint++) {
+      table[codePoint] = normalizeCodePoint(codePoint, true);
+    }
+    return table;
+  }
+
+  /**
+   * Lowercases a code point, decomposes it to separate the accents and keeps the valid characters.
+   *
+   * @param codePoint The code point.
+   * @param transliterate Whether to transliterate Greek and Cyrillic letters.
+   * @return The valid characters of the code point, or an empty string.
+   */
+  private static String normalizeCodePoint(int codePoint, boolean transliterate) {
+    String decomposed =
+        Normalizer.normalize(new String(Character.toChars(Character.toLowerCase(codePoint))),
+            Normalizer.Form.NFD);
+    StringBuilder normalized = new StringBuilder();
+    for (int i = 0; i < decomposed.length(); i++) {
+      char character = decomposed.charAt(i);
+      if (isValid(character)) {
+        normalized.append(character);
+      } else if (transliterate) {
+        normalized.append(transliterate(character));
+      }
+    }
+    return normalized.toString();
+  }
+
+  /**
+   * @return The Latin letters of a lowercase Greek or Cyrillic letter, or an empty string.
+   */
+  private static String transliterate(char character) {
+    if (character >= '\u03b1' && character <= '\u03c9') {
+      return GREEK[character - '\u03b1'];
+    }
+    if (character >= '\u0430' && character <= '\u044f') {
+      return CYRILLIC[character - '\u0430'];
+    }
+    if (character >= '\u0450' && character <= '\u045f') {
+      return CYRILLIC_EXTENDED[character - '\u0450'];
+    }
+    if (character == '\u0491') {
+      // Ukrainian ge.
+      return "g";
+    }
+    return "";
+  }
+}
@@ -16,16 +16,11 @@
 
 package apps.provisioning.util;
 
-import org.apache.commons.lang3.StringUtils;
-
 /**
  * Static helper methods
  */
 public class Utils {
 
-  static final String REGEXP_SPECIAL_CHARS = "[^a-z0-9_\\.\\-]";
-  static final int USERNAME_MAX_LENGTH = 60;
-
   /**
    * Replaces special characters to e-mail valid characters.
    *
@@ -33,18 +28,6 @@ public class Utils {
    * @return Formatted text
    */
   public static String replaceSpecialChars(String username) {
-    if (username == null) {
-      return null;
-    }
-    username = username.toLowerCase();
-    // Replaces characters with accents for the same characters without accents.
-    username = StringUtils.stripAccents(username);
-    // Filters e-mail valid characters
-    username = username.replaceAll(REGEXP_SPECIAL_CHARS, "");
-    // The maximum Google Apps username length is 60 characters
-    if (username.length() > USERNAME_MAX_LENGTH) {
-      username = username.substring(0, USERNAME_MAX_LENGTH);
-    }
-    return username;
+    return UsernameNormalizer.normalize(username);
   }
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import apps.provisioning.server.account.data.UsernameDataSource;
+import apps.provisioning.server.apis.GoogleDirectory;
+
+/**
+ * Test of CacheAuditor class. A fake Google Directory stands in for the Directory API, and the
+ * test changes its users after the cache is populated to simulate drift.
+ */
+public class CacheAuditorTest {
+
+  private final String TESTING_DB_PATH = Thread.currentThread().getContextClassLoader()
+      .getResource(".").getPath();
+  private final String TESTING_DB_NAME = "auditortestdb";
+  private final int UPDATE_RATE_IN_SECONDS = 3600;
+  private final long CACHE_READY_TIMEOUT_MILLIS = 5000;
+  private final int NUMBER_OF_USERS = 40;
+
+  private UsernameCache usernameCache;
+  private CacheAuditor cacheAuditor;
+  private Set<String> directoryUsernames;
+  private AtomicInteger copies;
+
+  /**
+   * Fake Google Directory that answers from directoryUsernames.
+   */
+  private class FakeGoogleDirectory extends GoogleDirectory {
+
+    @Override
+    public void copyToDataSource(UsernameDataSource dataSource) throws Exception {
+      dataSource.insertMultiple(new ArrayList<String>(directoryUsernames));
+      copies.incrementAndGet();
+    }
+
+    @Override
+    public boolean verifyExists(String username) throws IOException {
+      return directoryUsernames.contains(username);
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    directoryUsernames = Collections.synchronizedSet(new HashSet<String>());
+    for (int i = 0; i < NUMBER_OF_USERS; i++) {
+      directoryUsernames.add("user" + i);
+    }
+    copies = new AtomicInteger();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (cacheAuditor != null) {
+      cacheAuditor.shutdown();
+    }
+    if (usernameCache != null) {
+      usernameCache.disposeDataSource();
+    }
+  }
+
+  private void startCache(double refreshThreshold) throws Exception {
+    FakeGoogleDirectory googleDirectory = new FakeGoogleDirectory();
+    usernameCache =
+        new UsernameCache(0, UPDATE_RATE_IN_SECONDS, TESTING_DB_PATH, TESTING_DB_NAME,
+            googleDirectory);
+    waitForCopies(1);
+    cacheAuditor = new CacheAuditor(googleDirectory, usernameCache, 60, refreshThreshold);
+  }
+
+  private void waitForCopies(int expectedCopies) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + CACHE_READY_TIMEOUT_MILLIS;
+    while ((copies.get() < expectedCopies || !usernameCache.isReady()
+        || usernameCache.getStatus() != UsernameCache.STATUS_READY)
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(expectedCopies, copies.get());
+    Assert.assertEquals(UsernameCache.STATUS_READY, usernameCache.getStatus());
+  }
+
+  @Test
+  public void testMatchingCache() throws Exception {
+    startCache(0);
+    Assert.assertFalse(usernameCache.exists("newuser"));
+    cacheAuditor.audit();
+    cacheAuditor.audit();
+    Assert.assertEquals(0, cacheAuditor.getFalsePositiveRate(), 0);
+    Assert.assertEquals(0, cacheAuditor.getFalseNegativeRate(), 0);
+    Assert.assertEquals(-1, cacheAuditor.getFirstMismatchAge());
+  }
+
+  @Test
+  public void testFixesDeletedUsername() throws Exception {
+    startCache(0);
+    directoryUsernames.clear();
+    cacheAuditor.audit();
+    Assert.assertEquals(1, cacheAuditor.getFalsePositiveRate(), 0);
+    Assert.assertEquals(0, cacheAuditor.getFalseNegativeRate(), 0);
+    Assert.assertTrue(cacheAuditor.getFirstMismatchAge() >= 0);
+    // The sampled username was removed from the cache.
+    int cachedUsernames = 0;
+    for (int i = 0; i < NUMBER_OF_USERS; i++) {
+      if (usernameCache.exists("user" + i)) {
+        cachedUsernames++;
+      }
+    }
+    Assert.assertEquals(NUMBER_OF_USERS - 1, cachedUsernames);
+  }
+
+  @Test
+  public void testFixesCreatedUsername() throws Exception {
+    startCache(0);
+    Assert.assertFalse(usernameCache.exists("newuser"));
+    directoryUsernames.add("newuser");
+    // Checks a cached username and then an available one.
+    cacheAuditor.audit();
+    cacheAuditor.audit();
+    Assert.assertEquals(0, cacheAuditor.getFalsePositiveRate(), 0);
+    Assert.assertEquals(1, cacheAuditor.getFalseNegativeRate(), 0);
+    Assert.assertTrue(usernameCache.exists("newuser"));
+  }
+
+  @Test
+  public void testRefreshesWhenDriftReachesThreshold() throws Exception {
+    startCache(0.5);
+    directoryUsernames.clear();
+    // Half of the checks sample cached usernames, and all of them are wrong.
+    for (int i = 0; i < NUMBER_OF_USERS - 2; i++) {
+      cacheAuditor.audit();
+    }
+    Assert.assertEquals(1, copies.get());
+    cacheAuditor.audit();
+    cacheAuditor.audit();
+    waitForCopies(2);
+    // The results are reset after the refresh.
+    Assert.assertEquals(0, cacheAuditor.getFalsePositiveRate(), 0);
+    Assert.assertEquals(-1, cacheAuditor.getFirstMismatchAge());
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import apps.provisioning.server.account.data.UsernameDataSource;
+import apps.provisioning.server.apis.GoogleDirectory;
+
+import com.google.api.services.admin.directory.model.Channel;
+
+/**
+ * Test of DirectoryWatcher class. A fake Google Directory stands in for the Directory API: it
+ * records the channels that are created and stopped, and the test sends the notifications that
+ * Google would send to them.
+ */
+public class DirectoryWatcherTest {
+
+  private final String TESTING_DB_PATH = Thread.currentThread().getContextClassLoader()
+      .getResource(".").getPath();
+  private final String TESTING_DB_NAME = "watchertestdb";
+  private final String ADDRESS = "https://provisioning.example.com/notifications/directory";
+  private final long CHANNEL_LIFETIME_SECONDS = 3600;
+  private final long CACHE_READY_TIMEOUT_MILLIS = 5000;
+  private final String EXISTING_USERNAME = "existinguser";
+  private final String NEW_USERNAME = "newuser";
+
+  private UsernameCache usernameCache;
+  private DirectoryWatcher directoryWatcher;
+  // Channels by event.
+  private HashMap<String, Channel> channels;
+  private ArrayList<Channel> stoppedChannels;
+
+  /**
+   * Fake Google Directory with a single user.
+   */
+  private class FakeGoogleDirectory extends GoogleDirectory {
+
+    @Override
+    public void copyToDataSource(UsernameDataSource dataSource) throws Exception {
+      ArrayList<String> usernames = new ArrayList<String>();
+      usernames.add(EXISTING_USERNAME);
+      dataSource.insertMultiple(usernames);
+    }
+
+    @Override
+    public Channel watchUsers(String event, Channel channel) throws IOException {
+      channels.put(event, channel);
+      return channel;
+    }
+
+    @Override
+    public void stopChannel(Channel channel) throws IOException {
+      stoppedChannels.add(channel);
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    channels = new HashMap<String, Channel>();
+    stoppedChannels = new ArrayList<Channel>();
+    FakeGoogleDirectory googleDirectory = new FakeGoogleDirectory();
+    usernameCache =
+        new UsernameCache(0, (int) CHANNEL_LIFETIME_SECONDS, TESTING_DB_PATH, TESTING_DB_NAME,
+            googleDirectory);
+    long deadline = System.currentTimeMillis() + CACHE_READY_TIMEOUT_MILLIS;
+    while (!usernameCache.isReady() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertTrue(usernameCache.isReady());
+    directoryWatcher =
+        new DirectoryWatcher(googleDirectory, usernameCache, ADDRESS, CHANNEL_LIFETIME_SECONDS);
+    directoryWatcher.renewChannels();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    directoryWatcher.shutdown();
+    usernameCache.disposeDataSource();
+  }
+
+  @Test
+  public void testCreatesChannels() {
+    Assert.assertEquals(3, channels.size());
+    Channel addChannel = channels.get("add");
+    Assert.assertEquals(ADDRESS, addChannel.getAddress());
+    Assert.assertEquals("web_hook", addChannel.getType());
+    Assert.assertTrue(directoryWatcher.isValidChannel(addChannel.getId(), addChannel.getToken()));
+    Assert.assertFalse(directoryWatcher.isValidChannel(addChannel.getId(), "wrongtoken"));
+    Assert.assertFalse(directoryWatcher.isValidChannel(null, null));
+  }
+
+  @Test
+  public void testAddAndDeleteNotifications() throws Exception {
+    Assert.assertFalse(usernameCache.exists(NEW_USERNAME));
+    sendNotification("sync", "add", "");
+    sendNotification("add", "add", createUser(NEW_USERNAME));
+    Assert.assertTrue(usernameCache.exists(NEW_USERNAME));
+    // Notifications can be repeated.
+    sendNotification("add", "add", createUser(NEW_USERNAME));
+    Assert.assertTrue(usernameCache.exists(NEW_USERNAME));
+    sendNotification("delete", "delete", createUser(EXISTING_USERNAME));
+    Assert.assertFalse(usernameCache.exists(EXISTING_USERNAME));
+    sendNotification("undelete", "undelete", createUser(EXISTING_USERNAME));
+    Assert.assertTrue(usernameCache.exists(EXISTING_USERNAME));
+  }
+
+  @Test
+  public void testRejectsUnknownChannels() throws Exception {
+    try {
+      directoryWatcher.handleNotification("unknown", "token", "add", createUser(NEW_USERNAME));
+      Assert.fail("Notifications of unknown channels must be rejected.");
+    } catch (Exception e) {
+      Assert.assertEquals("Unknown notification channel.", e.getMessage());
+    }
+    Assert.assertFalse(usernameCache.exists(NEW_USERNAME));
+  }
+
+  @Test
+  public void testRejectsInvalidUsers() throws Exception {
+    String[] bodies = {"", "[]", "{\"primaryEmail\":", "{\"kind\":\"admin#directory#user\"}"};
+    for (String body : bodies) {
+      try {
+        sendNotification("add", "add", body);
+        Assert.fail("The body " + body + " is not a valid user.");
+      } catch (IllegalArgumentException e) {
+        // Expected, the notification can never be applied.
+      }
+    }
+  }
+
+  @Test
+  public void testRenewalStopsOldChannels() throws Exception {
+    Channel oldAddChannel = channels.get("add");
+    directoryWatcher.renewChannels();
+    Assert.assertEquals(3, stoppedChannels.size());
+    Assert.assertFalse(directoryWatcher.isValidChannel(oldAddChannel.getId(),
+        oldAddChannel.getToken()));
+    Channel newAddChannel = channels.get("add");
+    Assert.assertTrue(directoryWatcher.isValidChannel(newAddChannel.getId(),
+        newAddChannel.getToken()));
+  }
+
+  private void sendNotification(String resourceState, String event, String body)
+      throws Exception {
+    Channel channel = channels.get(event);
+    directoryWatcher.handleNotification(channel.getId(), channel.getToken(), resourceState, body);
+  }
+
+  private String createUser(String username) {
+    return "{\"kind\":\"admin#directory#user\",\"primaryEmail\":\"" + username
+        + "@example.com\",\"name\":{\"givenName\":\"Name\"}}";
+  }
+}
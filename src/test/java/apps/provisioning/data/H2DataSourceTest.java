@@ -18,6 +18,7 @@ package apps.provisioning.data;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.h2.jdbc.JdbcSQLException;
 import org.junit.After;
@@ -25,6 +26,8 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import apps.provisioning.server.account.data.CrawlCheckpoint;
+
 public class H2DataSourceTest {
 
   private final String TESTING_DB_PATH = Thread.currentThread().getContextClassLoader()
@@ -99,6 +102,52 @@ public class H2DataSourceTest {
     }
   }
 
+  @Test
+  public void testRemoveMultiple() throws SQLException, Exception {
+    ArrayList<String> emails = new ArrayList<String>();
+    emails.add("user1");
+    emails.add("user2");
+    emails.add("user3");
+    dataSource.insertMultiple(emails);
+    dataSource.removeMultiple(Arrays.asList("user1", "user3", "user4"));
+    Assert.assertFalse(dataSource.exists("user1"));
+    Assert.assertTrue(dataSource.exists("user2"));
+    Assert.assertFalse(dataSource.exists("user3"));
+    dataSource.removeMultiple(new ArrayList<String>());
+    Assert.assertTrue(dataSource.remove("user2"));
+    Assert.assertFalse(dataSource.remove("user2"));
+  }
+
+  @Test
+  public void testOpenUsernameCursor() throws Exception {
+    dataSource.insertMultiple(new ArrayList<String>(Arrays.asList("user2", "user10", "user1")));
+    UsernameCursor cursor = dataSource.openUsernameCursor();
+    try {
+      Assert.assertEquals("user1", cursor.next());
+      Assert.assertEquals("user10", cursor.next());
+      Assert.assertEquals("user2", cursor.next());
+      Assert.assertNull(cursor.next());
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @Test
+  public void testUsernamesAreNotInterpretedAsSql() throws SQLException, Exception {
+    ArrayList<String> emails = new ArrayList<String>();
+    emails.add("user1");
+    emails.add("user2");
+    dataSource.insertMultiple(emails);
+    Assert.assertFalse(dataSource.remove("x' or '1'='1"));
+    dataSource.removeMultiple(Arrays.asList("x') or ('1'='1", "x' or '1'='1"));
+    Assert.assertFalse(dataSource.exists("x' or '1'='1"));
+    Assert.assertTrue(dataSource.exists("user1"));
+    Assert.assertTrue(dataSource.exists("user2"));
+    dataSource.insert("o'brien");
+    Assert.assertTrue(dataSource.exists("o'brien"));
+    Assert.assertTrue(dataSource.remove("o'brien"));
+  }
+
   @Test
   public void testInsertMultipleWithRepetition() throws SQLException, Exception {
     ArrayList<String> emails = new ArrayList<String>();
@@ -134,6 +183,47 @@ public class H2DataSourceTest {
     dataSource2.dispose();
   }
 
+  @Test
+  public void testInsertPage() throws SQLException, Exception {
+    Assert.assertNull(dataSource.getCheckpoint());
+    ArrayList<String> usernames = new ArrayList<String>();
+    usernames.add("user1");
+    usernames.add("user2");
+    dataSource.insertPage(usernames, "token1");
+    // The checkpoint survives reopening the database, as after a restart.
+    H2DataSource dataSource2 = new H2DataSource(TESTING_DB_PATH, TESTING_DB_NAME);
+    CrawlCheckpoint checkpoint = dataSource2.getCheckpoint();
+    Assert.assertEquals("token1", checkpoint.getPageToken());
+    Assert.assertEquals(2, checkpoint.getRowCount());
+    Assert.assertFalse(checkpoint.isComplete());
+    Assert.assertTrue(dataSource2.exists("user2"));
+    usernames.clear();
+    usernames.add("user3");
+    dataSource2.insertPage(usernames, null);
+    checkpoint = dataSource.getCheckpoint();
+    Assert.assertEquals(3, checkpoint.getRowCount());
+    Assert.assertTrue(checkpoint.isComplete());
+    dataSource.clearCheckpoint();
+    Assert.assertNull(dataSource.getCheckpoint());
+    dataSource2.dispose();
+  }
+
+  @Test
+  public void testInsertPageIsAtomic() throws SQLException, Exception {
+    dataSource.insert("user1");
+    ArrayList<String> usernames = new ArrayList<String>();
+    usernames.add("user2");
+    usernames.add("user1");
+    try {
+      dataSource.insertPage(usernames, "token1");
+      Assert.fail("Inserting an existing username should fail.");
+    } catch (JdbcSQLException e) {
+      // Expected.
+    }
+    Assert.assertFalse(dataSource.exists("user2"));
+    Assert.assertNull(dataSource.getCheckpoint());
+  }
+
   @Test
   public void testReset() throws SQLException, Exception {
     String dummyUser = "user";
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.data;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import apps.provisioning.server.account.data.CrawlCheckpoint;
+import apps.provisioning.server.account.data.StemCounterIndex;
+
+public class MVStoreDataSourceTest {
+
+  private final String TESTING_DB_PATH = Thread.currentThread().getContextClassLoader()
+      .getResource(".").getPath();
+  private final String TESTING_DB_NAME = "testmvstore";
+
+  MVStoreDataSource dataSource;
+
+  @Before
+  public void setUp() throws Exception {
+    dataSource = new MVStoreDataSource(TESTING_DB_PATH, TESTING_DB_NAME);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    dataSource.dispose();
+  }
+
+  @Test
+  public void testExists() throws Exception {
+    dataSource.insert("user");
+    Assert.assertTrue(dataSource.exists("user"));
+    Assert.assertFalse(dataSource.exists("user2"));
+  }
+
+  @Test
+  public void testInsertSameTwice() throws Exception {
+    dataSource.insert("user");
+    try {
+      dataSource.insert("user");
+      Assert.fail("Inserting the same username should not be allowed.");
+    } catch (Exception e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testInsertMultipleWithRepetition() throws Exception {
+    ArrayList<String> usernames = new ArrayList<String>(Arrays.asList("user1", "user2", "user2"));
+    try {
+      dataSource.insertMultiple(usernames);
+      Assert.fail("Inserting the same username should not be allowed.");
+    } catch (Exception e) {
+      // Expected. No username is inserted.
+    }
+    Assert.assertFalse(dataSource.exists("user1"));
+    Assert.assertEquals(0, dataSource.getCount());
+  }
+
+  @Test
+  public void testRemoveMultiple() throws Exception {
+    dataSource.insertMultiple(new ArrayList<String>(Arrays.asList("user1", "user2", "user3")));
+    dataSource.removeMultiple(Arrays.asList("user1", "user3", "user4"));
+    Assert.assertFalse(dataSource.exists("user1"));
+    Assert.assertTrue(dataSource.exists("user2"));
+    Assert.assertFalse(dataSource.exists("user3"));
+    Assert.assertTrue(dataSource.remove("user2"));
+    Assert.assertFalse(dataSource.remove("user2"));
+  }
+
+  @Test
+  public void testOpenUsernameCursor() throws Exception {
+    dataSource.insertMultiple(new ArrayList<String>(Arrays.asList("user2", "user10", "user1")));
+    UsernameCursor cursor = dataSource.openUsernameCursor();
+    try {
+      Assert.assertEquals("user1", cursor.next());
+      Assert.assertEquals("user10", cursor.next());
+      Assert.assertEquals("user2", cursor.next());
+      Assert.assertNull(cursor.next());
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @Test
+  public void testInsertPage() throws Exception {
+    Assert.assertNull(dataSource.getCheckpoint());
+    dataSource.insertPage(new ArrayList<String>(Arrays.asList("user1", "user2")), "token1");
+    // The checkpoint survives reopening the store, as after a restart.
+    dataSource.close();
+    dataSource = new MVStoreDataSource(TESTING_DB_PATH, TESTING_DB_NAME);
+    CrawlCheckpoint checkpoint = dataSource.getCheckpoint();
+    Assert.assertEquals("token1", checkpoint.getPageToken());
+    Assert.assertEquals(2, checkpoint.getRowCount());
+    Assert.assertFalse(checkpoint.isComplete());
+    Assert.assertTrue(dataSource.exists("user2"));
+    dataSource.insertPage(new ArrayList<String>(Arrays.asList("user3")), null);
+    checkpoint = dataSource.getCheckpoint();
+    Assert.assertEquals(3, checkpoint.getRowCount());
+    Assert.assertTrue(checkpoint.isComplete());
+    dataSource.clearCheckpoint();
+    Assert.assertNull(dataSource.getCheckpoint());
+    Assert.assertEquals(3, dataSource.getCount());
+  }
+
+  @Test
+  public void testInsertPageIsAtomic() throws Exception {
+    dataSource.insert("user1");
+    try {
+      dataSource.insertPage(new ArrayList<String>(Arrays.asList("user2", "user1")), "token1");
+      Assert.fail("Inserting an existing username should fail.");
+    } catch (Exception e) {
+      // Expected.
+    }
+    Assert.assertFalse(dataSource.exists("user2"));
+    Assert.assertTrue(dataSource.exists("user1"));
+    Assert.assertNull(dataSource.getCheckpoint());
+  }
+
+  @Test
+  public void testRandomUsernameAndIndex() throws Exception {
+    Assert.assertNull(dataSource.getRandomUsername(new Random()));
+    dataSource.insertMultiple(new ArrayList<String>(Arrays.asList("user1", "user2")));
+    Assert.assertTrue(dataSource.getRandomUsername(new Random()).startsWith("user"));
+    StemCounterIndex index = new StemCounterIndex();
+    dataSource.indexUsernames(index);
+    Assert.assertEquals(3, index.getNextFreeCounter("user", 1));
+  }
+
+  @Test
+  public void testResetAndDispose() throws Exception {
+    dataSource.insert("user");
+    dataSource.reset();
+    Assert.assertFalse(dataSource.exists("user"));
+    dataSource.insert("user");
+    Assert.assertTrue(dataSource.exists("user"));
+    File file = new File(TESTING_DB_PATH + TESTING_DB_NAME + MVStoreDataSource.FILE_EXTENSION);
+    Assert.assertTrue(file.exists());
+    dataSource.dispose();
+    Assert.assertFalse(file.exists());
+    dataSource = new MVStoreDataSource(TESTING_DB_PATH, TESTING_DB_NAME);
+  }
+}
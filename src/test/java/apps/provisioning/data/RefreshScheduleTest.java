@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.data;
+
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test of RefreshSchedule class.
+ */
+public class RefreshScheduleTest {
+
+  private final TimeZone UTC = TimeZone.getTimeZone("UTC");
+  private final int HOUR = 3600;
+
+  /**
+   * @return Milliseconds of the given time on January 1st, 2015, in UTC.
+   */
+  private long getTime(int hour, int minute) {
+    Calendar calendar = Calendar.getInstance(UTC);
+    calendar.clear();
+    calendar.set(2015, Calendar.JANUARY, 1, hour, minute);
+    return calendar.getTimeInMillis();
+  }
+
+  @Test
+  public void testFixedInterval() {
+    RefreshSchedule schedule = new RefreshSchedule(24 * HOUR);
+    Assert.assertEquals(24 * HOUR, schedule.getDelay(24 * HOUR, getTime(12, 0)));
+    // Not adaptive.
+    schedule.recordRefresh(1000, 10000, HOUR);
+    Assert.assertEquals(24 * HOUR, schedule.getIntervalInSeconds());
+  }
+
+  @Test
+  public void testWindows() {
+    RefreshSchedule schedule =
+        new RefreshSchedule(24 * HOUR, new String[] {"01:00-05:00", "22:30-23:00"}, 0, false,
+            new Random(), UTC);
+    // Inside a window.
+    Assert.assertEquals(HOUR, schedule.getDelay(HOUR, getTime(1, 0)));
+    // Waits for the next window, the same day or the day after.
+    Assert.assertEquals(10 * HOUR + 30 * 60, schedule.getDelay(0, getTime(12, 0)));
+    Assert.assertEquals(2 * HOUR, schedule.getDelay(0, getTime(23, 0)));
+    // The refresh is due at 23:00, when the window has just closed, so it waits until 01:00.
+    Assert.assertEquals(3 * HOUR, schedule.getDelay(HOUR, getTime(22, 0)));
+  }
+
+  @Test
+  public void testWindowCrossingMidnight() {
+    RefreshSchedule schedule =
+        new RefreshSchedule(HOUR, new String[] {"22:00-04:00"}, 0, false, new Random(), UTC);
+    Assert.assertTrue(schedule.isInWindow(getTime(23, 0)));
+    Assert.assertTrue(schedule.isInWindow(getTime(3, 59)));
+    Assert.assertFalse(schedule.isInWindow(getTime(4, 0)));
+    Assert.assertEquals(18 * HOUR, schedule.getDelay(0, getTime(4, 0)));
+  }
+
+  @Test
+  public void testJitterStaysInWindow() {
+    RefreshSchedule schedule =
+        new RefreshSchedule(HOUR, new String[] {"01:00-02:00"}, 30 * 60, false, new Random(42),
+            UTC);
+    for (int i = 0; i < 100; i++) {
+      long delay = schedule.getDelay(0, getTime(0, 0));
+      Assert.assertTrue(delay >= HOUR && delay < 2 * HOUR);
+      Assert.assertTrue(schedule.isInWindow(getTime(0, 0) + delay * 1000));
+    }
+  }
+
+  @Test
+  public void testAdaptiveInterval() {
+    RefreshSchedule schedule =
+        new RefreshSchedule(24 * HOUR, null, 0, true, new Random(), UTC);
+    // Nothing changed without notice, so it grows towards the longest interval, one step at a time.
+    schedule.recordRefresh(0, 100000, 24 * HOUR);
+    Assert.assertEquals(2 * 24 * HOUR, schedule.getIntervalInSeconds());
+    schedule.recordRefresh(0, 100000, 2 * 24 * HOUR);
+    Assert.assertEquals(4 * 24 * HOUR, schedule.getIntervalInSeconds());
+    schedule.recordRefresh(0, 100000, 4 * 24 * HOUR);
+    Assert.assertEquals(4 * 24 * HOUR, schedule.getIntervalInSeconds());
+    // 100 of 100000 usernames changed per day: 0.1% drift takes a day, reached in two steps.
+    schedule.recordRefresh(400, 100000, 4 * 24 * HOUR);
+    Assert.assertEquals(2 * 24 * HOUR, schedule.getIntervalInSeconds());
+    schedule.recordRefresh(200, 100000, 2 * 24 * HOUR);
+    Assert.assertEquals(24 * HOUR, schedule.getIntervalInSeconds());
+    // Many changes: it shrinks towards the shortest interval, one step at a time.
+    schedule.recordRefresh(100000, 100000, 24 * HOUR);
+    Assert.assertEquals(12 * HOUR, schedule.getIntervalInSeconds());
+    schedule.recordRefresh(100000, 100000, 12 * HOUR);
+    Assert.assertEquals(6 * HOUR, schedule.getIntervalInSeconds());
+    schedule.recordRefresh(100000, 100000, 6 * HOUR);
+    Assert.assertEquals(6 * HOUR, schedule.getIntervalInSeconds());
+  }
+}
@@ -14,6 +14,7 @@
 
 package apps.provisioning.data;
 
+import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.logging.Level;
@@ -196,6 +197,51 @@ public class UsernameCacheTest {
     }
   }
 
+  /**
+   * Tests that a failed refresh doesn't stop the schedule and that the next refresh populates the
+   * cache.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testRefreshAfterFailure() throws Exception {
+    // Refresh every second starting at second 0.
+    int initialUpdateDelayInSeconds = 0;
+    int updateRateInSeconds = 1;
+
+    GoogleDirectory googleDirectoryMock = control.createMock(GoogleDirectory.class);
+    // The first call fails and the second one returns a set of users.
+    googleDirectoryMock.copyToDataSource(EasyMock.anyObject(H2DataSource.class));
+    EasyMock.expectLastCall().andThrow(new IOException("Backend Error"));
+    ArrayList<String> usernames1 = new ArrayList<String>();
+    usernames1.add("dummyuser1");
+    usernames1.add("dummyuser2");
+    FakeGoogleDirectory fakeGoogleDirectory1 = new FakeGoogleDirectory(usernames1);
+    googleDirectoryMock.copyToDataSource(EasyMock.anyObject(H2DataSource.class));
+    EasyMock.expectLastCall().andDelegateTo(fakeGoogleDirectory1);
+
+    control.replay();
+
+    logger.log(Level.INFO, "Testing with DB at path: " + TESTING_DB_PATH);
+    usernameCache =
+        new UsernameCache(initialUpdateDelayInSeconds, updateRateInSeconds, TESTING_DB_PATH,
+            TESTING_DB_NAME, googleDirectoryMock);
+
+    // The failed refresh is retried after the update rate (it is shorter than the retry delay).
+    Thread.sleep(500);
+    Assert.assertEquals(UsernameCache.STATUS_EMPTY, usernameCache.getStatus());
+    Assert.assertEquals(1, usernameCache.getConsecutiveFailures());
+    Assert.assertTrue(usernameCache.getLastFailureTime() > 0);
+    Thread.sleep(1000 + SIMULATED_COPY_USERNAMES_DELAY);
+    control.verify();
+
+    Assert.assertEquals(UsernameCache.STATUS_READY, usernameCache.getStatus());
+    Assert.assertEquals(0, usernameCache.getConsecutiveFailures());
+    for (String username : usernames1) {
+      Assert.assertTrue(usernameCache.exists(username));
+    }
+  }
+
   /**
    * Tests that creating a username while caching inserts it when ready.
    *
@@ -297,6 +343,223 @@ public class UsernameCacheTest {
     Assert.assertTrue(usernameCache.exists(newUsername));
   }
 
+  /**
+   * Tests that removed usernames are no longer cached, so they can be suggested again.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testRemoveMultiple() throws Exception {
+    // Populates the cache once.
+    int initialUpdateDelayInSeconds = 0;
+    int updateRateInSeconds = 60;
+
+    GoogleDirectory googleDirectoryMock = control.createMock(GoogleDirectory.class);
+    ArrayList<String> usernames = new ArrayList<String>();
+    usernames.add("dummyuser1");
+    usernames.add("dummyuser2");
+    usernames.add("dummyuser3");
+    googleDirectoryMock.copyToDataSource(EasyMock.anyObject(H2DataSource.class));
+    EasyMock.expectLastCall().andDelegateTo(new FakeGoogleDirectory(usernames));
+    control.replay();
+
+    usernameCache =
+        new UsernameCache(initialUpdateDelayInSeconds, updateRateInSeconds, TESTING_DB_PATH,
+            TESTING_DB_NAME, googleDirectoryMock);
+    Thread.sleep(500 + SIMULATED_COPY_USERNAMES_DELAY);
+    control.verify();
+    Assert.assertTrue(usernameCache.isReady());
+
+    ArrayList<String> removedUsernames = new ArrayList<String>();
+    removedUsernames.add("dummyuser1");
+    removedUsernames.add("dummyuser3");
+    // Usernames that are not cached are ignored.
+    removedUsernames.add("dummyuser4");
+    usernameCache.removeMultiple(removedUsernames);
+    Assert.assertFalse(usernameCache.exists("dummyuser1"));
+    Assert.assertTrue(usernameCache.exists("dummyuser2"));
+    Assert.assertFalse(usernameCache.exists("dummyuser3"));
+    Assert.assertFalse(usernameCache.remove("dummyuser1"));
+    Assert.assertTrue(usernameCache.remove("dummyuser2"));
+  }
+
+  /**
+   * Tests refreshing some usernames against the Google Directory without copying it.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testRefreshUsernames() throws Exception {
+    final ArrayList<String> usernames = new ArrayList<String>();
+    usernames.add("dummyuser1");
+    usernames.add("dummyuser2");
+    FakeGoogleDirectory fakeGoogleDirectory = new FakeGoogleDirectory(usernames) {
+      @Override
+      public boolean verifyExists(String username) throws IOException {
+        return usernames.contains(username);
+      }
+    };
+    usernameCache = new UsernameCache(0, 60, TESTING_DB_PATH, TESTING_DB_NAME,
+        fakeGoogleDirectory);
+    Thread.sleep(500 + SIMULATED_COPY_USERNAMES_DELAY);
+    Assert.assertTrue(usernameCache.isReady());
+
+    // The directory changes after the copy.
+    usernames.remove("dummyuser1");
+    usernames.add("dummyuser3");
+    ArrayList<String> refreshedUsernames = new ArrayList<String>();
+    refreshedUsernames.add("dummyuser1");
+    refreshedUsernames.add("dummyuser2");
+    refreshedUsernames.add("dummyuser3");
+    Assert.assertEquals(2, usernameCache.refreshUsernames(refreshedUsernames));
+    Assert.assertFalse(usernameCache.exists("dummyuser1"));
+    Assert.assertTrue(usernameCache.exists("dummyuser2"));
+    Assert.assertTrue(usernameCache.exists("dummyuser3"));
+  }
+
+  /**
+   * Tests that usernames added and removed by several threads while the cache is refreshed are
+   * all applied to the new copy.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testConcurrentUpdatesWhileRefreshing() throws Exception {
+    final ArrayList<String> usernames = new ArrayList<String>();
+    for (int i = 0; i < 100; i++) {
+      usernames.add("dummyuser" + i);
+    }
+    usernameCache = new UsernameCache(0, 60, TESTING_DB_PATH, TESTING_DB_NAME,
+        new FakeGoogleDirectory(usernames));
+    Thread.sleep(500 + SIMULATED_COPY_USERNAMES_DELAY);
+    Assert.assertTrue(usernameCache.isReady());
+    final long lastRefreshTime = usernameCache.getLastRefreshTime();
+
+    Assert.assertTrue(usernameCache.refreshNow());
+    final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+    final int[] addedUsernames = new int[4];
+    Thread[] threads = new Thread[addedUsernames.length];
+    for (int t = 0; t < threads.length; t++) {
+      final int thread = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            // Keeps updating the cache until the refresh has replaced the data source.
+            long deadline = System.currentTimeMillis() + 10000;
+            while (usernameCache.getLastRefreshTime() == lastRefreshTime
+                && System.currentTimeMillis() < deadline) {
+              int i = addedUsernames[thread]++;
+              usernameCache.add("added" + thread + "." + i);
+              if (i < 25) {
+                usernameCache.remove("dummyuser" + (thread * 25 + i));
+              }
+            }
+          } catch (Throwable e) {
+            synchronized (errors) {
+              errors.add(e);
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertTrue(errors.toString(), errors.isEmpty());
+    Assert.assertTrue(usernameCache.getLastRefreshTime() != lastRefreshTime);
+    for (int t = 0; t < threads.length; t++) {
+      for (int i = 0; i < addedUsernames[t]; i++) {
+        Assert.assertTrue(usernameCache.exists("added" + t + "." + i));
+      }
+    }
+    for (int i = 0; i < 100; i++) {
+      Assert.assertFalse(usernameCache.exists("dummyuser" + i));
+    }
+  }
+
+  /**
+   * Tests that a username deleted and created again while the cache is refreshed is in the new
+   * copy.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testDeleteAndCreateWhileRefreshing() throws Exception {
+    ArrayList<String> usernames = new ArrayList<String>();
+    usernames.add("dummyuser1");
+    usernames.add("dummyuser2");
+    usernameCache = new UsernameCache(0, 60, TESTING_DB_PATH, TESTING_DB_NAME,
+        new FakeGoogleDirectory(usernames));
+    Thread.sleep(500 + SIMULATED_COPY_USERNAMES_DELAY);
+    Assert.assertTrue(usernameCache.isReady());
+    long lastRefreshTime = usernameCache.getLastRefreshTime();
+
+    Assert.assertTrue(usernameCache.refreshNow());
+    Thread.sleep(SIMULATED_COPY_USERNAMES_DELAY / 2);
+    Assert.assertEquals(UsernameCache.STATUS_REFRESHING, usernameCache.getStatus());
+    usernameCache.remove("dummyuser1");
+    usernameCache.insert("dummyuser1");
+    usernameCache.insert("dummyuser3");
+    usernameCache.remove("dummyuser3");
+    Thread.sleep(SIMULATED_COPY_USERNAMES_DELAY);
+
+    Assert.assertTrue(usernameCache.getLastRefreshTime() != lastRefreshTime);
+    Assert.assertTrue(usernameCache.exists("dummyuser1"));
+    Assert.assertTrue(usernameCache.exists("dummyuser2"));
+    Assert.assertFalse(usernameCache.exists("dummyuser3"));
+  }
+
+  /**
+   * Tests that a refresh counts the usernames added and the ones removed without notice, even when
+   * they cancel out in the total.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testMissedChangesInBothDirections() throws Exception {
+    ArrayList<String> usernames = new ArrayList<String>();
+    usernames.add("dummyuser1");
+    usernames.add("dummyuser2");
+    usernameCache = new UsernameCache(0, 60, TESTING_DB_PATH, TESTING_DB_NAME,
+        new FakeGoogleDirectory(usernames));
+    Thread.sleep(500 + SIMULATED_COPY_USERNAMES_DELAY);
+    Assert.assertTrue(usernameCache.isReady());
+    long lastRefreshTime = usernameCache.getLastRefreshTime();
+
+    // dummyuser4 is created with notice, dummyuser2 is replaced by dummyuser3 without it.
+    usernameCache.insert("dummyuser4");
+    usernames.clear();
+    usernames.add("dummyuser1");
+    usernames.add("dummyuser3");
+    usernames.add("dummyuser4");
+    Assert.assertTrue(usernameCache.refreshNow());
+    Thread.sleep(500 + SIMULATED_COPY_USERNAMES_DELAY);
+
+    Assert.assertTrue(usernameCache.getLastRefreshTime() != lastRefreshTime);
+    Assert.assertEquals(2, usernameCache.getLastMissedChanges());
+    Assert.assertFalse(usernameCache.exists("dummyuser2"));
+    Assert.assertTrue(usernameCache.exists("dummyuser3"));
+  }
+
+  /**
+   * Tests that disposing the cache stops the refreshes that are scheduled.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testDisposeStopsRefreshes() throws Exception {
+    ArrayList<String> usernames = new ArrayList<String>();
+    usernames.add("dummyuser1");
+    usernameCache = new UsernameCache(1, 60, TESTING_DB_PATH, TESTING_DB_NAME,
+        new FakeGoogleDirectory(usernames));
+    usernameCache.disposeDataSource();
+    Assert.assertFalse(usernameCache.refreshNow());
+    Thread.sleep(1500 + SIMULATED_COPY_USERNAMES_DELAY);
+    Assert.assertFalse(usernameCache.isReady());
+  }
+
   /**
    * Tests that trying to read an unpopulated cache throws an exception.
    *
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of MetricsRegistry class.
+ */
+public class MetricsRegistryTest {
+
+  private MetricsRegistry registry;
+
+  @Before
+  public void setUp() {
+    registry = new MetricsRegistry();
+  }
+
+  @Test
+  public void testCounterIsRegisteredOnce() {
+    Counter counter = registry.counter("requests_total", "Requests.", "endpoint", "suggest");
+    counter.inc();
+    assertSame(counter, registry.counter("requests_total", "Requests.", "endpoint", "suggest"));
+    registry.counter("requests_total", "Requests.", "endpoint", "create").inc(2);
+    String text = registry.toPrometheusText();
+    assertTrue(text.contains("# TYPE requests_total counter\n"));
+    assertTrue(text.contains("requests_total{endpoint=\"suggest\"} 1\n"));
+    assertTrue(text.contains("requests_total{endpoint=\"create\"} 2\n"));
+  }
+
+  @Test
+  public void testGauge() {
+    registry.gauge("locked_usernames", "Locked usernames.", new Gauge() {
+      @Override
+      public double getValue() {
+        return 3;
+      }
+    });
+    assertTrue(registry.toPrometheusText().contains("locked_usernames 3\n"));
+  }
+
+  @Test
+  public void testHistogram() {
+    Histogram histogram = registry.latencyHistogram("duration_seconds", "Duration.");
+    histogram.observe(1000000L);
+    histogram.observe(1000000000000L);
+    assertEquals(2, histogram.getCount());
+    String text = registry.toPrometheusText();
+    assertTrue(text.contains("# TYPE duration_seconds histogram\n"));
+    assertTrue(text.contains("duration_seconds_bucket{le=\"+Inf\"} 2\n"));
+    assertTrue(text.contains("duration_seconds_count 2\n"));
+    assertTrue(text.contains("duration_seconds_sum 1000.001\n"));
+  }
+
+  @Test
+  public void testHistogramBoundsIncrease() throws Exception {
+    Histogram histogram = new Histogram(1, 1000, 1);
+    histogram.observe(3);
+    StringWriter writer = new StringWriter();
+    histogram.writeSamples("size", "", writer);
+    String text = writer.toString();
+    assertTrue(text.startsWith("size_bucket{le=\"1\"} 0\nsize_bucket{le=\"2\"} 0\n"
+        + "size_bucket{le=\"3\"} 1\nsize_bucket{le=\"4\"} 1\nsize_bucket{le=\"5\"} 1\n"));
+    long previousBound = 0;
+    for (String line : text.split("\n")) {
+      if (line.startsWith("size_bucket") && !line.contains("+Inf")) {
+        long bound = Long.parseLong(line.substring(line.indexOf('"') + 1, line.lastIndexOf('"')));
+        assertTrue(line, bound > previousBound);
+        previousBound = bound;
+      }
+    }
+    assertTrue(previousBound >= 1000);
+  }
+
+  @Test
+  public void testLabelValuesAreEscaped() {
+    registry.counter("errors_total", "Errors.", "message", "say \"hi\"").inc();
+    assertTrue(registry.toPrometheusText().contains("errors_total{message=\"say \\\"hi\\\"\"} 1"));
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of RequestExecutor class.
+ */
+public class RequestExecutorTest {
+
+  private final long REQUEST_TIMEOUT = 5;
+  private RequestExecutor requestExecutor;
+  private CountDownLatch release;
+
+  @Before
+  public void setUp() {
+    requestExecutor = new RequestExecutor(1, 1, REQUEST_TIMEOUT);
+    release = new CountDownLatch(1);
+  }
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    requestExecutor.shutdown();
+  }
+
+  @Test
+  public void testRunsTasks() throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(1);
+    requestExecutor.execute(new Runnable() {
+      public void run() {
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(REQUEST_TIMEOUT, TimeUnit.SECONDS));
+    assertEquals(REQUEST_TIMEOUT, requestExecutor.getRequestTimeout());
+  }
+
+  @Test
+  public void testRejectsTasksWhenQueueIsFull() throws InterruptedException {
+    final CountDownLatch started = new CountDownLatch(1);
+    requestExecutor.execute(new Runnable() {
+      public void run() {
+        started.countDown();
+        awaitRelease();
+      }
+    });
+    assertTrue(started.await(REQUEST_TIMEOUT, TimeUnit.SECONDS));
+    requestExecutor.execute(new Runnable() {
+      public void run() {
+        awaitRelease();
+      }
+    });
+    assertEquals(1, requestExecutor.getQueueSize());
+    try {
+      requestExecutor.execute(new Runnable() {
+        public void run() {}
+      });
+      fail("The third task should be rejected.");
+    } catch (RejectedExecutionException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testBulkRequestsWaitForInteractiveRequests() throws InterruptedException {
+    requestExecutor.shutdown();
+    requestExecutor = new RequestExecutor(1, 1, REQUEST_TIMEOUT, 1, 1, REQUEST_TIMEOUT);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch bulkDone = new CountDownLatch(1);
+    requestExecutor.execute(new Runnable() {
+      public void run() {
+        started.countDown();
+        awaitRelease();
+      }
+    });
+    assertTrue(started.await(REQUEST_TIMEOUT, TimeUnit.SECONDS));
+    // Waits for a thread, so the bulk request can't start.
+    requestExecutor.execute(new Runnable() {
+      public void run() {}
+    });
+    requestExecutor.execute(new Runnable() {
+      public void run() {
+        bulkDone.countDown();
+      }
+    }, RequestExecutor.BULK);
+    assertFalse(bulkDone.await(300, TimeUnit.MILLISECONDS));
+    release.countDown();
+    assertTrue(bulkDone.await(REQUEST_TIMEOUT, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testParseRequestClass() throws Exception {
+    assertEquals(RequestExecutor.INTERACTIVE, RequestExecutor.parseRequestClass(null));
+    assertEquals(RequestExecutor.BULK, RequestExecutor.parseRequestClass("Bulk"));
+    try {
+      RequestExecutor.parseRequestClass("urgent");
+      fail("Only interactive and bulk are valid.");
+    } catch (Exception e) {
+      assertEquals("The request class must be interactive or bulk.", e.getMessage());
+    }
+  }
+
+  private void awaitRelease() {
+    try {
+      release.await(REQUEST_TIMEOUT, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
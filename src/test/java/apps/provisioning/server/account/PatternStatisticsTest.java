@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.server.account;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of PatternStatistics class.
+ */
+public class PatternStatisticsTest {
+
+  private final String[] PATTERNS = {"[firstname][lastname]", "[firstname].[lastname]",
+      "[C1_firstname][lastname]", "[firstname][lastname][#]"};
+
+  private PatternStatistics patternStatistics;
+
+  @Before
+  public void setUp() {
+    // Never checks the skipped patterns.
+    patternStatistics = new PatternStatistics(new Random() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public double nextDouble() {
+        return 1;
+      }
+    });
+  }
+
+  @Test
+  public void testFrequencyBuckets() {
+    HashMap<String, String> userData = new HashMap<String, String>();
+    userData.put(UsernameManager.FIRST_NAME, "John");
+    userData.put(UsernameManager.LAST_NAME, "Smith");
+    int[] expectedBuckets = {0, 1, 1, 1, 1, 1, 1, 2};
+    for (int expectedBucket : expectedBuckets) {
+      assertEquals(expectedBucket, patternStatistics.countName(userData));
+    }
+    userData.put(UsernameManager.LAST_NAME, "Smíth ");
+    assertEquals(2, patternStatistics.countName(userData));
+    userData.put(UsernameManager.LAST_NAME, "Doe");
+    assertEquals(0, patternStatistics.countName(userData));
+  }
+
+  @Test
+  public void testSkipsExhaustedPatterns() {
+    for (int i = 0; i < 100; i++) {
+      patternStatistics.record(PATTERNS[0], 3, false);
+      patternStatistics.record(PATTERNS[1], 3, i % 10 == 0);
+      patternStatistics.record(PATTERNS[2], 3, false);
+      patternStatistics.record(PATTERNS[3], 3, false);
+    }
+    assertArrayEquals(new String[] {PATTERNS[1], PATTERNS[3]},
+        patternStatistics.selectPatterns(PATTERNS, 3));
+    // Rare names still get every pattern.
+    assertArrayEquals(PATTERNS, patternStatistics.selectPatterns(PATTERNS, 0));
+  }
+
+  @Test
+  public void testNeedsEnoughChecks() {
+    for (int i = 0; i < 49; i++) {
+      patternStatistics.record(PATTERNS[0], 2, false);
+    }
+    assertFalse(patternStatistics.isExhausted(PATTERNS[0], 2));
+    patternStatistics.record(PATTERNS[0], 2, false);
+    assertTrue(patternStatistics.isExhausted(PATTERNS[0], 2));
+  }
+
+  @Test
+  public void testFreedPatternsComeBack() {
+    for (int i = 0; i < 100; i++) {
+      patternStatistics.record(PATTERNS[0], 1, false);
+    }
+    assertTrue(patternStatistics.isExhausted(PATTERNS[0], 1));
+    for (int i = 0; i < 5; i++) {
+      patternStatistics.record(PATTERNS[0], 1, true);
+    }
+    assertFalse(patternStatistics.isExhausted(PATTERNS[0], 1));
+  }
+}
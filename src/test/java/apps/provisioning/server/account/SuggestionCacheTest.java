@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.server.account;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of SuggestionCache class.
+ */
+public class SuggestionCacheTest {
+
+  private final long SUGGESTED_USERNAMES_TIMEOUT = 1;
+  private SuggestionCache suggestionCache;
+  private HashMap<String, String> userData;
+  private ArrayList<String> suggestions;
+
+  @Before
+  public void setUp() throws Exception {
+    suggestionCache = new SuggestionCache(SUGGESTED_USERNAMES_TIMEOUT);
+    userData = new HashMap<String, String>();
+    userData.put("firstname", "Carlos");
+    userData.put("lastname", "Álvarez");
+    suggestions =
+        new ArrayList<String>(Arrays.asList("carlos.alvarez", "carlosalvarez", "c.alvarez"));
+  }
+
+  @Test
+  public void testFingerprintIgnoresCaseAndSpaces() {
+    HashMap<String, String> retriedUserData = new HashMap<String, String>();
+    retriedUserData.put("lastname", " álvarez ");
+    retriedUserData.put("firstname", "CARLOS");
+    assertEquals(suggestionCache.fingerprint(userData, null),
+        suggestionCache.fingerprint(retriedUserData, null));
+  }
+
+  @Test
+  public void testFingerprintUsesIdempotencyKey() {
+    assertFalse(suggestionCache.fingerprint(userData, "request-1").equals(
+        suggestionCache.fingerprint(userData, "request-2")));
+  }
+
+  @Test
+  public void testGetReturnsStoredSuggestions() {
+    String fingerprint = suggestionCache.fingerprint(userData, "request-1");
+    suggestionCache.put(fingerprint, suggestions);
+    assertArrayEquals(suggestions.toArray(), suggestionCache.get(fingerprint).toArray());
+  }
+
+  @Test
+  public void testEntriesExpire() throws InterruptedException {
+    String fingerprint = suggestionCache.fingerprint(userData, null);
+    suggestionCache.put(fingerprint, suggestions);
+    Thread.sleep(SUGGESTED_USERNAMES_TIMEOUT * 1000 + 100);
+    assertNull(suggestionCache.get(fingerprint));
+    assertEquals(0, suggestionCache.size());
+  }
+
+  @Test
+  public void testInvalidateRemovesEntriesWithTakenUsernames() {
+    String fingerprint = suggestionCache.fingerprint(userData, null);
+    suggestionCache.put(fingerprint, suggestions);
+    suggestionCache.invalidate(Arrays.asList("carlosalvarez"));
+    assertNull(suggestionCache.get(fingerprint));
+  }
+}
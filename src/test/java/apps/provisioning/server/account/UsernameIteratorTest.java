@@ -21,6 +21,8 @@ import java.util.HashMap;
 import org.junit.Before;
 import org.junit.Test;
 
+import apps.provisioning.server.account.data.StemCounterIndex;
+
 /**
  * UsernameIterator test class.
  */
@@ -92,4 +94,21 @@ public class UsernameIteratorTest {
     assertArrayEquals(expectedResult, output);
   }
 
+  @Test
+  public final void testSkipsIndexedCounters() throws Exception {
+    StemCounterIndex stemCounterIndex = new StemCounterIndex();
+    stemCounterIndex.add("car-losalvarez1");
+    stemCounterIndex.add("car-losalvarez2");
+    stemCounterIndex.add("car-losalvarez4");
+    UsernameIterator usernameIterator =
+        new UsernameIterator(new String[] {"[C10_firstname][C10_lastname][#]"}, userData,
+            stemCounterIndex);
+    String[] output = new String[3];
+    for (int i = 0; i < output.length; i++) {
+      output[i] = usernameIterator.next();
+    }
+    assertArrayEquals(new String[] {"car-losalvarez3", "car-losalvarez5", "car-losalvarez6"},
+        output);
+  }
+
 }
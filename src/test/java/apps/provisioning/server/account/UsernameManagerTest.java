@@ -95,6 +95,22 @@ public class UsernameManagerTest {
     context.getUsernameCache().disposeDataSource();
   }
 
+  @Test
+  public final void testDeleteWithCacheEnabled() throws Exception {
+    Context context = new Context(CACHE_ENABLED_CONFIG_FILE_PATH);
+    // Waits for the cache to be populated, as in testCreateWithCacheEnabled.
+    Thread.sleep(4000);
+    UsernameManager usernameManager = new UsernameManager(context);
+    usernameManager.create(NOT_EXISTING_USERNAME_01, "Carlos", "Álvarez", "P@$$w0rd");
+    assertTrue(context.getUsernameCache().exists(NOT_EXISTING_USERNAME_01));
+    assertTrue(usernameManager.delete(NOT_EXISTING_USERNAME_01));
+    assertFalse(context.getDirectory().exists(NOT_EXISTING_USERNAME_01));
+    // The cache is updated without waiting for a refresh.
+    assertFalse(context.getUsernameCache().exists(NOT_EXISTING_USERNAME_01));
+    assertFalse(usernameManager.delete(NOT_EXISTING_USERNAME_01));
+    context.getUsernameCache().disposeDataSource();
+  }
+
   @Test
   public final void testCreateWithCacheDisabled() throws Exception {
     Context context = new Context(CACHE_DISABLED_CONFIG_FILE_PATH);
@@ -16,6 +16,7 @@ package apps.provisioning.server.account;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -25,6 +26,7 @@ import java.util.HashMap;
 import org.junit.Before;
 import org.junit.Test;
 
+import apps.provisioning.config.ConfigData;
 import apps.provisioning.data.UsernameCache;
 import apps.provisioning.server.Context;
 import apps.provisioning.server.account.data.UsernameDataSource;
@@ -123,6 +125,191 @@ public class UsernameSuggestorTest {
     assertArrayEquals(expectedResultSecond, suggestions.toArray());
   }
 
+  /**
+   * Testing that no lookups are done once the deadline has passed and the result is marked as
+   * partial.
+   *
+   * @throws Exception
+   */
+  @Test
+  public final void testGenerateWithExpiredDeadline() throws Exception {
+    userData.put("firstname", "Carlos");
+    userData.put("lastname", "Álvarez");
+    String configFile = "./test/apps-provisioning-test.properties";
+    Context context = new Context(configFile);
+    UsernameSuggestor usernameSuggestor = new UsernameSuggestor(context);
+    SuggestionList suggestions =
+        usernameSuggestor.generate(userData, null, System.currentTimeMillis() - 1);
+    assertTrue(suggestions.isPartial());
+    assertEquals(0, suggestions.size());
+    suggestions = usernameSuggestor.generate(userData, null, UsernameSuggestor.NO_DEADLINE);
+    assertFalse(suggestions.isPartial());
+    String[] expectedResult = new String[] {"carlos.alvarez", "carlosalvarez", "c.alvarez"};
+    assertArrayEquals(expectedResult, suggestions.toArray());
+  }
+
+  /**
+   * Testing that an interrupted generation stops and unlocks the suggestions it had locked.
+   *
+   * @throws Exception
+   */
+  @Test
+  public final void testGenerateWhenInterrupted() throws Exception {
+    userData.put("firstname", "Carlos");
+    userData.put("lastname", "Álvarez");
+    String configFile = "./test/apps-provisioning-test.properties";
+    Context context = new Context(configFile);
+    UsernameSuggestor usernameSuggestor = new UsernameSuggestor(context);
+    try {
+      // Interrupts the generation after the first suggestion, as a request timeout does.
+      usernameSuggestor.generate(userData, null, UsernameSuggestor.NO_DEADLINE,
+          new SuggestionListener() {
+            public void onSuggestion(String suggestion) {
+              Thread.currentThread().interrupt();
+            }
+          });
+      fail("Exception must be thrown.");
+    } catch (InterruptedException e) {
+      assertTrue(Thread.interrupted());
+    }
+    ArrayList<String> suggestions = usernameSuggestor.generate(userData);
+    String[] expectedResult = new String[] {"carlos.alvarez", "carlosalvarez", "c.alvarez"};
+    assertArrayEquals(expectedResult, suggestions.toArray());
+  }
+
+  /**
+   * Testing that abandoned suggestions are unlocked and replayed ones are kept.
+   *
+   * @throws Exception
+   */
+  @Test
+  public final void testAbandon() throws Exception {
+    userData.put("firstname", "Carlos");
+    userData.put("lastname", "Álvarez");
+    String configFile = "./test/apps-provisioning-test.properties";
+    Context context = new Context(configFile);
+    UsernameSuggestor usernameSuggestor = new UsernameSuggestor(context);
+    String[] expectedResult = new String[] {"carlos.alvarez", "carlosalvarez", "c.alvarez"};
+    SuggestionList suggestions =
+        usernameSuggestor.generate(userData, "key", UsernameSuggestor.NO_DEADLINE);
+    assertArrayEquals(expectedResult, suggestions.toArray());
+    SuggestionList replayed =
+        usernameSuggestor.generate(userData, "key", UsernameSuggestor.NO_DEADLINE);
+    assertTrue(replayed.isReplayed());
+    usernameSuggestor.abandon(replayed);
+    assertTrue(usernameSuggestor.generate(userData, "key", UsernameSuggestor.NO_DEADLINE)
+        .isReplayed());
+    usernameSuggestor.abandon(suggestions);
+    suggestions = usernameSuggestor.generate(userData, null, UsernameSuggestor.NO_DEADLINE);
+    assertFalse(suggestions.isReplayed());
+    assertArrayEquals(expectedResult, suggestions.toArray());
+  }
+
+  /**
+   * Testing that a generation with slow lookups, like a bulk import, doesn't delay the others.
+   *
+   * @throws Exception
+   */
+  @Test
+  public final void testGenerateWhileAnotherGenerationIsSlow() throws Exception {
+    final int lookupDelay = 1000;
+    final GoogleDirectory directory = new GoogleDirectory() {
+      @Override
+      public boolean exists(String username) {
+        if (username.contains("bulk")) {
+          try {
+            Thread.sleep(lookupDelay);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return false;
+      }
+    };
+    String configFile = "./test/apps-provisioning-test.properties";
+    Context context = new Context(configFile) {
+      @Override
+      public GoogleDirectory getDirectory() {
+        return directory;
+      }
+    };
+    final UsernameSuggestor usernameSuggestor = new UsernameSuggestor(context);
+    final HashMap<String, String> bulkUserData = new HashMap<String, String>();
+    bulkUserData.put("firstname", "Bulk");
+    bulkUserData.put("lastname", "Import");
+    Thread bulkGeneration = new Thread() {
+      @Override
+      public void run() {
+        try {
+          usernameSuggestor.generate(bulkUserData);
+        } catch (Exception e) {
+          // The test fails below if the generation didn't run.
+        }
+      }
+    };
+    bulkGeneration.start();
+    Thread.sleep(lookupDelay / 10);
+    userData.put("firstname", "Carlos");
+    userData.put("lastname", "Álvarez");
+    long start = System.currentTimeMillis();
+    ArrayList<String> suggestions = usernameSuggestor.generate(userData);
+    long duration = System.currentTimeMillis() - start;
+    assertTrue(bulkGeneration.isAlive());
+    assertTrue("The generation took " + duration + " ms.", duration < lookupDelay / 2);
+    String[] expectedResult = new String[] {"carlos.alvarez", "carlosalvarez", "c.alvarez"};
+    assertArrayEquals(expectedResult, suggestions.toArray());
+    bulkGeneration.join();
+  }
+
+  /**
+   * Testing that a name requested many times doesn't lose its first suggestion because the earlier
+   * requests locked it.
+   *
+   * @throws Exception
+   */
+  @Test
+  public final void testAdaptivePatternsIgnoreLockedSuggestions() throws Exception {
+    final GoogleDirectory directory = new GoogleDirectory() {
+      @Override
+      public boolean exists(String username) {
+        return false;
+      }
+    };
+    String configFile = "./test/apps-provisioning-test.properties";
+    final ConfigData config = new ConfigData(configFile) {
+      @Override
+      public Boolean getAdaptivePatterns() {
+        return true;
+      }
+    };
+    Context context = new Context(configFile) {
+      @Override
+      public ConfigData getConfig() {
+        return config;
+      }
+
+      @Override
+      public GoogleDirectory getDirectory() {
+        return directory;
+      }
+    };
+    UsernameSuggestor usernameSuggestor = new UsernameSuggestor(context);
+    userData.put("firstname", "Carlos");
+    userData.put("lastname", "Álvarez");
+    // Enough requests to reach the most frequent bucket and check its patterns 50 times, while the
+    // suggestions of the earlier requests are locked.
+    ArrayList<SuggestionList> requests = new ArrayList<SuggestionList>();
+    for (int i = 0; i < 100; i++) {
+      requests.add(usernameSuggestor.generate(userData, null, UsernameSuggestor.NO_DEADLINE));
+    }
+    assertEquals("carlos.alvarez", requests.get(0).get(0));
+    for (SuggestionList suggestions : requests) {
+      usernameSuggestor.abandon(suggestions);
+    }
+    ArrayList<String> suggestions = usernameSuggestor.generate(userData);
+    assertEquals("carlos.alvarez", suggestions.get(0));
+  }
+
   /**
    * Tests a firstname with 60 characters, this test checks that duplicate values are excluded.
    *
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.server.account.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of ResolverChain class.
+ */
+public class ResolverChainTest {
+
+  private ArrayList<String> askedTiers;
+
+  @Before
+  public void setUp() {
+    askedTiers = new ArrayList<String>();
+  }
+
+  @Test
+  public void testFirstTakenAnswerEndsTheLookup() throws Exception {
+    ResolverChain chain = new ResolverChain();
+    chain.addTier("locked", createLockedTier("locked", "carlos"));
+    chain.addTier("directory", createDataTier("directory", "carlos", "ana"));
+    assertTrue(chain.exists("carlos"));
+    assertEquals(Arrays.asList("locked"), askedTiers);
+    askedTiers.clear();
+    assertTrue(chain.exists("ana"));
+    assertEquals(Arrays.asList("locked", "directory"), askedTiers);
+  }
+
+  @Test
+  public void testUnknownAnswersPassToTheNextTier() throws Exception {
+    ResolverChain chain = new ResolverChain();
+    chain.addTier("cache", new UsernameResolver() {
+      public Answer resolve(String username) {
+        askedTiers.add("cache");
+        return Answer.UNKNOWN;
+      }
+
+      public boolean answersAvailable() {
+        return true;
+      }
+    });
+    chain.addTier("directory", createDataTier("directory", "ana"));
+    assertFalse(chain.exists("carlos"));
+    assertEquals(Arrays.asList("cache", "directory"), askedTiers);
+  }
+
+  @Test
+  public void testLockedTierIsAskedAfterAvailableAnswers() throws Exception {
+    ResolverChain chain = new ResolverChain();
+    chain.addTier("cache", createDataTier("cache", "ana"));
+    chain.addTier("locked", createLockedTier("locked", "carlos"));
+    chain.addTier("directory", createDataTier("directory", "ana"));
+    assertTrue(chain.exists("carlos"));
+    assertEquals(Arrays.asList("cache", "locked"), askedTiers);
+    askedTiers.clear();
+    assertFalse(chain.exists("maria"));
+    assertEquals(Arrays.asList("cache", "locked"), askedTiers);
+  }
+
+  @Test
+  public void testGetTakingTier() throws Exception {
+    ResolverChain chain = new ResolverChain();
+    chain.addTier("locked", createLockedTier("locked", "carlos"));
+    chain.addTier("directory", createDataTier("directory", "ana"));
+    assertEquals("locked", chain.getTakingTier("carlos"));
+    assertEquals("directory", chain.getTakingTier("ana"));
+    assertNull(chain.getTakingTier("maria"));
+  }
+
+  private UsernameResolver createLockedTier(final String name, String... lockedUsernames) {
+    final HashSet<String> usernames = new HashSet<String>(Arrays.asList(lockedUsernames));
+    return new UsernameResolver() {
+      public Answer resolve(String username) {
+        askedTiers.add(name);
+        return usernames.contains(username) ? Answer.TAKEN : Answer.UNKNOWN;
+      }
+
+      public boolean answersAvailable() {
+        return false;
+      }
+    };
+  }
+
+  private UsernameResolver createDataTier(final String name, String... takenUsernames) {
+    final HashSet<String> usernames = new HashSet<String>(Arrays.asList(takenUsernames));
+    return new UsernameResolver() {
+      public Answer resolve(String username) {
+        askedTiers.add(name);
+        return usernames.contains(username) ? Answer.TAKEN : Answer.AVAILABLE;
+      }
+
+      public boolean answersAvailable() {
+        return true;
+      }
+    };
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.server.account.data;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of StemCounterIndex class.
+ */
+public class StemCounterIndexTest {
+
+  private StemCounterIndex stemCounterIndex;
+
+  @Before
+  public void setUp() {
+    stemCounterIndex = new StemCounterIndex();
+  }
+
+  @Test
+  public void testUnknownStem() {
+    assertEquals(1, stemCounterIndex.getNextFreeCounter("carlosalvarez", 1));
+    stemCounterIndex.add("carlosalvarez");
+    assertEquals(0, stemCounterIndex.getStemCount());
+  }
+
+  @Test
+  public void testFillsGaps() {
+    stemCounterIndex.add("carlosalvarez1");
+    stemCounterIndex.add("carlosalvarez2");
+    stemCounterIndex.add("carlosalvarez4");
+    assertEquals(3, stemCounterIndex.getNextFreeCounter("carlosalvarez", 1));
+    assertEquals(5, stemCounterIndex.getNextFreeCounter("carlosalvarez", 4));
+  }
+
+  @Test
+  public void testIndexesEverySplit() {
+    stemCounterIndex.add("carlosalvarez12");
+    assertEquals(13, stemCounterIndex.getNextFreeCounter("carlosalvarez", 12));
+    assertEquals(3, stemCounterIndex.getNextFreeCounter("carlosalvarez1", 2));
+    assertEquals(2, stemCounterIndex.getStemCount());
+  }
+
+  @Test
+  public void testRemove() {
+    stemCounterIndex.add("carlosalvarez1");
+    stemCounterIndex.add("carlosalvarez2");
+    stemCounterIndex.remove("carlosalvarez1");
+    assertEquals(1, stemCounterIndex.getNextFreeCounter("carlosalvarez", 1));
+    stemCounterIndex.remove("carlosalvarez2");
+    assertEquals(0, stemCounterIndex.getStemCount());
+  }
+
+  @Test
+  public void testIgnoresLeadingZerosAndLargeCounters() {
+    stemCounterIndex.add("carlos01");
+    assertEquals(1, stemCounterIndex.getNextFreeCounter("carlos", 1));
+    assertEquals(2, stemCounterIndex.getNextFreeCounter("carlos0", 1));
+    stemCounterIndex.add("carlos20001");
+    assertEquals(20001, stemCounterIndex.getNextFreeCounter("carlos", 20001));
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.server.apis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+
+/**
+ * Test of the HTTP transports created by GoogleClient. A local server stands in for the users.get
+ * method of the Directory API and tells the connections apart by their client port.
+ */
+public class GoogleClientTest {
+
+  private final Logger logger = Logger.getLogger(GoogleClientTest.class.getName());
+  private final int THREADS = 8;
+  private final int REQUESTS_PER_THREAD = 50;
+  private final int MAX_CONNECTIONS = 4;
+  private final long TIMEOUT_SECONDS = 30;
+  private final String USER = "{\"primaryEmail\":\"john.smith@example.com\"}";
+
+  private Server server;
+  private String userUrl;
+  private Set<Integer> clientPorts;
+
+  @Before
+  public void setUp() throws Exception {
+    clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+    server = new Server();
+    ServerConnector connector = new ServerConnector(server);
+    connector.setHost("127.0.0.1");
+    server.addConnector(connector);
+    server.setHandler(new AbstractHandler() {
+      public void handle(String target, Request baseRequest, HttpServletRequest request,
+          HttpServletResponse response) throws IOException {
+        clientPorts.add(request.getRemotePort());
+        response.setContentType("application/json");
+        response.getWriter().write(USER);
+        baseRequest.setHandled(true);
+      }
+    });
+    server.start();
+    userUrl =
+        "http://127.0.0.1:" + connector.getLocalPort()
+            + "/admin/directory/v1/users/john.smith@example.com";
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.stop();
+  }
+
+  @Test
+  public void testApacheTransportReusesPooledConnections() throws Exception {
+    HttpTransport transport =
+        GoogleClient.createHttpTransport(GoogleClient.APACHE_TRANSPORT, MAX_CONNECTIONS);
+    assertEquals(THREADS * REQUESTS_PER_THREAD, runConcurrentGets(transport));
+    assertTrue(clientPorts.size() <= MAX_CONNECTIONS);
+    transport.shutdown();
+  }
+
+  @Test
+  public void testNetTransport() throws Exception {
+    HttpTransport transport = GoogleClient.createHttpTransport(GoogleClient.NET_TRANSPORT, 1);
+    assertEquals(THREADS * REQUESTS_PER_THREAD, runConcurrentGets(transport));
+  }
+
+  /**
+   * Sends the requests from several threads and logs the throughput.
+   *
+   * @return The number of successful requests.
+   */
+  private int runConcurrentGets(HttpTransport transport) throws InterruptedException {
+    final HttpRequestFactory requestFactory =
+        transport.createRequestFactory(new GoogleClient().createRequestInitializer(null));
+    final AtomicInteger successes = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(THREADS);
+    long start = System.nanoTime();
+    for (int i = 0; i < THREADS; i++) {
+      new Thread(new Runnable() {
+        public void run() {
+          try {
+            for (int j = 0; j < REQUESTS_PER_THREAD; j++) {
+              HttpResponse response =
+                  requestFactory.buildGetRequest(new GenericUrl(userUrl)).execute();
+              try {
+                if (USER.equals(response.parseAsString())) {
+                  successes.incrementAndGet();
+                }
+              } finally {
+                response.disconnect();
+              }
+            }
+          } catch (IOException e) {
+            // Counted as a failure.
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    logger.info(transport.getClass().getSimpleName() + ": " + successes.get() + " requests in "
+        + elapsedMillis + " ms using " + clientPorts.size() + " connections.");
+    return successes.get();
+  }
+}
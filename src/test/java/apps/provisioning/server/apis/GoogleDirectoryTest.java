@@ -19,7 +19,10 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -27,6 +30,9 @@ import org.junit.Test;
 import apps.provisioning.config.ConfigData;
 import apps.provisioning.server.account.data.LockedDirectory;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.services.admin.directory.model.User;
 
 /**
@@ -121,4 +127,29 @@ public class GoogleDirectoryTest {
     assertFalse(googleDirectory.exists(NOT_EXISTING_USERNAME));
   }
 
+  /**
+   * Test method for
+   * {@link apps.provisioning.server.apis.GoogleDirectory#isRetryable(java.io.IOException)}.
+   */
+  @Test
+  public final void testIsRetryable() {
+    assertTrue(GoogleDirectory.isRetryable(new IOException("Connection reset")));
+    assertTrue(GoogleDirectory.isRetryable(createResponseException(503)));
+    assertTrue(GoogleDirectory.isRetryable(createResponseException(429)));
+    assertFalse(GoogleDirectory.isRetryable(createResponseException(400)));
+    assertFalse(GoogleDirectory.isRetryable(createResponseException(403)));
+    assertFalse(GoogleDirectory.isRetryable(new JsonParseException("Unexpected character", null)));
+    try {
+      UsersPageParser.parse(new ByteArrayInputStream("[]".getBytes(StandardCharsets.UTF_8)),
+          new ArrayList<String>());
+      fail("A page must be a JSON object.");
+    } catch (IOException e) {
+      assertFalse(GoogleDirectory.isRetryable(e));
+    }
+  }
+
+  private HttpResponseException createResponseException(int statusCode) {
+    return new HttpResponseException.Builder(statusCode, null, new HttpHeaders()).build();
+  }
+
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.server.apis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import apps.provisioning.metrics.MetricsRegistry;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+
+/**
+ * Test of InstrumentedRequestInitializer class.
+ */
+public class InstrumentedRequestInitializerTest {
+
+  private final String USERS_URL = "https://www.googleapis.com/admin/directory/v1/users";
+  private final String USER_URL = USERS_URL + "/john.smith@example.com";
+
+  private InstrumentedRequestInitializer initializer;
+  private HttpRequestFactory requestFactory;
+
+  @Before
+  public void setUp() {
+    initializer = new InstrumentedRequestInitializer(null);
+    requestFactory = new NetHttpTransport().createRequestFactory();
+  }
+
+  @Test
+  public void testGetMethodName() throws IOException {
+    JsonHttpContent content = new JsonHttpContent(new JacksonFactory(), "");
+    assertEquals("list", getMethodName(requestFactory.buildGetRequest(new GenericUrl(USERS_URL
+        + "?domain=example.com"))));
+    assertEquals("insert", getMethodName(requestFactory.buildPostRequest(new GenericUrl(
+        USERS_URL), content)));
+    assertEquals("get", getMethodName(requestFactory.buildGetRequest(new GenericUrl(USERS_URL
+        + "/john.smith@example.com"))));
+    assertEquals("delete", getMethodName(requestFactory.buildDeleteRequest(new GenericUrl(
+        USERS_URL + "/john.smith@example.com"))));
+    assertEquals("update", getMethodName(requestFactory.buildPutRequest(new GenericUrl(USERS_URL
+        + "/john.smith@example.com"), content)));
+    assertEquals("watch", getMethodName(requestFactory.buildPostRequest(new GenericUrl(USERS_URL
+        + "/watch"), content)));
+  }
+
+  @Test
+  public void testExecuteThroughFactory() throws IOException {
+    long calls = getCalls("get", "200");
+    QueuedTransport transport = new QueuedTransport();
+    transport.responses.add(200);
+    HttpRequestFactory factory =
+        transport.createRequestFactory(new InstrumentedRequestInitializer(null));
+    factory.buildGetRequest(new GenericUrl(USER_URL)).execute();
+    assertEquals(calls + 1, getCalls("get", "200"));
+  }
+
+  @Test
+  public void testRetriedCallIsRecordedOnce() throws IOException {
+    long succeeded = getCalls("delete", "204");
+    long unauthorized = getCalls("delete", "401");
+    long retries = getRetries("delete");
+    QueuedTransport transport = new QueuedTransport();
+    transport.responses.add(401);
+    transport.responses.add(204);
+    HttpRequestFactory factory =
+        transport.createRequestFactory(new InstrumentedRequestInitializer(
+            new HttpRequestInitializer() {
+              public void initialize(HttpRequest request) {
+                // Retries an unauthorized call once, like the credential after a token refresh.
+                request.setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
+                  public boolean handleResponse(HttpRequest request, HttpResponse response,
+                      boolean supportsRetry) {
+                    return supportsRetry && response.getStatusCode() == 401;
+                  }
+                });
+              }
+            }));
+    factory.buildDeleteRequest(new GenericUrl(USER_URL)).execute();
+    assertEquals(succeeded + 1, getCalls("delete", "204"));
+    assertEquals(unauthorized, getCalls("delete", "401"));
+    assertEquals(retries + 1, getRetries("delete"));
+  }
+
+  @Test
+  public void testFailedCallIsRecordedOnce() throws IOException {
+    long calls = getCalls("list", "404");
+    QueuedTransport transport = new QueuedTransport();
+    transport.responses.add(404);
+    HttpRequestFactory factory =
+        transport.createRequestFactory(new InstrumentedRequestInitializer(null));
+    try {
+      factory.buildGetRequest(new GenericUrl(USERS_URL)).execute();
+      fail();
+    } catch (HttpResponseException e) {
+      assertEquals(404, e.getStatusCode());
+    }
+    assertEquals(calls + 1, getCalls("list", "404"));
+  }
+
+  @Test
+  public void testIOErrorIsRecorded() throws IOException {
+    long calls = getCalls("insert", "io_error");
+    QueuedTransport transport = new QueuedTransport();
+    HttpRequestFactory factory =
+        transport.createRequestFactory(new InstrumentedRequestInitializer(null));
+    try {
+      factory.buildPostRequest(new GenericUrl(USERS_URL),
+          new JsonHttpContent(new JacksonFactory(), "")).execute();
+      fail();
+    } catch (IOException e) {
+      // Expected, no response is queued.
+    }
+    assertEquals(calls + 1, getCalls("insert", "io_error"));
+  }
+
+  private long getCalls(String method, String status) {
+    return MetricsRegistry.getDefault().counter("provisioning_google_api_calls_total",
+        "Calls to Google APIs by method and final status code.", "method", method, "status",
+        status).get();
+  }
+
+  private long getRetries(String method) {
+    return MetricsRegistry.getDefault().counter("provisioning_google_api_retries_total",
+        "Calls to Google APIs that were sent again.", "method", method).get();
+  }
+
+  /**
+   * Answers the requests with the queued status codes and fails when there is none left.
+   */
+  private static class QueuedTransport extends MockHttpTransport {
+
+    private final LinkedList<Integer> responses = new LinkedList<Integer>();
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) {
+      return new MockLowLevelHttpRequest(url) {
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+          if (responses.isEmpty()) {
+            throw new IOException("Connection refused.");
+          }
+          MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+          response.setStatusCode(responses.removeFirst());
+          return response;
+        }
+      };
+    }
+  }
+
+  private String getMethodName(HttpRequest request) {
+    return initializer.getMethodName(request);
+  }
+}
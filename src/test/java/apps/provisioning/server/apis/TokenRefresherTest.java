@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.server.apis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.TokenResponse;
+
+/**
+ * Test of TokenRefresher class.
+ */
+public class TokenRefresherTest {
+
+  private final long REFRESH_MARGIN_SECONDS = 300;
+  private final long TOKEN_LIFETIME_SECONDS = 3600;
+  private final long TIMEOUT_SECONDS = 5;
+
+  private AtomicInteger refreshes;
+  private CountDownLatch refreshed;
+  private Credential credential;
+  private TokenRefresher tokenRefresher;
+
+  @Before
+  public void setUp() {
+    refreshes = new AtomicInteger();
+    refreshed = new CountDownLatch(1);
+    credential = new Credential(BearerToken.authorizationHeaderAccessMethod()) {
+      @Override
+      protected TokenResponse executeRefreshToken() throws IOException {
+        refreshes.incrementAndGet();
+        refreshed.countDown();
+        return new TokenResponse().setAccessToken("token").setExpiresInSeconds(
+            TOKEN_LIFETIME_SECONDS);
+      }
+    };
+    tokenRefresher = new TokenRefresher(credential, REFRESH_MARGIN_SECONDS);
+  }
+
+  @After
+  public void tearDown() {
+    tokenRefresher.shutdown();
+  }
+
+  @Test
+  public void testGetRefreshDelay() {
+    assertEquals(0, tokenRefresher.getRefreshDelay(null));
+    assertEquals(0, tokenRefresher.getRefreshDelay(REFRESH_MARGIN_SECONDS - 1));
+    assertEquals(TOKEN_LIFETIME_SECONDS - REFRESH_MARGIN_SECONDS,
+        tokenRefresher.getRefreshDelay(TOKEN_LIFETIME_SECONDS));
+  }
+
+  @Test
+  public void testStartRefreshesMissingToken() throws InterruptedException {
+    final CountDownLatch warmedUp = new CountDownLatch(1);
+    assertFalse(tokenRefresher.hasToken());
+    tokenRefresher.start(new Runnable() {
+      public void run() {
+        warmedUp.countDown();
+      }
+    });
+    assertTrue(warmedUp.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertTrue(refreshed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+    while (!tokenRefresher.hasToken() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(tokenRefresher.hasToken());
+    assertEquals("token", credential.getAccessToken());
+  }
+
+  @Test
+  public void testStartKeepsFreshToken() throws InterruptedException {
+    credential.setAccessToken("token").setExpiresInSeconds(TOKEN_LIFETIME_SECONDS);
+    tokenRefresher.start(null);
+    assertFalse(refreshed.await(200, TimeUnit.MILLISECONDS));
+    assertEquals(0, refreshes.get());
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.server.apis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+/**
+ * Test of UsersPageParser class.
+ */
+public class UsersPageParserTest {
+
+  @Test
+  public void testParse() throws IOException {
+    ArrayList<String> usernames = new ArrayList<String>();
+    String nextPageToken =
+        UsersPageParser.parse(toStream("{\"kind\":\"admin#directory#users\",\"users\":["
+            + "{\"primaryEmail\":\"john.smith@example.com\",\"name\":{\"fullName\":\"John\"}},"
+            + "{\"emails\":[{\"address\":\"x@example.com\"}],\"primaryEmail\":\"jsmith@example.com\"}"
+            + "],\"nextPageToken\":\"token\"}"), usernames);
+    assertEquals("token", nextPageToken);
+    assertEquals(2, usernames.size());
+    assertEquals("john.smith", usernames.get(0));
+    assertEquals("jsmith", usernames.get(1));
+  }
+
+  @Test
+  public void testParseLastPage() throws IOException {
+    ArrayList<String> usernames = new ArrayList<String>();
+    assertNull(UsersPageParser.parse(toStream("{}"), usernames));
+    assertEquals(0, usernames.size());
+  }
+
+  @Test
+  public void testParseUsername() throws IOException {
+    assertEquals("jsmith", UsersPageParser.parseUsername(toStream("{\"name\":{\"fullName\":"
+        + "\"John\"},\"primaryEmail\":\"jsmith@example.com\"}")));
+    assertNull(UsersPageParser.parseUsername(toStream("{\"id\":\"123\"}")));
+  }
+
+  @Test
+  public void testParseInvalidPage() {
+    try {
+      UsersPageParser.parse(toStream("[]"), new ArrayList<String>());
+      fail("A page must be a JSON object.");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  private InputStream toStream(String content) {
+    return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.server.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test of ClientRateLimiter class.
+ */
+public class ClientRateLimiterTest {
+
+  @Test
+  public void testLimitsBurst() {
+    ClientRateLimiter rateLimiter = new ClientRateLimiter(1, 2);
+    assertTrue(rateLimiter.tryAcquire("10.0.0.1"));
+    assertTrue(rateLimiter.tryAcquire("10.0.0.1"));
+    assertFalse(rateLimiter.tryAcquire("10.0.0.1"));
+  }
+
+  @Test
+  public void testLimitsEachClient() {
+    ClientRateLimiter rateLimiter = new ClientRateLimiter(1, 1);
+    assertTrue(rateLimiter.tryAcquire("10.0.0.1"));
+    assertFalse(rateLimiter.tryAcquire("10.0.0.1"));
+    assertTrue(rateLimiter.tryAcquire("10.0.0.2"));
+    assertEquals(2, rateLimiter.size());
+  }
+
+  @Test
+  public void testRefillsTokens() throws InterruptedException {
+    ClientRateLimiter rateLimiter = new ClientRateLimiter(10, 1);
+    assertTrue(rateLimiter.tryAcquire("10.0.0.1"));
+    assertFalse(rateLimiter.tryAcquire("10.0.0.1"));
+    Thread.sleep(150);
+    assertTrue(rateLimiter.tryAcquire("10.0.0.1"));
+  }
+
+  @Test
+  public void testCapsClients() {
+    ClientRateLimiter rateLimiter = new ClientRateLimiter(1, 1, 2);
+    assertTrue(rateLimiter.tryAcquire("10.0.0.1"));
+    assertTrue(rateLimiter.tryAcquire("10.0.0.2"));
+    assertFalse(rateLimiter.tryAcquire("10.0.0.1"));
+    for (int i = 3; i < 100; i++) {
+      assertTrue(rateLimiter.tryAcquire("10.0.0." + i));
+    }
+    assertEquals(2, rateLimiter.size());
+    // The least recently used clients were dropped.
+    assertTrue(rateLimiter.tryAcquire("10.0.0.1"));
+    assertFalse(rateLimiter.tryAcquire("10.0.0.99"));
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.server.rest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Compares the time that JsonCodec and the org.json objects it replaced take to read the suggest
+ * and select bodies and write their responses. It is a timing loop, not a test, so it is ignored:
+ * remove the annotation to run it.
+ */
+@Ignore
+public class JsonCodecBenchmark {
+
+  private final String[] SUGGEST_FIELDS = new String[] {"firstname", "lastname"};
+  private final String[] SELECT_FIELDS = new String[] {"username", "suggestions"};
+  private final String SUGGEST_BODY =
+      "{\"firstname\":\"Carlos\",\"lastname\":\"Álvarez\",\"department\":\"Sales\"}";
+  private final String SELECT_BODY = "{\"username\":\"carlos.alvarez\",\"suggestions\":"
+      + "[\"carlos.alvarez\",\"carlosalvarez\",\"c.alvarez\",\"calvarez\",\"carlos.alvarez1\"]}";
+  private final List<String> SUGGESTIONS =
+      Arrays.asList("carlos.alvarez", "carlosalvarez", "c.alvarez");
+  private final int WARM_UP_ITERATIONS = 300000;
+  private final int ITERATIONS = 1000000;
+  private final int ROUNDS = 5;
+
+  private final Logger logger = Logger.getLogger(JsonCodecBenchmark.class.getName());
+  // Keeps the results alive, so the loops are not optimized away.
+  private long sink;
+
+  /**
+   * One call of the timing loop.
+   */
+  private interface Operation {
+    int run() throws Exception;
+  }
+
+  @Test
+  public void testSuggest() throws Exception {
+    double orgJson = measure(new Operation() {
+      public int run() throws Exception {
+        HashMap<String, String> userData = parseWithOrgJson(SUGGEST_BODY, SUGGEST_FIELDS);
+        return userData.size() + JSONObject.valueToString(SUGGESTIONS).length();
+      }
+    });
+    double jsonCodec = measure(new Operation() {
+      public int run() throws Exception {
+        HashMap<String, String> userData =
+            JsonCodec.readUserData(SUGGEST_BODY, SUGGEST_FIELDS).getUserData();
+        return userData.size() + JsonCodec.writeSuggestions(SUGGESTIONS).length();
+      }
+    });
+    report("suggest", orgJson, jsonCodec);
+  }
+
+  @Test
+  public void testSelect() throws Exception {
+    double orgJson = measure(new Operation() {
+      public int run() throws Exception {
+        HashMap<String, String> body = parseWithOrgJson(SELECT_BODY, SELECT_FIELDS);
+        JSONArray array = new JSONArray(body.get("suggestions"));
+        ArrayList<String> suggestions = new ArrayList<String>();
+        for (int i = 0; i < array.length(); i++) {
+          suggestions.add(array.getString(i));
+        }
+        return suggestions.size()
+            + JSONObject.valueToString(Collections.singletonMap("message", "ok")).length();
+      }
+    });
+    double jsonCodec = measure(new Operation() {
+      public int run() throws Exception {
+        SelectRequest request = JsonCodec.readSelectRequest(SELECT_BODY);
+        return request.getSuggestions().size() + JsonCodec.writeMessage("ok").length();
+      }
+    });
+    report("select", orgJson, jsonCodec);
+  }
+
+  /**
+   * Reads a body the way ProvisioningAction did before JsonCodec.
+   */
+  private HashMap<String, String> parseWithOrgJson(String body, String[] requiredFields)
+      throws Exception {
+    JSONObject object = new JSONObject(body);
+    for (String field : requiredFields) {
+      if (!object.has(field)) {
+        throw new Exception("User data must contain " + field + " field.");
+      }
+    }
+    HashMap<String, String> values = new HashMap<String, String>();
+    for (Object key : object.keySet()) {
+      values.put((String) key, object.get((String) key).toString());
+    }
+    return values;
+  }
+
+  /**
+   * @return The best time of the rounds, in nanoseconds per call.
+   */
+  private double measure(Operation operation) throws Exception {
+    for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+      sink += operation.run();
+    }
+    double best = Double.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; round++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++) {
+        sink += operation.run();
+      }
+      best = Math.min(best, (System.nanoTime() - start) / (double) ITERATIONS);
+    }
+    return best;
+  }
+
+  private void report(String method, double orgJson, double jsonCodec) {
+    logger.log(Level.INFO, String.format("%s: org.json %.0f ns, JsonCodec %.0f ns (%.1fx) [%d]",
+        method, orgJson, jsonCodec, orgJson / jsonCodec, sink % 10));
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.server.rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Test of JsonCodec class.
+ */
+public class JsonCodecTest {
+
+  private final String[] REQUIRED_FIELDS = new String[] {"firstname", "lastname"};
+
+  @Test
+  public void testReadUserData() throws Exception {
+    UserDataRequest request =
+        JsonCodec.readUserData("{\"firstname\":\"Carlos\",\"lastname\":\"Álvarez\",\"id\":123}",
+            REQUIRED_FIELDS);
+    assertEquals("Carlos", request.getFirstName());
+    assertEquals("Álvarez", request.getLastName());
+    assertEquals("123", request.getUserData().get("id"));
+  }
+
+  @Test
+  public void testReadUserDataMissingField() {
+    try {
+      JsonCodec.readUserData("{\"firstname\":\"Carlos\"}", REQUIRED_FIELDS);
+      fail("The lastname field is required.");
+    } catch (Exception e) {
+      assertEquals("User data must contain lastname field.", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testReadUserDataWrongJSON() {
+    try {
+      JsonCodec.readUserData("{\"firstname\",\"Carlos\"}", REQUIRED_FIELDS);
+      fail("The input is not valid JSON.");
+    } catch (Exception e) {
+      assertTrue(e.getMessage().startsWith("Parse errors in JSON input:"));
+    }
+  }
+
+  @Test
+  public void testReadSelectRequest() throws Exception {
+    SelectRequest request =
+        JsonCodec.readSelectRequest("{\"username\":\"carlosalvarez\","
+            + "\"suggestions\":[\"carlos.alvarez\",\"carlosalvarez\"]}");
+    assertEquals("carlosalvarez", request.getUsername());
+    assertArrayEquals(new Object[] {"carlos.alvarez", "carlosalvarez"}, request.getSuggestions()
+        .toArray());
+  }
+
+  @Test
+  public void testReadUsernames() throws Exception {
+    assertArrayEquals(new Object[] {"carlos.alvarez", "carlosalvarez"},
+        JsonCodec.readUsernames("{\"usernames\":[\"carlos.alvarez\",\"carlosalvarez\"]}")
+            .toArray());
+    try {
+      JsonCodec.readUsernames("{\"usernames\":\"carlosalvarez\"}");
+      fail("The usernames field must be an array.");
+    } catch (Exception e) {
+      assertEquals("The usernames field must be an array.", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testWriteResponses() {
+    assertEquals("[\"carlos.alvarez\",\"carlosalvarez\"]",
+        JsonCodec.writeSuggestions(Arrays.asList("carlos.alvarez", "carlosalvarez")));
+    assertEquals("{\"errorMessage\":\"Unexpected \\\"quote\\\".\"}",
+        JsonCodec.writeError("Unexpected \"quote\"."));
+    assertEquals("{\"suggestedUsernamesTimeout\":\"120\",\"numberOfSuggestions\":\"3\","
+        + "\"domain\":\"example.com\"}", JsonCodec.writeConfig(new ConfigResponse(120, 3,
+        "example.com")));
+  }
+}
@@ -19,6 +19,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import org.json.JSONArray;
+import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -76,6 +77,24 @@ public class ProvisioningActionTest {
     assertEquals("[\"carlos.alvarez\",\"carlosalvarez\",\"c.alvarez\"]", suggestions);
   }
 
+  @Test
+  public final void testSuggestInvalidTimeBudget() {
+    String output =
+        provisioningAction.suggest("{\"firstname\":\"Carlos\",\"lastname\":\"Álvarez\"}",
+            null, "soon");
+    assertEquals("{\"errorMessage\":\"X-Suggest-Time-Budget header must be a positive number of"
+        + " milliseconds.\"}", output);
+  }
+
+  @Test
+  public final void testTimeBudgetIsClampedToTheConfiguredOne() throws Exception {
+    assertEquals(500, ProvisioningAction.parseTimeBudget(null, 500));
+    assertEquals(200, ProvisioningAction.parseTimeBudget("200", 500));
+    assertEquals(500, ProvisioningAction.parseTimeBudget("60000", 500));
+    // Without a configured time budget, the header sets it.
+    assertEquals(60000, ProvisioningAction.parseTimeBudget("60000", 0));
+  }
+
   @Test
   public final void testCreateParseNullInput() {
     assertEquals("{\"errorMessage\":\"No parameters received.\"}", provisioningAction.create(null));
@@ -101,6 +120,31 @@ public class ProvisioningActionTest {
     assertFalse(ProvisioningApp.getInstance().getContext().getDirectory().exists(username));
   }
 
+  @Test
+  public final void testClaimMissingFields() {
+    String output =
+        provisioningAction.claim("{\"firstname\":\"Carlos\",\"lastname\":\"Álvarez\"}");
+    assertEquals("{\"errorMessage\":\"User data must contain password field.\"}", output);
+  }
+
+  @Test
+  public final void testClaim() throws Exception {
+    String output =
+        provisioningAction
+            .claim("{\"firstname\":\"Carlos\",\"lastname\":\"Álvarez\",\"password\":\"12345678\"}");
+    JSONObject response = new JSONObject(output);
+    assertEquals("User created successfully.", response.getString("message"));
+    String username = response.getString("username");
+    assertEquals("carlos.alvarez", username);
+    assertTrue(ProvisioningApp.getInstance().getContext().getDirectory().exists(username));
+    // The claimed username is no longer locked nor suggested.
+    String suggestions =
+        provisioningAction.suggest("{\"firstname\":\"Carlos\",\"lastname\":\"Álvarez\"}");
+    assertFalse(new JSONArray(suggestions).toString().contains("\"" + username + "\""));
+    ProvisioningApp.getInstance().getContext().getDirectory().remove(username);
+    assertFalse(ProvisioningApp.getInstance().getContext().getDirectory().exists(username));
+  }
+
   @Test
   public final void testSuggestCreateSelect() throws Exception {
     String suggestions =
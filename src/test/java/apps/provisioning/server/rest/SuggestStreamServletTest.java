@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package apps.provisioning.server.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import apps.provisioning.ProvisioningApp;
+import apps.provisioning.data.UsernameCache;
+
+/**
+ * Test of SuggestStreamServlet class. It runs the servlet in an embedded Jetty server.
+ */
+public class SuggestStreamServletTest {
+
+  private static final String CONFIG_FILE_PATH = "./test/apps-provisioning-test.properties";
+  private final String EVENT_STREAM = "text/event-stream";
+
+  private Server server;
+  private String streamUrl;
+  private boolean appInitialized = false;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new Server(0);
+    ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+    ServletHolder holder = new ServletHolder(new SuggestStreamServlet());
+    holder.setAsyncSupported(true);
+    context.addServlet(holder, SuggestStreamServlet.PATH);
+    server.setHandler(context);
+    server.start();
+    int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+    streamUrl = "http://localhost:" + port + SuggestStreamServlet.PATH;
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.stop();
+    if (appInitialized) {
+      UsernameCache cache = ProvisioningApp.getInstance().getContext().getUsernameCache();
+      if (cache != null) {
+        cache.disposeDataSource();
+      }
+      ProvisioningApp.clearInstance();
+    }
+  }
+
+  @Test
+  public final void testGetMissingLastname() throws Exception {
+    HttpURLConnection connection = get("?firstname=Carlos");
+    assertEquals(400, connection.getResponseCode());
+    assertTrue(connection.getContentType().startsWith(EVENT_STREAM));
+    assertEquals("event: error\ndata: {\"errorMessage\":\"User data must contain lastname"
+        + " field.\"}\n\n", read(connection));
+  }
+
+  @Test
+  public final void testGetMissingFirstname() throws Exception {
+    HttpURLConnection connection = get("?lastname=Alvarez&unused=value");
+    assertEquals(400, connection.getResponseCode());
+    assertEquals("event: error\ndata: {\"errorMessage\":\"User data must contain firstname"
+        + " field.\"}\n\n", read(connection));
+  }
+
+  @Test
+  public final void testPostWrongJSON() throws Exception {
+    HttpURLConnection connection = post("{\"firstname\",\"Carlos\"}");
+    assertEquals(400, connection.getResponseCode());
+    assertTrue(read(connection).startsWith(
+        "event: error\ndata: {\"errorMessage\":\"Parse errors in JSON input:"));
+  }
+
+  @Test
+  public final void testInvalidTimeBudget() throws Exception {
+    HttpURLConnection connection = get("?firstname=Carlos&lastname=Alvarez");
+    connection.setRequestProperty(ProvisioningAction.TIME_BUDGET_HEADER, "soon");
+    assertEquals(400, connection.getResponseCode());
+    assertEquals("event: error\ndata: {\"errorMessage\":\"X-Suggest-Time-Budget header must be"
+        + " a positive number of milliseconds.\"}\n\n", read(connection));
+  }
+
+  @Test
+  public final void testGetStreamsSuggestions() throws Exception {
+    initApp();
+    HttpURLConnection connection = get("?firstname=Carlos&lastname=%C3%81lvarez");
+    assertEquals(200, connection.getResponseCode());
+    assertTrue(connection.getContentType().startsWith(EVENT_STREAM));
+    String events = read(connection);
+    assertTrue(events.startsWith("event: suggestion\ndata: carlos.alvarez\n\n"
+        + "event: suggestion\ndata: carlosalvarez\n\nevent: suggestion\ndata: c.alvarez\n\n"));
+    assertTrue(events.contains("event: complete\n"));
+  }
+
+  @Test
+  public final void testPostStreamsSuggestions() throws Exception {
+    initApp();
+    HttpURLConnection connection = post("{\"firstname\":\"Carlos\",\"lastname\":\"Álvarez\"}");
+    assertEquals(200, connection.getResponseCode());
+    String events = read(connection);
+    assertTrue(events.startsWith("event: suggestion\ndata: carlos.alvarez\n\n"));
+    assertTrue(events.endsWith("\n\n"));
+    assertTrue(events.contains("event: complete\n"));
+  }
+
+  private void initApp() throws Exception {
+    ProvisioningApp.getInstance().initApp(null, CONFIG_FILE_PATH);
+    appInitialized = true;
+  }
+
+  private HttpURLConnection get(String query) throws IOException {
+    return (HttpURLConnection) new URL(streamUrl + query).openConnection();
+  }
+
+  private HttpURLConnection post(String body) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(streamUrl).openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+    OutputStream output = connection.getOutputStream();
+    output.write(body.getBytes(StandardCharsets.UTF_8));
+    output.close();
+    return connection;
+  }
+
+  private String read(HttpURLConnection connection) throws IOException {
+    InputStream input =
+        connection.getResponseCode() < 400 ? connection.getInputStream() : connection
+            .getErrorStream();
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int read;
+    while ((read = input.read(buffer)) != -1) {
+      body.write(buffer, 0, read);
+    }
+    input.close();
+    return new String(body.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
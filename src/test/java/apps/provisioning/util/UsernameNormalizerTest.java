@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package apps.provisioning.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Locale;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+
+/**
+ * Test of class UsernameNormalizer.
+ */
+public class UsernameNormalizerTest {
+
+  @Test
+  public void testReturnsNormalizedValues() {
+    String value = "carlos.alvarez";
+    assertSame(value, UsernameNormalizer.normalize(value));
+    assertNull(UsernameNormalizer.normalize(null));
+  }
+
+  @Test
+  public void testTransliteratesGreek() {
+    assertEquals("omega", UsernameNormalizer.normalize("Ωμέγα"));
+    assertEquals("christos", UsernameNormalizer.normalize("Χρήστος"));
+  }
+
+  @Test
+  public void testTransliteratesCyrillic() {
+    assertEquals("ivan", UsernameNormalizer.normalize("Иван"));
+    assertEquals("shchukin", UsernameNormalizer.normalize("Щукин"));
+    assertEquals("fedir", UsernameNormalizer.normalize("Федір"));
+  }
+
+  @Test
+  public void testTransliterationsAreTruncated() {
+    StringBuilder value = new StringBuilder();
+    for (int i = 0; i < 20; i++) {
+      value.append("щ");
+    }
+    assertEquals(UsernameNormalizer.USERNAME_MAX_LENGTH,
+        UsernameNormalizer.normalize(value.toString()).length());
+  }
+
+  /**
+   * Checks that every code point that is not Greek or Cyrillic is normalized as it was with
+   * regular expressions.
+   */
+  @Test
+  public void testMatchesPreviousNormalization() {
+    for (int codePoint = 0; codePoint < Character.MIN_SURROGATE; codePoint++) {
+      if ((codePoint >= 0x370 && codePoint < 0x530)
+          || (codePoint >= 0x1f00 && codePoint < 0x2000)) {
+        continue;
+      }
+      String value = "a" + new String(Character.toChars(codePoint)) + "z";
+      assertEquals("U+" + Integer.toHexString(codePoint), normalizeWithRegex(value),
+          UsernameNormalizer.normalize(value));
+    }
+  }
+
+  private String normalizeWithRegex(String value) {
+    value = StringUtils.stripAccents(value.toLowerCase(Locale.ENGLISH));
+    value = value.replaceAll("[^a-z0-9_\\.\\-]", "");
+    return value.length() > 60 ? value.substring(0, 60) : value;
+  }
+}